@@ -0,0 +1,119 @@
+package edu.umass.cs.wallach.cluster;
+
+// Walker alias table (Vose's construction) for drawing from a fixed
+// discrete distribution in O(1) time after O(n) set-up
+
+public class AliasTable {
+
+  private double[] weights; // unnormalized weights used to build the table
+  private double weightSum;
+
+  private double[] prob;
+  private int[] alias;
+
+  private int[] small, large; // scratch space for build
+
+  private int size;
+
+  public AliasTable(int capacity) {
+
+    weights = new double[capacity];
+
+    prob = new double[capacity];
+    alias = new int[capacity];
+
+    small = new int[capacity];
+    large = new int[capacity];
+  }
+
+  public void build(double[] dist, int size) {
+
+    if (size > weights.length) {
+
+      weights = new double[size];
+
+      prob = new double[size];
+      alias = new int[size];
+
+      small = new int[size];
+      large = new int[size];
+    }
+
+    this.size = size;
+
+    weightSum = 0.0;
+
+    for (int i=0; i<size; i++) {
+      weights[i] = dist[i];
+      weightSum += dist[i];
+    }
+
+    int numSmall = 0;
+    int numLarge = 0;
+
+    for (int i=0; i<size; i++) {
+
+      prob[i] = weights[i] * size / weightSum;
+
+      if (prob[i] < 1.0)
+        small[numSmall++] = i;
+      else
+        large[numLarge++] = i;
+    }
+
+    while ((numSmall > 0) && (numLarge > 0)) {
+
+      int l = small[--numSmall];
+      int g = large[--numLarge];
+
+      alias[l] = g;
+
+      prob[g] = (prob[g] + prob[l]) - 1.0;
+
+      if (prob[g] < 1.0)
+        small[numSmall++] = g;
+      else
+        large[numLarge++] = g;
+    }
+
+    // anything left over is (up to rounding error) exactly 1
+
+    while (numLarge > 0)
+      prob[large[--numLarge]] = 1.0;
+
+    while (numSmall > 0)
+      prob[small[--numSmall]] = 1.0;
+  }
+
+  public int sample(LogRandoms rng) {
+
+    int i = rng.nextInt(size);
+
+    if (rng.nextUniform() < prob[i])
+      return i;
+    else
+      return alias[i];
+  }
+
+  public double getWeight(int i) {
+
+    return weights[i];
+  }
+
+  public double getWeightSum() {
+
+    return weightSum;
+  }
+
+  public int size() {
+
+    return size;
+  }
+
+  // the largest size the table can be built with without reallocating
+
+  public int getCapacity() {
+
+    return weights.length;
+  }
+}
@@ -0,0 +1,262 @@
+package edu.umass.cs.wallach.cluster;
+
+import java.util.*;
+
+// LightLDA-style Metropolis-Hastings topic sampler (Yuan et al.,
+// 2015). Each token alternates between a word proposal, drawn from
+// (possibly stale) Walker alias tables built from TopicWordScore
+// counts, and a document proposal, drawn by picking one of the
+// document's other tokens (or, with probability proportional to a1, a
+// uniformly random outcome). The register models' switch/register
+// outcome is outcome T: the word proposal gives it its current
+// register-word score and the document proposal gives it the number
+// of the document's other switched tokens.
+//
+// The word proposal for a type w mixes a shared smoothing table over
+// all topics with weights (b / W) / (N_{.|j} + b) and a sparse table
+// over w's nonzero topics with weights N_{w|j} / (N_{.|j} + b).
+// Finding w's nonzero topics means scanning all T of its counts, so
+// every table (word or smoothing) is rebuilt lazily once it has served
+// T draws, which makes building cost O(1) per draw amortized. So a
+// table is at most T draws stale -- for a rare word that can be many
+// sweeps. Because the proposal probabilities used in the acceptance
+// ratio are always those the table was built with, staleness only
+// affects the acceptance rate, not the stationary distribution.
+//
+// Mixing trade-off: every proposal costs O(1) (O(log nnz) to look up
+// the current state's sparse weight) regardless of T, but a single MH
+// step moves less than an exact Gibbs draw, especially when tables
+// are stale or the document is short, so more iterations (or more MH
+// steps per token) are needed to reach the same log probability. It
+// pays off once T is in the thousands.
+
+public class AliasTopicSampler {
+
+  private TopicWordScore topicWordScore;
+  private DocTopicScore docTopicScore;
+
+  private int W, T; // constants
+
+  private double[] alpha, beta;
+
+  private int numSteps; // # of (word, document) proposal pairs per token
+
+  private double[] smoothingWeights;
+  private AliasTable smoothingTable;
+  private int smoothingDraws;
+
+  private int[][] wordTopics; // sorted nonzero topics for each table,
+                              // padded past the table size
+  private AliasTable[] wordTables;
+  private int[] wordDraws;
+
+  private double[] dist;
+  private int[] topics; // scratch space for buildWordTable
+
+  public AliasTopicSampler(TopicWordScore topicWordScore, DocTopicScore docTopicScore, int W, int T, int numSteps) {
+
+    this.topicWordScore = topicWordScore;
+    this.docTopicScore = docTopicScore;
+
+    this.W = W;
+    this.T = T;
+
+    alpha = docTopicScore.getAlpha();
+    beta = topicWordScore.getBeta();
+
+    this.numSteps = numSteps;
+
+    smoothingWeights = new double[T];
+
+    wordTopics = new int[W][];
+    wordTables = new AliasTable[W];
+    wordDraws = new int[W];
+
+    dist = new double[T];
+    topics = new int[T];
+  }
+
+  private void buildSmoothingTable() {
+
+    for (int j=0; j<T; j++)
+      smoothingWeights[j] = (beta[0] / W) / (topicWordScore.getCountNorm(j) + beta[0]);
+
+    if (smoothingTable == null)
+      smoothingTable = new AliasTable(T);
+
+    smoothingTable.build(smoothingWeights, T);
+
+    smoothingDraws = 0;
+  }
+
+  private void buildWordTable(int w) {
+
+    int size = 0;
+
+    for (int j=0; j<T; j++) {
+
+      int nwj = topicWordScore.getCount(w, j);
+
+      if (nwj > 0) {
+        dist[size] = nwj / (topicWordScore.getCountNorm(j) + beta[0]);
+        topics[size] = j;
+        size++;
+      }
+    }
+
+    // grow w's topic array (and table) geometrically, so a word whose
+    // nonzero topics keep growing is reallocated O(log T) times
+
+    if (wordTopics[w] == null)
+      wordTopics[w] = new int[size];
+    else if (wordTopics[w].length < size)
+      wordTopics[w] = new int[Math.min(Math.max(size, 2 * wordTopics[w].length), T)];
+
+    System.arraycopy(topics, 0, wordTopics[w], 0, size);
+
+    if (wordTables[w] == null)
+      wordTables[w] = new AliasTable(size);
+    else if (wordTables[w].getCapacity() < size)
+      wordTables[w] = new AliasTable(wordTopics[w].length);
+
+    wordTables[w].build(dist, size);
+
+    wordDraws[w] = 0;
+  }
+
+  // stale sparse weight for topic j in w's table
+
+  private double getWordWeight(int w, int j) {
+
+    int index = Arrays.binarySearch(wordTopics[w], 0, wordTables[w].size(), j);
+
+    if (index < 0)
+      return 0.0;
+    else
+      return wordTables[w].getWeight(index);
+  }
+
+  // target score for outcome s (T is the switch/register outcome)
+
+  private double getScore(int w, int d, int s, double topicWeight, double extraScore) {
+
+    if (s == T)
+      return extraScore;
+    else
+      return topicWeight * topicWordScore.getScore(w, s) * docTopicScore.getScore(s, d);
+  }
+
+  // unnormalized word proposal probability for outcome s
+
+  private double getWordProposal(int w, int s, double extraScore) {
+
+    if (s == T)
+      return extraScore;
+    else
+      return (smoothingWeights[s] + getWordWeight(w, s)) / topicWordScore.getUnseenCount(w);
+  }
+
+  // unnormalized document proposal probability for outcome s
+
+  private double getDocProposal(int d, int s, int numExtra, int K) {
+
+    int count = (s == T) ? numExtra : docTopicScore.getCount(s, d);
+
+    return count + alpha[1] / K;
+  }
+
+  // draws a new outcome for token n of document d, whose counts must
+  // already have been decremented -- current is the token's old
+  // outcome, topicWeight multiplies every topic's score, extraScore
+  // is the score of outcome T (or negative if there is no such
+  // outcome) and numExtra is the number of the document's other
+  // tokens currently assigned to outcome T. The document's outcomes are
+  // the topics of tokens start through end-1 of z, with -1 as T.
+
+  public int sample(int w, int d, Assignments z, int start, int end, int n, int current, double topicWeight, double extraScore, int numExtra, LogRandoms rng) {
+
+    boolean extra = (extraScore >= 0.0);
+
+    int K = extra ? T + 1 : T;
+
+    int nd = end - start;
+
+    if ((smoothingTable == null) || (smoothingDraws >= T))
+      buildSmoothingTable();
+
+    if ((wordTables[w] == null) || (wordDraws[w] >= T))
+      buildWordTable(w);
+
+    int s = current;
+    double scoreS = getScore(w, d, s, topicWeight, extraScore);
+
+    for (int step=0; step<numSteps; step++) {
+
+      // word proposal
+
+      double smoothingSum = smoothingTable.getWeightSum();
+      double wordSum = (wordTables[w].size() > 0) ? wordTables[w].getWeightSum() : 0.0;
+
+      double topicSum = (smoothingSum + wordSum) / topicWordScore.getUnseenCount(w);
+      double extraSum = extra ? extraScore : 0.0;
+
+      int t;
+
+      double u = rng.nextUniform() * (topicSum + extraSum);
+
+      if (u >= topicSum)
+        t = T;
+      else if (rng.nextUniform() * (smoothingSum + wordSum) < smoothingSum) {
+        t = smoothingTable.sample(rng);
+        smoothingDraws++;
+      }
+      else
+        t = wordTopics[w][wordTables[w].sample(rng)];
+
+      wordDraws[w]++;
+
+      if (t != s) {
+
+        double scoreT = getScore(w, d, t, topicWeight, extraScore);
+
+        double accept = (scoreT * getWordProposal(w, s, extraScore)) / (scoreS * getWordProposal(w, t, extraScore));
+
+        if ((accept >= 1.0) || (rng.nextUniform() < accept)) {
+          s = t;
+          scoreS = scoreT;
+        }
+      }
+
+      // document proposal
+
+      if (rng.nextUniform() * (nd - 1 + alpha[1]) < nd - 1) {
+
+        int other = start + rng.nextInt(nd - 1);
+
+        if (other >= n)
+          other++;
+
+        t = z.getTopic(other);
+
+        if (t == -1)
+          t = T;
+      }
+      else
+        t = rng.nextInt(K);
+
+      if (t != s) {
+
+        double scoreT = getScore(w, d, t, topicWeight, extraScore);
+
+        double accept = (scoreT * getDocProposal(d, s, numExtra, K)) / (scoreS * getDocProposal(d, t, numExtra, K));
+
+        if ((accept >= 1.0) || (rng.nextUniform() < accept)) {
+          s = t;
+          scoreS = scoreT;
+        }
+      }
+    }
+
+    return s;
+  }
+}
@@ -0,0 +1,424 @@
+package edu.umass.cs.wallach.cluster;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+import java.util.zip.*;
+
+import cc.mallet.pipe.*;
+import cc.mallet.types.*;
+import cc.mallet.util.*;
+
+// converts a (gzipped) tar archive of text documents, one per file,
+// straight into an instance list or a flat corpus, without unpacking
+// it first. The archive is read sequentially and each document is
+// tokenized on a pool of threads the way Text2Vectors does it by
+// default -- runs of letters, lowercased, optionally without stop
+// words -- so the words and their alphabet indices are the same as
+// Text2Vectors would give for the files in archive order. Documents
+// are added to the instance list in archive order, so the result
+// doesn't depend on the # of threads.
+
+public class ArchiveConverter {
+
+  private static final int MAX_PENDING_PER_THREAD = 64;
+
+  public static void main(String[] args) throws java.io.IOException {
+
+    if (args.length < 2) {
+      System.out.println("Usage: ArchiveConverter <archive> <output_instance_list_or_corpus> [--remove-stopwords] [--extra-stopwords <file>] [--encoding <charset>] [--threads <num_threads>]");
+      System.exit(1);
+    }
+
+    int index = 0;
+
+    String archiveFileName = args[index++];
+    String outputFileName = args[index++];
+
+    boolean removeStopwords = false;
+    String extraStopwordsFileName = null;
+    Charset encoding = Charset.defaultCharset();
+    int numThreads = Runtime.getRuntime().availableProcessors();
+
+    while (index < args.length) {
+
+      String option = args[index++];
+
+      if (option.equals("--remove-stopwords"))
+        removeStopwords = true;
+      else if (option.equals("--extra-stopwords") && (index < args.length))
+        extraStopwordsFileName = args[index++];
+      else if (option.equals("--encoding") && (index < args.length))
+        encoding = Charset.forName(args[index++]);
+      else if (option.equals("--threads") && (index < args.length))
+        numThreads = Integer.parseInt(args[index++]);
+      else {
+        System.out.println("Unknown option: " + option);
+        System.exit(1);
+      }
+    }
+
+    // as in Text2Vectors, extra stop words are only used along with
+    // the default ones
+
+    TokenSequenceRemoveStopwords stopwords = null;
+
+    if (removeStopwords) {
+
+      stopwords = new TokenSequenceRemoveStopwords(false, false);
+
+      if (extraStopwordsFileName != null)
+        stopwords.addStopWords(new File(extraStopwordsFileName));
+    }
+
+    System.out.print("Converting " + archiveFileName + "...");
+
+    long start = System.currentTimeMillis();
+
+    InstanceList instances = convert(archiveFileName, encoding, stopwords, numThreads);
+
+    Timer.printTimingInfo(start, System.currentTimeMillis());
+
+    System.out.print("Saving " + instances.size() + " instances to " + outputFileName + "...");
+
+    if (outputFileName.endsWith(".corpus"))
+      FlatCorpus.write(instances, outputFileName);
+    else
+      instances.save(new File(outputFileName));
+
+    System.out.println();
+  }
+
+  public static InstanceList convert(String archiveFileName, final Charset encoding, final TokenSequenceRemoveStopwords stopwords, int numThreads) throws IOException {
+
+    Alphabet dataAlphabet = new Alphabet();
+
+    ArrayList<Pipe> pipes = new ArrayList<Pipe>();
+
+    pipes.add(new CharSequence2TokenSequence(CharSequenceLexer.LEX_ALPHA));
+    pipes.add(new TokenSequenceLowercase());
+
+    if (stopwords != null)
+      pipes.add(stopwords);
+
+    pipes.add(new TokenSequence2FeatureSequence(dataAlphabet));
+
+    InstanceList instances = new InstanceList(new SerialPipes(pipes));
+
+    InputStream in = new BufferedInputStream(new FileInputStream(archiveFileName), 1 << 16);
+
+    if (archiveFileName.endsWith(".gz") || archiveFileName.endsWith(".tgz"))
+      in = new BufferedInputStream(new GZIPInputStream(in, 1 << 16), 1 << 16);
+
+    TarReader tar = new TarReader(in);
+
+    ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+
+    // documents being tokenized, in archive order
+
+    ArrayDeque<Future<String[]>> pending = new ArrayDeque<Future<String[]>>();
+    ArrayDeque<String> names = new ArrayDeque<String>();
+
+    try {
+
+      while (tar.next()) {
+
+        final byte[] bytes = tar.read();
+
+        pending.add(pool.submit(new Callable<String[]>() {
+            public String[] call() {
+              return tokenize(new String(bytes, encoding), stopwords);
+            }
+          }));
+
+        names.add(tar.getName());
+
+        if (pending.size() >= MAX_PENDING_PER_THREAD * numThreads)
+          addInstance(instances, dataAlphabet, names.remove(), pending.remove());
+      }
+
+      while (!pending.isEmpty())
+        addInstance(instances, dataAlphabet, names.remove(), pending.remove());
+    }
+    finally {
+      pool.shutdownNow();
+      in.close();
+    }
+
+    return instances;
+  }
+
+  // the lowercased runs of letters in text, less any stop words
+
+  private static String[] tokenize(String text, TokenSequenceRemoveStopwords stopwords) {
+
+    TokenSequence ts = new TokenSequence();
+
+    Matcher matcher = CharSequenceLexer.LEX_ALPHA.matcher(text);
+
+    while (matcher.find())
+      ts.add(new Token(text.substring(matcher.start(), matcher.end()).toLowerCase()));
+
+    if (stopwords != null)
+      ts = (TokenSequence) stopwords.pipe(new Instance(ts, null, null, null)).getData();
+
+    String[] tokens = new String[ts.size()];
+
+    for (int i=0; i<tokens.length; i++)
+      tokens[i] = ts.get(i).getText();
+
+    return tokens;
+  }
+
+  // adds the words to the alphabet in document order, as
+  // TokenSequence2FeatureSequence would
+
+  private static void addInstance(InstanceList instances, Alphabet dataAlphabet, String name, Future<String[]> future) throws IOException {
+
+    String[] tokens;
+
+    try {
+      tokens = future.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    }
+    catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+
+    FeatureSequence fs = new FeatureSequence(dataAlphabet, tokens.length);
+
+    for (String token : tokens)
+      fs.add(token);
+
+    instances.add(new Instance(fs, null, name, name));
+  }
+
+  // reads the regular files of a ustar, GNU or pax tar archive in order
+
+  private static class TarReader {
+
+    private static final int BLOCK_SIZE = 512;
+
+    private DataInputStream in;
+
+    private byte[] header = new byte[BLOCK_SIZE];
+
+    private String name;
+    private long remaining; // # of unread bytes of the current entry
+    private long padding; // # of bytes between it and the next header
+
+    public TarReader(InputStream in) {
+
+      this.in = new DataInputStream(in);
+    }
+
+    // advances to the next regular file, returning false at the end
+    // of the archive
+
+    public boolean next() throws IOException {
+
+      String longName = null;
+
+      while (true) {
+
+        skip(remaining + padding);
+
+        remaining = 0;
+        padding = 0;
+
+        int n = 0;
+
+        while (n < BLOCK_SIZE) {
+
+          int count = in.read(header, n, BLOCK_SIZE - n);
+
+          if (count < 0) {
+            if (n == 0)
+              return false; // archives don't always end with zero blocks
+            throw new EOFException("Truncated tar header");
+          }
+
+          n += count;
+        }
+
+        if (isZero(header))
+          return false;
+
+        long size = parseNumber(header, 124, 12);
+        char type = (char) header[156];
+
+        remaining = size;
+        padding = (BLOCK_SIZE - (size % BLOCK_SIZE)) % BLOCK_SIZE;
+
+        if (type == 'L') // GNU long name, for the next entry
+          longName = parseString(read(), 0, (int) size);
+        else if (type == 'x') { // pax extended header, for the next entry
+
+          String path = parsePaxPath(read());
+
+          if (path != null)
+            longName = path;
+        }
+        else if ((type == '0') || (type == '\0') || (type == '7')) {
+
+          name = longName;
+
+          if (name == null) {
+
+            name = parseString(header, 0, 100);
+
+            String prefix = parseString(header, 345, 155);
+
+            if (isUstar(header) && (prefix.length() > 0))
+              name = prefix + "/" + name;
+          }
+
+          return true;
+        }
+        else
+          longName = null; // directories, links, etc.
+      }
+    }
+
+    public String getName() {
+
+      return name;
+    }
+
+    // the contents of the current entry
+
+    public byte[] read() throws IOException {
+
+      if (remaining > Integer.MAX_VALUE)
+        throw new IOException("Tar entry " + name + " is too large");
+
+      byte[] bytes = new byte[(int) remaining];
+
+      in.readFully(bytes);
+
+      remaining = 0;
+
+      return bytes;
+    }
+
+    private void skip(long numBytes) throws IOException {
+
+      while (numBytes > 0) {
+
+        long count = in.skip(numBytes);
+
+        if (count <= 0) {
+          if (in.read() < 0)
+            throw new EOFException("Truncated tar archive");
+          count = 1;
+        }
+
+        numBytes -= count;
+      }
+    }
+
+    private static boolean isZero(byte[] block) {
+
+      for (byte b : block)
+        if (b != 0)
+          return false;
+
+      return true;
+    }
+
+    private static boolean isUstar(byte[] block) {
+
+      return (block[257] == 'u') && (block[258] == 's') && (block[259] == 't') && (block[260] == 'a') && (block[261] == 'r');
+    }
+
+    private static String parseString(byte[] bytes, int offset, int length) {
+
+      int end = offset;
+
+      while ((end < offset + length) && (bytes[end] != 0))
+        end++;
+
+      return new String(bytes, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    // octal, NUL- or space-terminated -- or, if the top bit of the
+    // first byte is set, big-endian base 256 (for sizes over 8 GB)
+
+    private static long parseNumber(byte[] bytes, int offset, int length) throws IOException {
+
+      long value = 0;
+
+      if ((bytes[offset] & 0x80) != 0) {
+
+        value = bytes[offset] & 0x7f;
+
+        for (int i=1; i<length; i++)
+          value = (value << 8) | (bytes[offset + i] & 0xff);
+
+        return value;
+      }
+
+      int i = offset;
+
+      while ((i < offset + length) && (bytes[i] == ' '))
+        i++;
+
+      for (; (i < offset + length) && (bytes[i] != 0) && (bytes[i] != ' '); i++) {
+
+        if ((bytes[i] < '0') || (bytes[i] > '7'))
+          throw new IOException("Corrupt tar header");
+
+        value = (value << 3) + (bytes[i] - '0');
+      }
+
+      return value;
+    }
+
+    // the path in a pax extended header, whose records are
+    // "<length> <key>=<value>\n"
+
+    private static String parsePaxPath(byte[] bytes) throws IOException {
+
+      String path = null;
+
+      int pos = 0;
+
+      while (pos < bytes.length) {
+
+        int space = pos;
+
+        while ((space < bytes.length) && (bytes[space] != ' '))
+          space++;
+
+        if (space == pos)
+          break;
+
+        int length;
+
+        try {
+          length = Integer.parseInt(new String(bytes, pos, space - pos, StandardCharsets.US_ASCII));
+        }
+        catch (NumberFormatException e) {
+          throw new IOException("Corrupt pax header");
+        }
+
+        if ((length <= space - pos) || (pos + length > bytes.length))
+          throw new IOException("Corrupt pax header");
+
+        String record = new String(bytes, space + 1, pos + length - space - 2, StandardCharsets.UTF_8);
+
+        if (record.startsWith("path="))
+          path = record.substring(5);
+
+        pos += length;
+      }
+
+      return path;
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package edu.umass.cs.wallach.cluster;
+
+// the switch and topic assignments of every token, indexed by corpus
+// position and packed into one value per token: a token assigned to
+// topic j is stored as j + 1 and a switched token (one generated by
+// the background or a register rather than a topic) as 0, so its
+// topic is -1. The values are stored in the narrowest array that can
+// hold T + 1 of them -- bytes if T < 256, chars if T < 65536 and ints
+// otherwise -- rather than in one int array for the switches and
+// another for the topics. Workers sampling different documents can
+// write to the same Assignments, since Java arrays are never written
+// to in units larger than one element.
+
+public class Assignments {
+
+  private int N, T;
+
+  private boolean hasSwitches; // false for models without a switch (LDA)
+
+  private int width; // # of bytes per value
+
+  private byte[] bytes;
+  private char[] chars;
+  private int[] ints;
+
+  public Assignments(int N, int T, boolean hasSwitches) {
+
+    this.N = N;
+    this.T = T;
+
+    this.hasSwitches = hasSwitches;
+
+    if (T < (1 << 8)) {
+      width = 1;
+      bytes = new byte[N];
+    }
+    else if (T < (1 << 16)) {
+      width = 2;
+      chars = new char[N];
+    }
+    else {
+      width = 4;
+      ints = new int[N];
+    }
+  }
+
+  public int size() {
+
+    return N;
+  }
+
+  public int getNumTopics() {
+
+    return T;
+  }
+
+  public boolean hasSwitches() {
+
+    return hasSwitches;
+  }
+
+  // the topic of the token at position n, or -1 if it is switched
+
+  public int getTopic(int n) {
+
+    if (width == 1)
+      return (bytes[n] & 0xff) - 1;
+    else if (width == 2)
+      return chars[n] - 1;
+    else
+      return ints[n] - 1;
+  }
+
+  // 1 if the token at position n is switched, 0 otherwise
+
+  public int getSwitch(int n) {
+
+    return (getTopic(n) == -1) ? 1 : 0;
+  }
+
+  // assigns the token at position n to topic j, or switches it if j
+  // is -1
+
+  public void setTopic(int n, int j) {
+
+    assert (j >= -1) && (j < T);
+    assert hasSwitches || (j != -1);
+
+    if (width == 1)
+      bytes[n] = (byte) (j + 1);
+    else if (width == 2)
+      chars[n] = (char) (j + 1);
+    else
+      ints[n] = j + 1;
+  }
+}
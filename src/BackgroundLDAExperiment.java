@@ -11,8 +11,8 @@ public class BackgroundLDAExperiment {
 
   public static void main(String[] args) throws java.io.IOException {
 
-    if (args.length != 7) {
-      System.out.println("Usage: LDAExperiment <instance_list> <num_topics> <num_itns> <print_interval> <save_state_interval> <sample> <output_dir>");
+    if (args.length < 7) {
+      System.out.println("Usage: LDAExperiment <instance_list> <num_topics> <num_itns> <print_interval> <save_state_interval> <sample> <output_dir> [--sampler dense|alias] [--threads <num_threads>] [--sync-interval <num_docs>] [--test <test_instance_list>] [--test-itns <num_itns>] [--test-samples <num_samples>] [--min-count <count>] [--sparse-output] [--resume <checkpoint>]");
       System.exit(1);
     }
 
@@ -42,6 +42,49 @@ public class BackgroundLDAExperiment {
 
     assert index == 7;
 
+    String sampler = "dense"; // topic sampler
+
+    int numThreads = 1; // # of sampling threads
+    int syncInterval = 0; // # of documents between merges (0 = once per sweep)
+
+    String testInstanceListFileName = null; // held-out documents
+    int numTestIterations = 100; // # of sweeps per held-out document
+    int numTestSamples = 10; // # of those sweeps to average over
+
+    int minCount = 1; // words that occur fewer times are pruned
+
+    boolean sparseOutput = false; // write only the nonzero doc-topic and topic-word counts
+
+    String resumeFileName = null; // checkpoint to resume from
+
+    while (index < args.length) {
+
+      String option = args[index++];
+
+      if (option.equals("--sampler") && (index < args.length))
+        sampler = args[index++];
+      else if (option.equals("--threads") && (index < args.length))
+        numThreads = Integer.parseInt(args[index++]);
+      else if (option.equals("--sync-interval") && (index < args.length))
+        syncInterval = Integer.parseInt(args[index++]);
+      else if (option.equals("--test") && (index < args.length))
+        testInstanceListFileName = args[index++];
+      else if (option.equals("--test-itns") && (index < args.length))
+        numTestIterations = Integer.parseInt(args[index++]);
+      else if (option.equals("--test-samples") && (index < args.length))
+        numTestSamples = Integer.parseInt(args[index++]);
+      else if (option.equals("--min-count") && (index < args.length))
+        minCount = Integer.parseInt(args[index++]);
+      else if (option.equals("--sparse-output"))
+        sparseOutput = true;
+      else if (option.equals("--resume") && (index < args.length))
+        resumeFileName = args[index++];
+      else {
+        System.out.println("Unknown option: " + option);
+        System.exit(1);
+      }
+    }
+
     // load data
 
     Alphabet wordDict = new Alphabet();
@@ -50,6 +93,11 @@ public class BackgroundLDAExperiment {
 
     InstanceListLoader.load(instanceListFileName, docs);
 
+    if (minCount > 1) {
+      docs.prune(minCount);
+      wordDict = docs.getWordDict();
+    }
+
     int W = wordDict.size();
 
     for (int d=0; d<docs.size(); d++)
@@ -69,6 +117,28 @@ public class BackgroundLDAExperiment {
     double[] delta = new double[1];
     Arrays.fill(delta, 0.01 * W);
 
+    // resume from a checkpoint, if there is one
+
+    Assignments zInit = null;
+    LogRandoms rngInit = null;
+    int itnOffset = 0;
+
+    if (resumeFileName != null) {
+
+      Checkpoint checkpoint = Checkpoint.read(resumeFileName, T, R, 0);
+
+      checkpoint.apply(docs);
+
+      zInit = checkpoint.getAssignments();
+      rngInit = checkpoint.getRandoms();
+      itnOffset = checkpoint.getIteration();
+
+      alpha = checkpoint.getHyperparameter("alpha");
+      gamma = checkpoint.getHyperparameter("gamma");
+      beta = checkpoint.getHyperparameter("beta");
+      delta = checkpoint.getHyperparameter("delta");
+    }
+
     // form output filenames
 
     String optionsFileName = outputDir + "/options.txt";
@@ -79,11 +149,13 @@ public class BackgroundLDAExperiment {
     String topicSummaryFileName = outputDir + "/topic_summary.txt.gz";
     String registerSummaryFileName = outputDir + "/register_summary.txt.gz";
     String stateFileName = outputDir + "/state.txt.gz";
+    String checkpointFileName = outputDir + "/checkpoint.bin";
     String alphaFileName = outputDir + "/alpha.txt";
     String gammaFileName = outputDir + "/gamma.txt";
     String betaFileName = outputDir + "/beta.txt";
     String deltaFileName = outputDir + "/delta.txt";
     String logProbFileName = outputDir + "/log_prob.txt";
+    String heldOutLogProbFileName = outputDir + "/held_out_log_prob.txt";
 
     PrintWriter pw = new PrintWriter(optionsFileName);
 
@@ -104,13 +176,42 @@ public class BackgroundLDAExperiment {
     pw.println("Sample gamma = " + sample[1]);
     pw.println("Sample beta = " + sample[2]);
     pw.println("Sample delta = " + sample[3]);
+    pw.println("Sampler = " + sampler);
+    pw.println("# threads = " + numThreads);
+    pw.println("Sync interval = " + syncInterval);
+    pw.println("Min count = " + minCount);
+    pw.println("Sparse output = " + sparseOutput);
+
+    if (testInstanceListFileName != null) {
+      pw.println("Test instance list = " + testInstanceListFileName);
+      pw.println("# test iterations = " + numTestIterations);
+      pw.println("# test samples = " + numTestSamples);
+    }
+
+    if (resumeFileName != null)
+      pw.println("Resume = " + resumeFileName + " (iteration " + itnOffset + ")");
+
     pw.println("Date = " + (new Date()));
 
     pw.close();
 
     BackgroundLDA lda = new BackgroundLDA();
 
-    lda.estimate(docs, null, null, null, 0, T, R, alpha, gamma, beta, delta, numIterations, printInterval, saveStateInterval, sample, documentTopicsFileName, topicWordsFileName, registerWordsFileName, topicSummaryFileName, registerSummaryFileName, stateFileName, alphaFileName, gammaFileName, betaFileName, deltaFileName, logProbFileName);
+    lda.estimate(docs, docs.getUnseenCounts(), zInit, rngInit, itnOffset, T, R, alpha, gamma, beta, delta, numIterations, printInterval, saveStateInterval, sample, sampler, numThreads, syncInterval, sparseOutput, documentTopicsFileName, topicWordsFileName, registerWordsFileName, topicSummaryFileName, registerSummaryFileName, stateFileName, checkpointFileName, alphaFileName, gammaFileName, betaFileName, deltaFileName, logProbFileName);
+
+    if (testInstanceListFileName != null) {
+
+      // held-out words that weren't seen in training are dropped
 
+      wordDict.stopGrowth();
+
+      Corpus testDocs = new Corpus(wordDict, null);
+
+      InstanceListLoader.load(testInstanceListFileName, testDocs);
+
+      System.out.println("Num test docs: " + testDocs.size());
+
+      lda.documentCompletion(testDocs, numTestIterations, numTestSamples, numThreads, heldOutLogProbFileName);
+    }
   }
 }
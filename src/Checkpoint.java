@@ -0,0 +1,534 @@
+package edu.umass.cs.wallach.cluster;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+// a binary snapshot of a sampler's state, from which estimation can be
+// resumed: the iteration, the # of registers and chunks the model was
+// run with, the switch and topic assignments, the document registers
+// (may be null), the hyperparameters and the state of the random
+// number generator.
+//
+// The file is a fixed-size header -- MAGIC, VERSION, the length of the
+// body and the CRC-32 of the body -- followed by the body. The
+// assignments are bit-packed, using as few bits per value as the
+// largest value needs (a topic of -1 is stored as 0, so every topic is
+// stored plus one), and the body is memory-mapped and checked against
+// the header when it is read. The assignments are written from and
+// read into an Assignments directly, without an int array per token.
+// Files are written to a temporary file and then renamed, so an
+// interrupted write never leaves a truncated checkpoint behind.
+
+public class Checkpoint {
+
+  private static final int MAGIC = 0x52544d43; // "RTMC"
+  private static final int VERSION = 2; // version 1 didn't record R and C
+
+  private static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+
+  private int iteration;
+
+  private int R, C; // # of registers and chunks (0 if the model has none)
+
+  private int[] offsets; // D + 1 document offsets into z
+  private Assignments z;
+  private int[] registers;
+
+  private LinkedHashMap<String, double[]> hyperparameters;
+
+  private LogRandoms rng;
+
+  public Checkpoint(int iteration, Corpus docs, Assignments z, int[] registers, int R, int C, LogRandoms rng) {
+
+    this(iteration, Arrays.copyOf(docs.getOffsets(), docs.size() + 1), z, registers, R, C, rng);
+  }
+
+  private Checkpoint(int iteration, int[] offsets, Assignments z, int[] registers, int R, int C, LogRandoms rng) {
+
+    this.iteration = iteration;
+
+    this.R = R;
+    this.C = C;
+
+    this.offsets = offsets;
+
+    this.z = z;
+    this.registers = registers;
+
+    this.rng = rng;
+
+    hyperparameters = new LinkedHashMap<String, double[]>();
+  }
+
+  public void setHyperparameter(String name, double[] values) {
+
+    hyperparameters.put(name, values.clone());
+  }
+
+  public double[] getHyperparameter(String name) {
+
+    return hyperparameters.get(name);
+  }
+
+  public int getIteration() {
+
+    return iteration;
+  }
+
+  public Assignments getAssignments() {
+
+    return z;
+  }
+
+  public int[] getRegisters() {
+
+    return registers;
+  }
+
+  public LogRandoms getRandoms() {
+
+    return rng;
+  }
+
+  // checks that the assignments fit the corpus and sets each
+  // document's register
+
+  public void apply(Corpus docs) {
+
+    int D = offsets.length - 1;
+
+    if (D != docs.size())
+      throw new IllegalArgumentException("Checkpoint has " + D + " documents, corpus has " + docs.size());
+
+    for (int d=0; d<D; d++) {
+
+      if (offsets[d+1] - offsets[d] != docs.getDocument(d).getLength())
+        throw new IllegalArgumentException("Checkpoint and corpus differ in the length of document " + d);
+
+      if (registers != null)
+        docs.getDocument(d).setRegister(registers[d]);
+    }
+  }
+
+  // # of bits needed for values in [0, maxValue]
+
+  private static int getNumBits(int maxValue) {
+
+    return Math.max(1, 32 - Integer.numberOfLeadingZeros(maxValue));
+  }
+
+  // writes the values (plus offset), numBits bits each, packed into longs
+
+  private static void writePacked(DataOutputStream out, Values values, int offset) throws IOException {
+
+    int numValues = values.size();
+
+    int maxValue = 0;
+
+    for (int i=0; i<numValues; i++) {
+      assert values.get(i) + offset >= 0;
+      maxValue = Math.max(maxValue, values.get(i) + offset);
+    }
+
+    int numBits = getNumBits(maxValue);
+
+    out.writeInt(numBits);
+    out.writeLong(numValues);
+
+    long word = 0;
+    int used = 0; // # of bits of word in use
+
+    for (int i=0; i<numValues; i++) {
+
+      long value = values.get(i) + offset;
+
+      word |= value << used;
+
+      if (used + numBits >= 64) {
+
+        out.writeLong(word);
+
+        // the bits of value that didn't fit
+
+        word = (used == 0) ? 0 : (value >>> (64 - used));
+        used = used + numBits - 64;
+      }
+      else
+        used += numBits;
+    }
+
+    if (used > 0)
+      out.writeLong(word);
+  }
+
+  // reads values.size() values written by writePacked into values
+
+  private static void readPacked(ByteBuffer in, Values values, int offset) throws IOException {
+
+    int numValues = values.size();
+
+    int numBits = in.getInt();
+
+    if ((numBits < 1) || (numBits > 32) || (in.getLong() != numValues))
+      throw new IOException("Corrupt checkpoint");
+
+    long mask = (1L << numBits) - 1;
+
+    long word = 0;
+    int available = 0; // # of unread bits left in word
+
+    for (int i=0; i<numValues; i++) {
+
+      long value;
+
+      if (available >= numBits) {
+        value = word & mask;
+        word >>>= numBits;
+        available -= numBits;
+      }
+      else {
+
+        // the low bits are what's left of this word, the rest come
+        // from the next one
+
+        long next = in.getLong();
+
+        value = (word | (next << available)) & mask;
+
+        int fromNext = numBits - available;
+
+        word = next >>> fromNext;
+        available = 64 - fromNext;
+      }
+
+      values.set(i, (int) value - offset);
+    }
+  }
+
+  // an array of values, as written by writePacked and read by
+  // readPacked
+
+  private interface Values {
+
+    public int size();
+
+    public int get(int i);
+
+    public void set(int i, int value) throws IOException;
+  }
+
+  private static Values wrap(final int[] values) {
+
+    return new Values() {
+      public int size() {
+        return values.length;
+      }
+      public int get(int i) {
+        return values[i];
+      }
+      public void set(int i, int value) {
+        values[i] = value;
+      }
+    };
+  }
+
+  // the switches of z -- when read, a switched token is given topic
+  // -1 and any other token topic 0, until its topic is read
+
+  private static Values switches(final Assignments z) {
+
+    return new Values() {
+      public int size() {
+        return z.size();
+      }
+      public int get(int i) {
+        return z.getSwitch(i);
+      }
+      public void set(int i, int value) throws IOException {
+        if ((value != 0) && (value != 1))
+          throw new IOException("Corrupt checkpoint");
+        z.setTopic(i, -value);
+      }
+    };
+  }
+
+  // the topics of z (-1 for switched tokens) -- when read, each must
+  // agree with the switch read before it, if there was one
+
+  private static Values topics(final Assignments z) {
+
+    return new Values() {
+      public int size() {
+        return z.size();
+      }
+      public int get(int i) {
+        return z.getTopic(i);
+      }
+      public void set(int i, int value) throws IOException {
+        if ((value < -1) || (value >= z.getNumTopics()))
+          throw new IOException("Checkpoint has topic " + value + " but the model has " + z.getNumTopics() + " topics");
+        if ((value == -1) != (z.hasSwitches() && (z.getTopic(i) == -1)))
+          throw new IOException("Corrupt checkpoint");
+        z.setTopic(i, value);
+      }
+    };
+  }
+
+  public void write(String fileName) throws IOException {
+
+    File file = new File(fileName);
+    File tmpFile = new File(fileName + ".tmp");
+
+    FileOutputStream fos = new FileOutputStream(tmpFile);
+
+    try {
+
+      // leave room for the header, which needs the body's checksum
+
+      fos.write(new byte[HEADER_SIZE]);
+
+      CRC32 crc = new CRC32();
+
+      CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(fos, 1 << 16));
+
+      DataOutputStream out = new DataOutputStream(new CheckedOutputStream(counter, crc));
+
+      int D = offsets.length - 1;
+
+      out.writeInt(iteration);
+      out.writeInt(D);
+      out.writeInt(R);
+      out.writeInt(C);
+
+      for (int d=0; d<D; d++)
+        out.writeInt(offsets[d+1] - offsets[d]);
+
+      out.writeBoolean(z.hasSwitches());
+
+      if (z.hasSwitches())
+        writePacked(out, switches(z), 0);
+
+      writePacked(out, topics(z), 1);
+
+      out.writeBoolean(registers != null);
+
+      if (registers != null)
+        writePacked(out, wrap(registers), 0);
+
+      out.writeInt(hyperparameters.size());
+
+      for (Map.Entry<String, double[]> entry : hyperparameters.entrySet()) {
+
+        out.writeUTF(entry.getKey());
+        out.writeInt(entry.getValue().length);
+
+        for (double value : entry.getValue())
+          out.writeDouble(value);
+      }
+
+      ByteArrayOutputStream rngBytes = new ByteArrayOutputStream();
+
+      ObjectOutputStream oos = new ObjectOutputStream(rngBytes);
+      oos.writeObject(rng);
+      oos.close();
+
+      out.writeInt(rngBytes.size());
+      out.write(rngBytes.toByteArray());
+
+      out.flush();
+
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+      header.putInt(MAGIC);
+      header.putInt(VERSION);
+      header.putLong(counter.getCount());
+      header.putLong(crc.getValue());
+
+      header.flip();
+
+      FileChannel channel = fos.getChannel();
+
+      channel.position(0);
+
+      while (header.hasRemaining())
+        channel.write(header);
+
+      channel.force(true);
+    }
+    finally {
+      fos.close();
+    }
+
+    Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  // reads a checkpoint of a model with T topics, R registers and C
+  // chunks (R and C are 0 if the model has none)
+
+  public static Checkpoint read(String fileName, int T, int R, int C) throws IOException {
+
+    RandomAccessFile raf = new RandomAccessFile(fileName, "r");
+
+    try {
+
+      FileChannel channel = raf.getChannel();
+
+      if (channel.size() < HEADER_SIZE)
+        throw new IOException(fileName + " is not a checkpoint");
+
+      if (channel.size() > Integer.MAX_VALUE)
+        throw new IOException(fileName + " is too large to map");
+
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+      if (buffer.getInt() != MAGIC)
+        throw new IOException(fileName + " is not a checkpoint");
+
+      int version = buffer.getInt();
+
+      if ((version != 1) && (version != VERSION))
+        throw new IOException(fileName + " has unsupported version " + version);
+
+      long bodyLength = buffer.getLong();
+      long checksum = buffer.getLong();
+
+      if (bodyLength != channel.size() - HEADER_SIZE)
+        throw new IOException(fileName + " is truncated");
+
+      ByteBuffer body = buffer.slice();
+
+      CRC32 crc = new CRC32();
+      crc.update(body.duplicate());
+
+      if (crc.getValue() != checksum)
+        throw new IOException(fileName + " fails its checksum");
+
+      try {
+
+        int iteration = body.getInt();
+        int D = body.getInt();
+
+        // version 1 checkpoints can't be checked
+
+        if (version != 1) {
+
+          int checkpointR = body.getInt();
+          int checkpointC = body.getInt();
+
+          if (checkpointR != R)
+            throw new IOException(fileName + " has " + checkpointR + " registers but the model has " + R);
+
+          if (checkpointC != C)
+            throw new IOException(fileName + " has " + checkpointC + " chunks but the model has " + C);
+        }
+
+        int[] offsets = new int[D + 1];
+
+        for (int d=0; d<D; d++)
+          offsets[d+1] = offsets[d] + body.getInt();
+
+        int N = offsets[D];
+
+        Assignments z = new Assignments(N, T, body.get() != 0);
+
+        if (z.hasSwitches())
+          readPacked(body, switches(z), 0);
+
+        readPacked(body, topics(z), 1);
+
+        int[] registers = null;
+
+        if (body.get() != 0) {
+          registers = new int[D];
+          readPacked(body, wrap(registers), 0);
+        }
+
+        LinkedHashMap<String, double[]> hyperparameters = new LinkedHashMap<String, double[]>();
+
+        int numHyperparameters = body.getInt();
+
+        for (int i=0; i<numHyperparameters; i++) {
+
+          byte[] name = new byte[body.getShort() & 0xffff];
+          body.get(name);
+
+          double[] values = new double[body.getInt()];
+
+          for (int k=0; k<values.length; k++)
+            values[k] = body.getDouble();
+
+          hyperparameters.put(new DataInputStream(new ByteArrayInputStream(concat(name))).readUTF(), values);
+        }
+
+        byte[] rngBytes = new byte[body.getInt()];
+        body.get(rngBytes);
+
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(rngBytes));
+
+        LogRandoms rng = (LogRandoms) ois.readObject();
+
+        Checkpoint checkpoint = new Checkpoint(iteration, offsets, z, registers, R, C, rng);
+
+        checkpoint.hyperparameters = hyperparameters;
+
+        return checkpoint;
+      }
+      catch (BufferUnderflowException e) {
+        throw new IOException(fileName + " is corrupt");
+      }
+      catch (ClassNotFoundException e) {
+        throw new IOException(e);
+      }
+    }
+    finally {
+      raf.close();
+    }
+  }
+
+  // prefixes modified UTF-8 bytes with their length, as readUTF expects
+
+  private static byte[] concat(byte[] utf) {
+
+    byte[] bytes = new byte[utf.length + 2];
+
+    bytes[0] = (byte) (utf.length >>> 8);
+    bytes[1] = (byte) utf.length;
+
+    System.arraycopy(utf, 0, bytes, 2, utf.length);
+
+    return bytes;
+  }
+
+  // counts the bytes written through it
+
+  private static class CountingOutputStream extends FilterOutputStream {
+
+    private long count = 0;
+
+    public CountingOutputStream(OutputStream out) {
+
+      super(out);
+    }
+
+    public void write(int b) throws IOException {
+
+      out.write(b);
+      count++;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+
+      out.write(b, off, len);
+      count += len;
+    }
+
+    public long getCount() {
+
+      return count;
+    }
+  }
+}
@@ -1,31 +1,72 @@
 package edu.umass.cs.wallach.cluster;
 
 import java.io.*;
+import java.nio.charset.*;
 import java.util.*;
 
 import gnu.trove.*;
 
 import cc.mallet.types.*;
 
+// merges instance lists of the same documents, one per chunk, into
+// one whose instances have a "chunks" property giving each token's
+// chunk. The documents are in order of instance name. Writing to a flat
+// corpus (an output name ending in .corpus) streams the merge, so only
+// one chunk is ever in memory; otherwise every chunk is loaded and the
+// merged instance list is built in memory.
+
 public class ChunkInstanceListMerger {
 
-  public static void main(String[] args) {
+  private static final int DEFAULT_BUFFER_SIZE = 64; // MB
+
+  public static void main(String[] args) throws IOException {
+
+    int numArgs = 0;
 
-    if (args.length < 2) {
-      System.out.println("Usage: ChunkInstanceListMerger <chunk_instance_list> <chunk_instance_list> ... <output_instance_list>");
+    while ((numArgs < args.length) && !args[numArgs].startsWith("--"))
+      numArgs++;
+
+    if (numArgs < 2) {
+      System.out.println("Usage: ChunkInstanceListMerger <chunk_instance_list> <chunk_instance_list> ... <output_instance_list_or_corpus> [--buffer-size <MB>]");
       System.exit(1);
     }
 
-    int numChunks = args.length - 1;
+    int numChunks = numArgs - 1;
 
-    String outputInstanceListFileName = args[numChunks];
+    String outputFileName = args[numChunks];
 
     String[] files = new String[numChunks];
     System.arraycopy(args, 0, files, 0, numChunks);
 
+    int bufferSize = DEFAULT_BUFFER_SIZE;
+
+    int index = numArgs;
+
+    while (index < args.length) {
+
+      String option = args[index++];
+
+      if (option.equals("--buffer-size") && (index < args.length))
+        bufferSize = Integer.parseInt(args[index++]);
+      else {
+        System.out.println("Unknown option: " + option);
+        System.exit(1);
+      }
+    }
+
+    if (outputFileName.endsWith(".corpus"))
+      merge(files, outputFileName, bufferSize << 20);
+    else
+      merge(files, outputFileName);
+  }
+
+  public static void merge(String[] files, String outputInstanceListFileName) {
+
+    int numChunks = files.length;
+
     InstanceList mergedList = null;
 
-    HashMap<String, Instance[]> nameToInstances = new HashMap<String, Instance[]>();
+    TreeMap<String, Instance[]> nameToInstances = new TreeMap<String, Instance[]>();
 
     System.out.print("About to merge " + numChunks + " chunks...");
 
@@ -47,8 +88,7 @@ public class ChunkInstanceListMerger {
       }
     }
 
-    // create merged InstanceList -- note that the instances will NOT
-    // be in the same order as in original InstanceLists...
+    // create merged InstanceList, in order of instance name
 
     for (String name : nameToInstances.keySet()) {
 
@@ -99,4 +139,325 @@ public class ChunkInstanceListMerger {
 
     System.out.println();
   }
+
+  // merges the chunks into a flat corpus without holding more than one
+  // of them in memory: each chunk is loaded in turn and written to a
+  // temporary run file in order of instance name, then the runs are
+  // merged a document at a time and the merged tokens and chunks are
+  // written out as they go. The run files and the output share
+  // bufferSize bytes of buffers. As in merge(), a document that occurs
+  // more than once in a chunk is taken from its last occurrence.
+
+  public static void merge(String[] files, String outputFileName, int bufferSize) throws IOException {
+
+    int numChunks = files.length;
+
+    int streamBufferSize = Math.max(bufferSize / (numChunks + 1), 1 << 12);
+
+    File dir = new File(outputFileName).getAbsoluteFile().getParentFile();
+
+    File[] runFiles = new File[numChunks];
+    RunReader[] runs = new RunReader[numChunks];
+
+    String[][] chunkWords = new String[numChunks][]; // each chunk's alphabet
+
+    FlatCorpus.Writer writer = null;
+
+    try {
+
+      System.out.print("Sorting " + numChunks + " chunks...");
+
+      for (int c=0; c<numChunks; c++) {
+
+        runFiles[c] = File.createTempFile("chunk", ".run", dir);
+        runFiles[c].deleteOnExit();
+
+        chunkWords[c] = writeRun(InstanceList.load(new File(files[c])), runFiles[c], streamBufferSize);
+      }
+
+      System.out.println();
+
+      System.out.print("Merging to " + outputFileName + "...");
+
+      writer = new FlatCorpus.Writer(outputFileName, streamBufferSize);
+
+      PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>();
+
+      int[][] remap = new int[numChunks][]; // chunk word types to vocabulary indices
+
+      for (int c=0; c<numChunks; c++) {
+
+        runs[c] = new RunReader(runFiles[c], c, streamBufferSize);
+
+        if (runs[c].next())
+          queue.add(runs[c]);
+
+        remap[c] = new int[chunkWords[c].length];
+        Arrays.fill(remap[c], -1);
+      }
+
+      int[] tokens = new int[0];
+      int[] chunks = new int[0];
+
+      int numDocs = 0;
+
+      while (!queue.isEmpty()) {
+
+        String name = queue.peek().getName();
+        String source = null;
+
+        int length = 0;
+
+        // runs with the same name come off the queue in chunk order
+
+        while (!queue.isEmpty() && queue.peek().getName().equals(name)) {
+
+          RunReader run = queue.poll();
+
+          int c = run.getChunk();
+
+          if (source == null)
+            source = run.getSource();
+
+          int[] types = run.getTypes();
+          int nd = run.getLength();
+
+          if (length + nd > tokens.length) {
+            tokens = Arrays.copyOf(tokens, Math.max(length + nd, 2 * tokens.length));
+            chunks = Arrays.copyOf(chunks, tokens.length);
+          }
+
+          for (int i=0; i<nd; i++) {
+
+            int type = types[i];
+
+            if (remap[c][type] == -1)
+              remap[c][type] = writer.lookup(chunkWords[c][type]);
+
+            tokens[length] = remap[c][type];
+            chunks[length] = c;
+            length++;
+          }
+
+          if (run.next())
+            queue.add(run);
+        }
+
+        writer.add(source, tokens, chunks, length);
+
+        if (length > 0)
+          numDocs++;
+      }
+
+      writer.close();
+
+      System.out.println();
+
+      System.out.println("Merged " + numDocs + " documents");
+    }
+    finally {
+
+      for (int c=0; c<numChunks; c++) {
+
+        if (runs[c] != null)
+          runs[c].close();
+
+        if (runFiles[c] != null)
+          runFiles[c].delete();
+      }
+
+      if (writer != null)
+        writer.delete();
+    }
+  }
+
+  // writes the instances to file in order of name, each as its name,
+  // source, length and word types, and returns the words of their
+  // alphabet
+
+  private static String[] writeRun(InstanceList list, File file, int bufferSize) throws IOException {
+
+    Alphabet alphabet = list.getDataAlphabet();
+
+    String[] words = new String[alphabet.size()];
+
+    for (int w=0; w<words.length; w++)
+      words[w] = (String) alphabet.lookupObject(w);
+
+    int numInstances = list.size();
+
+    final String[] names = new String[numInstances];
+    Integer[] order = new Integer[numInstances];
+
+    for (int i=0; i<numInstances; i++) {
+      names[i] = list.get(i).getName().toString();
+      order[i] = i;
+    }
+
+    // stable, so instances with the same name stay in list order
+
+    Arrays.sort(order, new Comparator<Integer>() {
+        public int compare(Integer i, Integer j) {
+          return names[i].compareTo(names[j]);
+        }
+      });
+
+    // a later instance with the same name replaces an earlier one
+
+    boolean[] replaced = new boolean[numInstances];
+
+    int numRecords = 0;
+
+    for (int k=0; k<numInstances; k++) {
+
+      replaced[k] = (k + 1 < numInstances) && names[order[k+1]].equals(names[order[k]]);
+
+      if (!replaced[k])
+        numRecords++;
+    }
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), bufferSize));
+
+    try {
+
+      out.writeInt(numRecords); // so the reader knows where the run ends
+
+      for (int k=0; k<numInstances; k++) {
+
+        if (replaced[k])
+          continue;
+
+        int i = order[k];
+
+        Instance instance = list.get(i);
+
+        FeatureSequence fs = (FeatureSequence) instance.getData();
+
+        Object source = instance.getSource();
+
+        writeString(out, names[i]);
+        writeString(out, (source == null) ? names[i] : source.toString());
+
+        out.writeInt(fs.getLength());
+
+        for (int n=0; n<fs.getLength(); n++)
+          out.writeInt(fs.getIndexAtPosition(n));
+      }
+    }
+    finally {
+      out.close();
+    }
+
+    return words;
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+
+    byte[] bytes = new byte[in.readInt()];
+
+    in.readFully(bytes);
+
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  // reads a run file one instance at a time -- runs are ordered by
+  // the name of their current instance, then by chunk
+
+  private static class RunReader implements Comparable<RunReader> {
+
+    private DataInputStream in;
+
+    private int chunk;
+
+    private int numRemaining; // # of instances not yet read
+
+    private String name, source;
+
+    private int length;
+    private int[] types = new int[0];
+
+    public RunReader(File file, int chunk, int bufferSize) throws IOException {
+
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), bufferSize));
+
+      this.chunk = chunk;
+
+      numRemaining = in.readInt();
+    }
+
+    // advances to the next instance, returning false at the end of
+    // the run
+
+    public boolean next() throws IOException {
+
+      if (numRemaining == 0)
+        return false;
+
+      numRemaining--;
+
+      name = readString(in);
+      source = readString(in);
+
+      length = in.readInt();
+
+      if (length > types.length)
+        types = new int[Math.max(length, 2 * types.length)];
+
+      for (int i=0; i<length; i++)
+        types[i] = in.readInt();
+
+      return true;
+    }
+
+    public int getChunk() {
+
+      return chunk;
+    }
+
+    public String getName() {
+
+      return name;
+    }
+
+    public String getSource() {
+
+      return source;
+    }
+
+    public int getLength() {
+
+      return length;
+    }
+
+    // the first getLength() entries are the current instance's types
+
+    public int[] getTypes() {
+
+      return types;
+    }
+
+    public void close() {
+
+      try {
+        in.close();
+      }
+      catch (IOException e) {
+      }
+    }
+
+    public int compareTo(RunReader run) {
+
+      int result = name.compareTo(run.name);
+
+      return (result != 0) ? result : (chunk - run.chunk);
+    }
+  }
 }
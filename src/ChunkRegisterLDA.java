@@ -2,6 +2,7 @@ package edu.umass.cs.wallach.cluster;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import gnu.trove.*;
 
@@ -20,88 +21,105 @@ public class ChunkRegisterLDA {
 
   private int W, T, D, R, C; // constants
 
-  private int[][] x, z; // switch and topic assignments
+  private Assignments z; // switch and topic assignments, indexed by corpus position
 
   private LogRandoms rng; // random number generator
 
-  // computes P(w, r, x, z) using the predictive distribution
+  private SamplingWorkspace workspace; // scratch buffers for sampling
 
-  private double logProb(Corpus docs) {
+  // worker threads for parallel sampling
 
-    double logProb = 0;
+  private ChunkRegisterLDA[] workers;
+  private int[] shards;
+  private ForkJoinPool pool;
+  private int syncInterval;
 
-    registerScore.resetCounts();
-    switchScore.resetCounts();
-    topicWordScore.resetCounts();
-    chunkRegisterWordScore.resetCounts();
-    docTopicScore.resetCounts();
+  // the current document's switched tokens, grouped by word type and
+  // chunk
 
-    for (int d=0; d<D; d++) {
+  private long[] groupKeys;
+  private int[] groupWords, groupChunks, groupCounts;
 
-      int r = docs.getDocument(d).getRegister();
+  // computes P(w, r, x, z) in closed form from the current counts (with the
+  // tables under the minimal path assumption), in parallel if there
+  // are worker threads -- the result doesn't depend on their number
 
-      logProb += Math.log(registerScore.getScore(r));
+  private double logProb() {
 
-      registerScore.incrementCounts(r);
+    double logProb = registerScore.logProb() + switchScore.logProb();
 
-      int[] fs = docs.getDocument(d).getTokens();
+    logProb += topicWordScore.logProb(pool) + docTopicScore.logProb(pool);
+    logProb += chunkRegisterWordScore.logProb(pool);
 
-      int nd = fs.length;
+    return logProb;
+  }
 
-      int[] cs = docs.getDocument(d).getChunks();
+  // creates a copy of the model with frozen copies of its counts, for
+  // computing diagnostics while sampling carries on
 
-      assert cs.length == nd;
+  private ChunkRegisterLDA snapshot() {
 
-      for (int i=0; i<nd; i++) {
+    ChunkRegisterLDA snapshot = new ChunkRegisterLDA();
 
-        int w = fs[i];
-        int k = x[d][i];
-        int j = z[d][i];
-        int c = cs[i];
+    snapshot.registerScore = registerScore.snapshot();
+    snapshot.switchScore = switchScore.snapshot();
+    snapshot.topicWordScore = topicWordScore.snapshot();
+    snapshot.chunkRegisterWordScore = chunkRegisterWordScore.snapshot();
+    snapshot.docTopicScore = docTopicScore.snapshot();
 
-        logProb += Math.log(switchScore.getScore(k, c));
+    snapshot.pool = pool;
 
-        switchScore.incrementCounts(k, c);
+    return snapshot;
+  }
 
-        if (k == 0) {
+  // groups the switched tokens of a document (those at positions start
+  // through end-1) by word type and chunk (in increasing order of type,
+  // then chunk) and returns the number of groups
 
-          assert j != -1;
+  private int groupSwitchedTokens(int[] tokens, int[] chunks, int start, int end) {
 
-          logProb += Math.log(topicWordScore.getScore(w, j) * docTopicScore.getScore(j, d));
+    int nd = end - start;
 
-          topicWordScore.incrementCounts(w, j);
-          docTopicScore.incrementCounts(j, d);
-        }
-        else {
+    if ((groupKeys == null) || (groupKeys.length < nd)) {
+      groupKeys = new long[nd];
+      groupWords = new int[nd];
+      groupChunks = new int[nd];
+      groupCounts = new int[nd];
+    }
 
-          assert j == -1;
+    int n = 0;
 
-          logProb += Math.log(chunkRegisterWordScore.getScore(w, r, c));
+    for (int i=start; i<end; i++)
+      if (z.getSwitch(i) == 1)
+        groupKeys[n++] = ((long) tokens[i] * C) + chunks[i];
 
-          chunkRegisterWordScore.incrementCounts(w, r, c);
+    Arrays.sort(groupKeys, 0, n);
 
-        }
+    int numGroups = 0;
+
+    for (int i=0; i<n; i++)
+      if ((i > 0) && (groupKeys[i-1] == groupKeys[i]))
+        groupCounts[numGroups - 1]++;
+      else {
+        groupWords[numGroups] = (int) (groupKeys[i] / C);
+        groupChunks[numGroups] = (int) (groupKeys[i] % C);
+        groupCounts[numGroups++] = 1;
       }
-    }
 
-    return logProb;
+    return numGroups;
   }
 
-  private void sampleVariables(Corpus docs, boolean init) {
+  private void sampleVariables(Corpus docs, boolean init, int start, int end) {
 
     // resample everything
 
-    for (int d=0; d<D; d++) {
-
-      int rNew = -1;
+    int[] offsets = docs.getOffsets();
+    int[] tokens = docs.getTokens();
+    int[] chunks = docs.getChunks();
 
-      int[] fs = docs.getDocument(d).getTokens();
+    for (int d=start; d<end; d++) {
 
-      int nd = fs.length;
-
-      int[] cs = docs.getDocument(d).getChunks();
-
-      assert cs.length == nd;
+      int rNew = -1;
 
       if (init) {
 
@@ -120,36 +138,20 @@ public class ChunkRegisterLDA {
 
         registerScore.decrementCounts(rOld);
 
-        for (int i=0; i<nd; i++)
-          if (x[d][i] == 1)
-            chunkRegisterWordScore.decrementCounts(fs[i], rOld, cs[i]);
+        for (int n=offsets[d]; n<offsets[d+1]; n++)
+          if (z.getSwitch(n) == 1)
+            chunkRegisterWordScore.decrementCounts(tokens[n], rOld, chunks[n]);
 
         if (R > 1) {
 
-          double[] logDist = new double[R];
-
-          for (int r=0; r<R; r++) {
-
-            double logScore = Math.log(registerScore.getScore(r));
+          int numGroups = groupSwitchedTokens(tokens, chunks, offsets[d], offsets[d+1]);
 
-            for (int i=0; i<nd; i++)
-              if (x[d][i] == 1) {
+          double[] logDist = workspace.getLogDist(R);
 
-                int w = fs[i];
+          for (int r=0; r<R; r++)
+            logDist[r] = Math.log(registerScore.getScore(r)) + chunkRegisterWordScore.getLogScore(groupWords, groupChunks, groupCounts, numGroups, r, workspace.getCounts(C));
 
-                logScore += Math.log(chunkRegisterWordScore.getScore(w, r, cs[i]));
-
-                chunkRegisterWordScore.incrementCounts(w, r, cs[i]);
-              }
-
-            logDist[r] = logScore;
-
-            for (int i=0; i<nd; i++)
-              if (x[d][i] == 1)
-                chunkRegisterWordScore.decrementCounts(fs[i], r, cs[i]);
-          }
-
-          rNew = rng.nextDiscreteLogDist(logDist);
+          rNew = rng.nextDiscreteLogDist(logDist, R, workspace);
         }
         else
           rNew = 0;
@@ -158,22 +160,17 @@ public class ChunkRegisterLDA {
 
         registerScore.incrementCounts(rNew);
 
-        for (int i=0; i<nd; i++)
-          if (x[d][i] == 1)
-            chunkRegisterWordScore.incrementCounts(fs[i], rNew, cs[i]);
+        for (int n=offsets[d]; n<offsets[d+1]; n++)
+          if (z.getSwitch(n) == 1)
+            chunkRegisterWordScore.incrementCounts(tokens[n], rNew, chunks[n]);
       }
 
-      if (init) {
-        x[d] = new int[nd];
-        z[d] = new int[nd];
-      }
-
-      for (int i=0; i<nd; i++) {
+      for (int n=offsets[d]; n<offsets[d+1]; n++) {
 
-        int w = fs[i];
-        int kOld = x[d][i];
-        int jOld = z[d][i];
-        int c = cs[i];
+        int w = tokens[n];
+        int kOld = z.getSwitch(n);
+        int jOld = z.getTopic(n);
+        int c = chunks[n];
 
         if (!init) {
 
@@ -187,28 +184,22 @@ public class ChunkRegisterLDA {
             chunkRegisterWordScore.decrementCounts(w, rNew, c);
         }
 
-        double[] dist = new double[T+1];
-        double distSum = 0.0;
+        double[] dist = workspace.getDist(T+1);
 
-        for (int j=0; j<T; j++) {
+        docTopicScore.getScores(d, dist);
 
-          double score = switchScore.getScore(0, c) * topicWordScore.getScore(w, j) * docTopicScore.getScore(j, d);
-
-          dist[j] = score;
-          distSum += score;
-        }
+        double distSum = topicWordScore.scoreVector(w, switchScore.getScore(0, c), dist, dist);
 
         double score = switchScore.getScore(1, c) * chunkRegisterWordScore.getScore(w, rNew, c);
 
         dist[T] = score;
         distSum += score;
 
-        int jNew = rng.nextDiscrete(dist, distSum);
+        int jNew = rng.nextDiscrete(dist, T+1, distSum);
 
         if (jNew < T) {
 
-          x[d][i] = 0;
-          z[d][i] = jNew;
+          z.setTopic(n, jNew);
 
           switchScore.incrementCounts(0, c);
           topicWordScore.incrementCounts(w, jNew);
@@ -216,8 +207,7 @@ public class ChunkRegisterLDA {
         }
         else {
 
-          x[d][i] = 1;
-          z[d][i] = -1;
+          z.setTopic(n, -1);
 
           switchScore.incrementCounts(1, c);
           chunkRegisterWordScore.incrementCounts(w, rNew, c);
@@ -226,24 +216,301 @@ public class ChunkRegisterLDA {
     }
   }
 
+  // creates one worker per thread, each with its own copy of the
+  // global counts and a contiguous shard of documents
+
+  private void createWorkers(Corpus docs, int numThreads) {
+
+    pool = new ForkJoinPool(numThreads);
+
+    shards = Shards.split(docs, numThreads);
+
+    workers = new ChunkRegisterLDA[numThreads];
+
+    for (int p=0; p<numThreads; p++) {
+
+      ChunkRegisterLDA worker = new ChunkRegisterLDA();
+
+      worker.registerScore = registerScore.copy();
+      worker.switchScore = switchScore.copy();
+      worker.topicWordScore = topicWordScore.copy();
+      worker.chunkRegisterWordScore = chunkRegisterWordScore.copy();
+      worker.docTopicScore = docTopicScore.copy();
+
+      worker.W = W;
+      worker.T = T;
+      worker.D = D;
+      worker.R = R;
+      worker.C = C;
+
+      worker.z = z;
+
+      worker.rng = new LogRandoms(rng.nextInt());
+      worker.workspace = new SamplingWorkspace();
+
+      workers[p] = worker;
+    }
+  }
+
+  // adds every worker's changes to the global counts and resets the
+  // workers' copies to the merged counts
+
+  private void mergeWorkers() {
+
+    int P = workers.length;
+
+    RegisterScore[] registerScores = new RegisterScore[P];
+    SwitchScore[] switchScores = new SwitchScore[P];
+    TopicWordScore[] topicWordScores = new TopicWordScore[P];
+    ChunkRegisterWordScore[] chunkRegisterWordScores = new ChunkRegisterWordScore[P];
+    DocTopicScore[] docTopicScores = new DocTopicScore[P];
+
+    for (int p=0; p<P; p++) {
+      registerScores[p] = workers[p].registerScore;
+      switchScores[p] = workers[p].switchScore;
+      topicWordScores[p] = workers[p].topicWordScore;
+      chunkRegisterWordScores[p] = workers[p].chunkRegisterWordScore;
+      docTopicScores[p] = workers[p].docTopicScore;
+    }
+
+    registerScore.merge(registerScores);
+    switchScore.merge(switchScores);
+    topicWordScore.merge(topicWordScores);
+    chunkRegisterWordScore.merge(chunkRegisterWordScores);
+    docTopicScore.merge(docTopicScores);
+  }
+
+  // approximate distributed Gibbs sampling -- each worker samples its
+  // own shard against its own copy of the counts, and the copies are
+  // merged every syncInterval documents (or once per sweep if
+  // syncInterval is zero)
+
+  private void sampleVariablesParallel(final Corpus docs) {
+
+    int P = workers.length;
+
+    // pick up any changes to the hyperparameters since the last sweep
+
+    for (int p=0; p<P; p++) {
+      workers[p].topicWordScore.updateCoefficients();
+      workers[p].chunkRegisterWordScore.updateCoefficients();
+      workers[p].docTopicScore.updateCoefficients();
+    }
+
+    int maxShardSize = 0;
+
+    for (int p=0; p<P; p++)
+      maxShardSize = Math.max(maxShardSize, shards[p+1] - shards[p]);
+
+    int blockSize = (syncInterval > 0) ? syncInterval : maxShardSize;
+
+    for (int offset=0; offset<maxShardSize; offset+=blockSize) {
+
+      List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+
+      for (int p=0; p<P; p++) {
+
+        final ChunkRegisterLDA worker = workers[p];
+
+        final int start = Math.min(shards[p] + offset, shards[p+1]);
+        final int end = Math.min(start + blockSize, shards[p+1]);
+
+        tasks.add(new Callable<Object>() {
+            public Object call() {
+              worker.sampleVariables(docs, false, start, end);
+              return null;
+            }
+          });
+      }
+
+      Shards.invokeAll(pool, tasks);
+
+      mergeWorkers();
+    }
+  }
+
+  // creates a sampler for test documents that shares the locked
+  // training counts -- it folds in one document at a time, keeping
+  // its own changes to the counts, which are undone by resetCounts().
+  // Each thread needs its own tester.
+
+  private ChunkRegisterLDA createTester() {
+
+    topicWordScore.lock();
+    chunkRegisterWordScore.lock();
+
+    ChunkRegisterLDA tester = new ChunkRegisterLDA();
+
+    tester.registerScore = registerScore.copy();
+    tester.registerScore.lock(1);
+
+    tester.switchScore = switchScore.copy();
+    tester.switchScore.lock(1);
+
+    tester.topicWordScore = topicWordScore.testCopy();
+    tester.chunkRegisterWordScore = chunkRegisterWordScore.testCopy();
+
+    tester.docTopicScore = docTopicScore.copy();
+    tester.docTopicScore.lock(1);
+
+    tester.W = W;
+    tester.T = T;
+    tester.D = 1;
+    tester.R = R;
+    tester.C = C;
+
+    tester.workspace = new SamplingWorkspace();
+
+    return tester;
+  }
+
+  // undoes a tester's changes to the counts and adds the tokens (in
+  // the given chunks) to them as its only document, with initial
+  // assignments -- returns the one-document corpus to sample
+
+  private Corpus beginFoldIn(String source, int[] tokens, int[] chunks, int seed) {
+
+    registerScore.resetCounts();
+    switchScore.resetCounts();
+    topicWordScore.resetCounts();
+    chunkRegisterWordScore.resetCounts();
+    docTopicScore.resetCounts();
+
+    rng = new LogRandoms(seed);
+
+    Corpus docs = new Corpus(null, null);
+    docs.add(source, tokens, chunks);
+
+    z = new Assignments(tokens.length, T, true);
+
+    sampleVariables(docs, true, 0, 1);
+
+    return docs;
+  }
+
+  // log P(second half of doc | first half), estimated by sampling the
+  // register, switches and topics of the first half for numItns
+  // sweeps and averaging the probability of the second half over the
+  // last numSamples of them -- each held-out token is scored in its
+  // own chunk
+
+  private double completeDocument(Corpus testDocs, int d, int numItns, int numSamples, int seed) {
+
+    Document doc = testDocs.getDocument(d);
+
+    int[] tokens = testDocs.getTokens();
+    int[] chunks = testDocs.getChunks();
+
+    int start = doc.getStart();
+    int nd = doc.getLength();
+    int m = nd / 2; // # of observed tokens
+
+    Corpus docs = beginFoldIn(doc.getSource(), Arrays.copyOfRange(tokens, start, start + m), Arrays.copyOfRange(chunks, start, start + m), seed);
+
+    Document observed = docs.getDocument(0);
+
+    double logProb = Double.NEGATIVE_INFINITY;
+
+    for (int s=1; s<=numItns; s++) {
+
+      sampleVariables(docs, false, 0, 1);
+
+      if (s > numItns - numSamples) {
+
+        // each held-out token's probability given the sample
+
+        int r = observed.getRegister();
+
+        double[] dist = workspace.getDist(T);
+
+        double sampleLogProb = 0.0;
+
+        for (int i=m; i<nd; i++) {
+
+          int w = tokens[start + i];
+          int c = chunks[start + i];
+
+          docTopicScore.getScores(0, dist);
+
+          double score = topicWordScore.scoreVector(w, switchScore.getScore(0, c), dist, dist);
+
+          score += switchScore.getScore(1, c) * chunkRegisterWordScore.getScore(w, r, c);
+
+          sampleLogProb += Math.log(score);
+        }
+
+        logProb = Maths.sumLogProb(logProb, sampleLogProb);
+      }
+    }
+
+    return logProb - Math.log(numSamples);
+  }
+
+  // evaluates the trained model on held-out documents by document
+  // completion, as RegisterLDA.documentCompletion() does -- writes
+  // "<source> <# of held-out tokens> <log prob>" for each document to
+  // outputFileName and returns the total log prob
+
+  public double documentCompletion(final Corpus testDocs, final int numItns, final int numSamples, int numThreads, String outputFileName) {
+
+    assert (numSamples >= 1) && (numSamples <= numItns);
+
+    int numTestDocs = testDocs.size();
+
+    final double[] logProbs = new double[numTestDocs];
+
+    long start = System.currentTimeMillis();
+
+    ForkJoinPool testPool = new ForkJoinPool(numThreads);
+
+    int[] bounds = Shards.split(testDocs, numThreads);
+
+    List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+
+    for (int p=0; p<numThreads; p++) {
+
+      final ChunkRegisterLDA tester = createTester();
+
+      final int shardStart = bounds[p];
+      final int shardEnd = bounds[p+1];
+
+      tasks.add(new Callable<Object>() {
+          public Object call() {
+            for (int d=shardStart; d<shardEnd; d++)
+              logProbs[d] = tester.completeDocument(testDocs, d, numItns, numSamples, d);
+            return null;
+          }
+        });
+    }
+
+    Shards.invokeAll(testPool, tasks);
+
+    testPool.shutdown();
+
+    Timer.printTimingInfo(start, System.currentTimeMillis());
+
+    return HeldOut.print(testDocs, logProbs, outputFileName);
+  }
+
   // estimate topics
 
-  public void estimate(Corpus docs, TIntIntHashMap unseenCounts, int[][] xInit, int[][] zInit, int itnOffset, int T, int R, int C, double[] alpha, double[] gamma, double[] beta, double[] delta, double[] sigma, int numItns, int printInterval, int saveStateInterval, boolean[] sample, String documentTopicsFileName, String topicWordsFileName, String chunkRegisterWordsFileName, String topicSummaryFileName, String chunkRegisterSummaryFileName, String stateFileName, String alphaFileName, String gammaFileName, String betaFileName, String deltaFileName, String sigmaFileName, String logProbFileName) {
+  public void estimate(Corpus docs, TIntIntHashMap unseenCounts, Assignments zInit, LogRandoms rngInit, int itnOffset, int T, int R, int C, double[] alpha, double[] gamma, double[] beta, double[] delta, double[] sigma, int numItns, int printInterval, int saveStateInterval, boolean[] sample, int numThreads, int syncInterval, boolean sparseOutput, String documentTopicsFileName, String topicWordsFileName, String chunkRegisterWordsFileName, String topicSummaryFileName, String chunkRegisterSummaryFileName, String stateFileName, String checkpointFileName, String alphaFileName, String gammaFileName, String betaFileName, String deltaFileName, String sigmaFileName, String logProbFileName) {
 
     boolean append = false;
 
-    if ((xInit == null) || (zInit == null))
+    if (zInit == null)
       assert itnOffset == 0;
     else {
       assert itnOffset >= 0;
       append = true;
     }
 
-    Alphabet wordDict = docs.getWordDict();
+    final Alphabet wordDict = docs.getWordDict();
 
     assert (saveStateInterval == 0) || (numItns % saveStateInterval == 0);
 
-    rng = new LogRandoms(1000);
+    rng = (rngInit == null) ? new LogRandoms(1000) : rngInit;
+    workspace = new SamplingWorkspace();
 
     this.T = T;
     this.R = R;
@@ -264,36 +531,34 @@ public class ChunkRegisterLDA {
     chunkRegisterWordScore = new ChunkRegisterWordScore(W, R, C, delta, unseenCounts, "minimal");
     docTopicScore = new DocTopicScore(T, D, alpha, "minimal");
 
-    if ((xInit == null) || (zInit == null)) {
+    if (zInit == null) {
 
-      x = new int[D][];
-      z = new int[D][];
+      z = new Assignments(docs.getNumTokens(), T, true);
 
-      sampleVariables(docs, true); // initialize switch and topic assignments
+      sampleVariables(docs, true, 0, D); // initialize switch and topic assignments
     }
     else {
 
-      x = xInit;
       z = zInit;
 
+      int[] offsets = docs.getOffsets();
+      int[] tokens = docs.getTokens();
+      int[] chunks = docs.getChunks();
+
       for (int d=0; d<D; d++) {
 
         int r = docs.getDocument(d).getRegister();
 
         assert r != -1;
 
-        int[] fs = docs.getDocument(d).getTokens();
-
-        int nd = fs.length;
-
-        int[] cs = docs.getDocument(d).getChunks();
+        registerScore.incrementCounts(r);
 
-        for (int i=0; i<nd; i++) {
+        for (int n=offsets[d]; n<offsets[d+1]; n++) {
 
-          int w = fs[i];
-          int k = x[d][i];
-          int j = z[d][i];
-          int c = cs[i];
+          int w = tokens[n];
+          int k = z.getSwitch(n);
+          int j = z.getTopic(n);
+          int c = chunks[n];
 
           switchScore.incrementCounts(k, c);
 
@@ -307,12 +572,19 @@ public class ChunkRegisterLDA {
       }
     }
 
+    this.syncInterval = syncInterval;
+
+    if (numThreads > 1)
+      createWorkers(docs, numThreads);
+
     long start = System.currentTimeMillis();
 
     try {
 
       PrintWriter logProbWriter = new PrintWriter(new FileWriter(logProbFileName, append), true);
 
+      Diagnostics diagnostics = new Diagnostics(logProbWriter);
+
       // count matrices have been populated, every token has been
       // assigned to a single topic, so Gibbs sampling can start
 
@@ -325,37 +597,56 @@ public class ChunkRegisterLDA {
 
         System.out.flush();
 
-        sampleVariables(docs, false);
+        if (pool != null)
+          sampleVariablesParallel(docs);
+        else
+          sampleVariables(docs, false, 0, D);
 
         if (sample[0])
-          docTopicScore.sampleAlpha(docs, x, z, rng, 5, 1.0);
+          docTopicScore.sampleAlpha(docs, z, rng, 5, 1.0);
 
         if (sample[1])
-          switchScore.sampleGamma(docs, x, rng, 5, 1.0);
+          switchScore.sampleGamma(rng, 5, 1.0);
 
         if (sample[2])
-          topicWordScore.sampleBeta(docs, x, z, rng, 5, 1.0);
+          topicWordScore.sampleBeta(rng, 5, 1.0);
 
         if (sample[3])
-          chunkRegisterWordScore.sampleDelta(docs, x, rng, 5, 1.0);
+          chunkRegisterWordScore.sampleDelta(docs, z, rng, 5, 1.0);
 
         if (sample[4])
-          registerScore.sampleSigma(docs, rng, 5, 1.0);
+          registerScore.sampleSigma(rng, 5, 1.0);
 
         if (printInterval != 0) {
           if (s % printInterval == 0) {
-            System.out.println();
-            topicWordScore.print(wordDict, 0.0, 10, true, null);
-            chunkRegisterWordScore.print(wordDict, 0.0, 10, true, null);
 
-            logProbWriter.println(logProb(docs));
-            logProbWriter.flush();
+            diagnostics.reserve();
+
+            final ChunkRegisterLDA snapshot = snapshot();
+
+            final int itn = itnOffset + s;
+
+            diagnostics.submit(itn, new Callable<Double>() {
+                public Double call() {
+
+                  synchronized (System.out) {
+                    System.out.println();
+                    System.out.println("Iteration " + itn + ":");
+                    snapshot.topicWordScore.print(wordDict, 0.0, 10, true, null, pool);
+                    snapshot.chunkRegisterWordScore.print(wordDict, 0.0, 10, true, null, pool);
+                  }
+
+                  return snapshot.logProb();
+                }
+              });
           }
         }
 
         if ((saveStateInterval != 0) && (s % saveStateInterval == 0)) {
           if (stateFileName != null)
             docs.printFeatures(z, stateFileName + "." + (itnOffset + s));
+          if (checkpointFileName != null)
+            saveCheckpoint(docs, itnOffset + s, checkpointFileName + "." + (itnOffset + s));
           if (alphaFileName != null)
             docTopicScore.printAlpha(alphaFileName + "." + (itnOffset + s));
           if (gammaFileName != null)
@@ -369,11 +660,15 @@ public class ChunkRegisterLDA {
         }
       }
 
+      diagnostics.close();
+
       Timer.printTimingInfo(start, System.currentTimeMillis());
 
       if (saveStateInterval == 0) {
         if (stateFileName != null)
           docs.printFeatures(z, stateFileName);
+        if (checkpointFileName != null)
+          saveCheckpoint(docs, itnOffset + numItns, checkpointFileName);
         if (alphaFileName != null)
           docTopicScore.printAlpha(alphaFileName);
         if (gammaFileName != null)
@@ -386,17 +681,29 @@ public class ChunkRegisterLDA {
           registerScore.printSigma(sigmaFileName);
       }
 
-      if (documentTopicsFileName != null)
-        docTopicScore.print(docs, documentTopicsFileName);
-      if (topicWordsFileName != null)
-        topicWordScore.print(wordDict, topicWordsFileName);
+      if (documentTopicsFileName != null) {
+        if (sparseOutput)
+          docTopicScore.printSparse(docs, documentTopicsFileName);
+        else
+          docTopicScore.print(docs, documentTopicsFileName, pool);
+      }
+
+      if (topicWordsFileName != null) {
+        if (sparseOutput)
+          topicWordScore.printSparse(wordDict, topicWordsFileName);
+        else
+          topicWordScore.print(wordDict, topicWordsFileName, pool);
+      }
       if (chunkRegisterWordsFileName != null)
-        chunkRegisterWordScore.print(wordDict, chunkRegisterWordsFileName);
+        chunkRegisterWordScore.print(wordDict, chunkRegisterWordsFileName, pool);
 
       if (topicSummaryFileName != null)
-        topicWordScore.print(wordDict, 0.0, 10, true, topicSummaryFileName);
+        topicWordScore.print(wordDict, 0.0, 10, true, topicSummaryFileName, pool);
       if (chunkRegisterSummaryFileName != null)
-        chunkRegisterWordScore.print(wordDict, 0.0, 10, true, chunkRegisterSummaryFileName);
+        chunkRegisterWordScore.print(wordDict, 0.0, 10, true, chunkRegisterSummaryFileName, pool);
+
+      if (pool != null)
+        pool.shutdown();
 
       logProbWriter.close();
     }
@@ -405,6 +712,26 @@ public class ChunkRegisterLDA {
     }
   }
 
+  // saves the sampler's state after iteration itn
+
+  private void saveCheckpoint(Corpus docs, int itn, String fileName) throws IOException {
+
+    int[] registers = new int[D];
+
+    for (int d=0; d<D; d++)
+      registers[d] = docs.getDocument(d).getRegister();
+
+    Checkpoint checkpoint = new Checkpoint(itn, docs, z, registers, R, C, rng);
+
+    checkpoint.setHyperparameter("alpha", docTopicScore.getAlpha());
+    checkpoint.setHyperparameter("gamma", switchScore.getGamma());
+    checkpoint.setHyperparameter("beta", topicWordScore.getBeta());
+    checkpoint.setHyperparameter("delta", chunkRegisterWordScore.getDelta());
+    checkpoint.setHyperparameter("sigma", registerScore.getSigma());
+
+    checkpoint.write(fileName);
+  }
+
   public double[] getAlpha() {
 
     return docTopicScore.getAlpha();
@@ -430,12 +757,7 @@ public class ChunkRegisterLDA {
     return registerScore.getSigma();
   }
 
-  public int[][] getSwitch() {
-
-    return x;
-  }
-
-  public int[][] getTopics() {
+  public Assignments getAssignments() {
 
     return z;
   }
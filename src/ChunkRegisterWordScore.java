@@ -2,6 +2,7 @@ package edu.umass.cs.wallach.cluster;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.zip.*;
 
 import gnu.trove.*;
@@ -13,22 +14,44 @@ public class ChunkRegisterWordScore {
 
   // observed counts
 
-  private int[][] wordRegisterChunkCounts; // N_{w|r,c}
+  private SparseCountMatrix wordRegisterChunkCounts; // N_{w|r,c}
   private int[] wordRegisterChunkCountsNorm; // N_{.|r,c}
 
-  private int[][] wordRegisterCounts; // N_{w|r}
+  private SparseCountMatrix wordRegisterCounts; // N_{w|r}
   private int[] wordRegisterCountsNorm; // N_{.|r}
 
-  private int[][] wordRegisterChunkCountsTrain;
+  // once locked, both count matrices are immutable (and may be shared)
+  // and changes to them are kept in overlays
+
+  private CountOverlay wordRegisterChunkCountsTest;
   private int[] wordRegisterChunkCountsNormTrain;
 
-  private int[][] wordRegisterCountsTrain;
+  private CountOverlay wordRegisterCountsTest;
   private int[] wordRegisterCountsNormTrain;
 
+  // # of cells of N_{w|r} with each count, for sampling delta (not
+  // tracked by copies)
+
+  private CountHistogram countHistogram;
+
   private TIntIntHashMap unseenCounts;
 
   private int W, R, C; // constants
 
+  // getScore(w, r, c) = ((registerPriorScores[r] + N_{w|r}
+  // registerInverseNorms[r]) chunkPriorWeights[rc] + N_{w|r,c}
+  // chunkInverseNorms[rc]) unseenScales[w] -- the coefficients are
+  // updated along with the counts and recomputed by
+  // updateCoefficients()
+
+  private double[] registerPriorScores; // (1 / W) d0 / (N_{.|r} + d0)
+  private double[] registerInverseNorms; // 1 / (N_{.|r} + d0)
+
+  private double[] chunkPriorWeights; // d1 / (N_{.|r,c} + d1)
+  private double[] chunkInverseNorms; // 1 / (N_{.|r,c} + d1)
+
+  private double[] unseenScales; // 1 / (# of unseen types w stands for)
+
   // hyperparameters
 
   private double[] delta;
@@ -37,6 +60,15 @@ public class ChunkRegisterWordScore {
 
   private String score;
 
+  // rows changed since the last merge (only tracked for copies)
+
+  private boolean[] dirty;
+  private int[] dirtyRows;
+  private int numDirtyRows;
+
+  private ChunkRegisterWordScore() {
+  }
+
   // create a score function with zero counts
 
   public ChunkRegisterWordScore(int W, int R, int C, double[] delta, TIntIntHashMap unseenCounts, String score) {
@@ -52,36 +84,78 @@ public class ChunkRegisterWordScore {
 
     this.score = score;
 
-    // allocate space for counts
+    // allocate space for counts (sparse rows, since most word types
+    // only occur in a few (register, chunk) pairs)
 
-    wordRegisterChunkCounts = new int[W][R * C];
+    wordRegisterChunkCounts = new SparseCountMatrix(W, R * C);
     wordRegisterChunkCountsNorm = new int[R * C];
 
-    wordRegisterCounts = new int[W][R];
+    wordRegisterCounts = new SparseCountMatrix(W, R);
     wordRegisterCountsNorm = new int[R];
+
+    registerPriorScores = new double[R];
+    registerInverseNorms = new double[R];
+
+    chunkPriorWeights = new double[R * C];
+    chunkInverseNorms = new double[R * C];
+
+    countHistogram = new CountHistogram();
+
+    if (unseenCounts != null) {
+
+      unseenScales = new double[W];
+
+      for (int w=0; w<W; w++)
+        unseenScales[w] = unseenCounts.containsKey(w) ? 1.0 / unseenCounts.get(w) : 1.0;
+    }
+
+    updateCoefficients();
   }
 
-  public double getScore(int w, int r, int c) {
+  private void updateCoefficients(int r, int index) {
 
-    double score = 1.0 / W;
+    registerInverseNorms[r] = 1.0 / (wordRegisterCountsNorm[r] + delta[0]);
+    registerPriorScores[r] = delta[0] / W * registerInverseNorms[r];
 
-    int index = (r * C) + c;
+    chunkInverseNorms[index] = 1.0 / (wordRegisterChunkCountsNorm[index] + delta[1]);
+    chunkPriorWeights[index] = delta[1] * chunkInverseNorms[index];
+  }
 
-    int nwr = wordRegisterCounts[w][r];
-    int nr = wordRegisterCountsNorm[r];
+  // this must be called whenever delta changes
 
-    score *= delta[0] / (nr + delta[0]);
-    score += nwr / (nr + delta[0]);
+  public void updateCoefficients() {
 
-    int nwrc = wordRegisterChunkCounts[w][index];
-    int nrc = wordRegisterChunkCountsNorm[index];
+    for (int r=0; r<R; r++)
+      for (int c=0; c<C; c++)
+        updateCoefficients(r, (r * C) + c);
+  }
+
+  private int chunkCount(int w, int index) {
+
+    if (wordRegisterChunkCountsTest == null)
+      return wordRegisterChunkCounts.get(w, index);
+    else
+      return wordRegisterChunkCounts.get(w, index) + wordRegisterChunkCountsTest.get(w, index);
+  }
+
+  private int registerCount(int w, int r) {
 
-    score *= delta[1] / (nrc + delta[1]);
-    score += nwrc / (nrc + delta[1]);
+    if (wordRegisterCountsTest == null)
+      return wordRegisterCounts.get(w, r);
+    else
+      return wordRegisterCounts.get(w, r) + wordRegisterCountsTest.get(w, r);
+  }
+
+  public double getScore(int w, int r, int c) {
+
+    int index = (r * C) + c;
+
+    double score = registerPriorScores[r] + registerCount(w, r) * registerInverseNorms[r];
 
-    if (unseenCounts != null)
-      if (unseenCounts.containsKey(w))
-        score /= (double) unseenCounts.get(w);
+    score = score * chunkPriorWeights[index] + chunkCount(w, index) * chunkInverseNorms[index];
+
+    if (unseenScales != null)
+      score *= unseenScales[w];
 
     return score;
   }
@@ -96,32 +170,125 @@ public class ChunkRegisterWordScore {
       return 0.0;
     else {
 
-      double score = (double) wordRegisterChunkCounts[w][index] / (double) nrc;
+      double score = (double) chunkCount(w, index) / (double) nrc;
 
-      if (unseenCounts != null)
-        if (unseenCounts.containsKey(w))
-          score /= (double) unseenCounts.get(w);
+      if (unseenScales != null)
+        score *= unseenScales[w];
 
       return score;
     }
   }
 
+  // log of the probability of adding a group of tokens to register r
+  // one at a time, up to the unseen-count factors (which are the same
+  // for every register) -- counts[i] is the number of tokens of type
+  // words[i] in chunk chunks[i], and the (word, chunk) pairs must be
+  // distinct and sorted by word. The tokens are added group by group
+  // and the counts are not changed, so different registers can be
+  // scored independently.
+  //
+  // Within a group N_{w|r} and N_{.|r} only change when the group's
+  // first token opens a new chunk (minimal path assumption), so the
+  // rest of the group is a single log-gamma ratio; otherwise every
+  // token changes them and the group is scored token by token.
+  // chunkCounts is scratch space of length at least C.
+
+  public double getLogScore(int[] words, int[] chunks, int[] counts, int numGroups, int r, int[] chunkCounts) {
+
+    boolean minimal = score.equals("minimal");
+
+    int nr = wordRegisterCountsNorm[r];
+
+    Arrays.fill(chunkCounts, 0, C, 0); // # of tokens added to each chunk
+
+    double logScore = 0.0;
+
+    int wordOffset = 0; // # of increments to N_{w|r} for the current word
+    int registerOffset = 0; // # of increments to N_{.|r}
+
+    for (int i=0; i<numGroups; i++) {
+
+      int w = words[i];
+      int c = chunks[i];
+      int m = counts[i];
+
+      if ((i == 0) || (words[i-1] != w))
+        wordOffset = 0;
+
+      int nwr = registerCount(w, r);
+      int nwrc = chunkCount(w, (r * C) + c);
+
+      if (minimal) {
+
+        double base = delta[1] * (nwr + wordOffset + delta[0] / W) / (nr + registerOffset + delta[0]);
+
+        if (nwrc == 0) {
+
+          logScore += Math.log(base);
+
+          wordOffset++;
+          registerOffset++;
+
+          base = delta[1] * (nwr + wordOffset + delta[0] / W) / (nr + registerOffset + delta[0]);
+
+          logScore += LogGamma.ratio(base + 1, m - 1);
+        }
+        else
+          logScore += LogGamma.ratio(base + nwrc, m);
+      }
+      else
+        for (int k=0; k<m; k++) {
+
+          double base = delta[1] * (nwr + wordOffset + delta[0] / W) / (nr + registerOffset + delta[0]);
+
+          logScore += Math.log(base + nwrc + k);
+
+          wordOffset++;
+          registerOffset++;
+        }
+
+      chunkCounts[c] += m;
+    }
+
+    for (int c=0; c<C; c++)
+      logScore -= LogGamma.ratio(wordRegisterChunkCountsNorm[(r * C) + c] + delta[1], chunkCounts[c]);
+
+    return logScore;
+  }
+
   public void incrementCounts(int w, int r, int c) {
 
     int index = (r * C) + c;
 
-    int oldCount = wordRegisterChunkCounts[w][index]++;
+    int oldCount;
+
+    if (wordRegisterChunkCountsTest == null)
+      oldCount = wordRegisterChunkCounts.increment(w, index);
+    else
+      oldCount = wordRegisterChunkCounts.get(w, index) + wordRegisterChunkCountsTest.add(w, index, 1);
+
     wordRegisterChunkCountsNorm[index]++;
 
-    if (score.equals("minimal")) {
-      if (oldCount == 0) {
-        wordRegisterCounts[w][r]++;
-        wordRegisterCountsNorm[r]++;
-      }
-    }
-    else {
-      wordRegisterCounts[w][r]++;
+    if (!score.equals("minimal") || (oldCount == 0)) {
+
+      int oldRegisterCount;
+
+      if (wordRegisterCountsTest == null)
+        oldRegisterCount = wordRegisterCounts.increment(w, r);
+      else
+        oldRegisterCount = wordRegisterCounts.get(w, r) + wordRegisterCountsTest.add(w, r, 1);
+
       wordRegisterCountsNorm[r]++;
+
+      if (countHistogram != null)
+        countHistogram.move(oldRegisterCount, oldRegisterCount + 1);
+    }
+
+    updateCoefficients(r, index);
+
+    if ((dirty != null) && !dirty[w]) {
+      dirty[w] = true;
+      dirtyRows[numDirtyRows++] = w;
     }
   }
 
@@ -129,18 +296,173 @@ public class ChunkRegisterWordScore {
 
     int index = (r * C) + c;
 
-    int oldCount = wordRegisterChunkCounts[w][index]--;
+    int oldCount;
+
+    if (wordRegisterChunkCountsTest == null)
+      oldCount = wordRegisterChunkCounts.decrement(w, index);
+    else
+      oldCount = wordRegisterChunkCounts.get(w, index) + wordRegisterChunkCountsTest.add(w, index, -1);
+
     wordRegisterChunkCountsNorm[index]--;
 
-    if (score.equals("minimal")) {
-      if (oldCount == 1) {
-        wordRegisterCounts[w][r]--;
-        wordRegisterCountsNorm[r]--;
+    if (!score.equals("minimal") || (oldCount == 1)) {
+
+      int oldRegisterCount;
+
+      if (wordRegisterCountsTest == null)
+        oldRegisterCount = wordRegisterCounts.decrement(w, r);
+      else
+        oldRegisterCount = wordRegisterCounts.get(w, r) + wordRegisterCountsTest.add(w, r, -1);
+
+      wordRegisterCountsNorm[r]--;
+
+      if (countHistogram != null)
+        countHistogram.move(oldRegisterCount, oldRegisterCount - 1);
+    }
+
+    updateCoefficients(r, index);
+
+    if ((dirty != null) && !dirty[w]) {
+      dirty[w] = true;
+      dirtyRows[numDirtyRows++] = w;
+    }
+  }
+
+  // creates a copy of the counts for a worker thread -- the
+  // hyperparameters are shared with this score function
+
+  public ChunkRegisterWordScore copy() {
+
+    ChunkRegisterWordScore copy = new ChunkRegisterWordScore(W, R, C, delta, unseenCounts, score);
+
+    copy.wordRegisterChunkCounts.copyFrom(wordRegisterChunkCounts);
+    copy.wordRegisterCounts.copyFrom(wordRegisterCounts);
+
+    System.arraycopy(wordRegisterChunkCountsNorm, 0, copy.wordRegisterChunkCountsNorm, 0, R * C);
+    System.arraycopy(wordRegisterCountsNorm, 0, copy.wordRegisterCountsNorm, 0, R);
+
+    copy.countHistogram = null;
+
+    copy.dirty = new boolean[W];
+    copy.dirtyRows = new int[W];
+
+    return copy;
+  }
+
+  // creates a frozen copy of the counts and the hyperparameters, for
+  // computing diagnostics while sampling carries on with this one
+
+  public ChunkRegisterWordScore snapshot() {
+
+    ChunkRegisterWordScore snapshot = new ChunkRegisterWordScore(W, R, C, delta.clone(), unseenCounts, score);
+
+    snapshot.wordRegisterChunkCounts.copyFrom(wordRegisterChunkCounts);
+    snapshot.wordRegisterCounts.copyFrom(wordRegisterCounts);
+
+    System.arraycopy(wordRegisterChunkCountsNorm, 0, snapshot.wordRegisterChunkCountsNorm, 0, R * C);
+    System.arraycopy(wordRegisterCountsNorm, 0, snapshot.wordRegisterCountsNorm, 0, R);
+
+    snapshot.countHistogram.copyFrom(countHistogram);
+
+    snapshot.updateCoefficients();
+
+    return snapshot;
+  }
+
+  // adds the changes made to each copy since the last merge to these
+  // counts and then resets every copy to the merged counts
+
+  public void merge(ChunkRegisterWordScore[] copies) {
+
+    boolean[] changed = new boolean[W];
+
+    TIntArrayList rows = new TIntArrayList();
+
+    for (ChunkRegisterWordScore copy : copies)
+      for (int i=0; i<copy.numDirtyRows; i++)
+        if (!changed[copy.dirtyRows[i]]) {
+          changed[copy.dirtyRows[i]] = true;
+          rows.add(copy.dirtyRows[i]);
+        }
+
+    int[] old = new int[R * C];
+    int[] oldRegister = new int[R];
+
+    for (int i=0; i<rows.size(); i++) {
+
+      int w = rows.get(i);
+
+      wordRegisterChunkCounts.getRow(w, old);
+      wordRegisterCounts.getRow(w, oldRegister);
+
+      for (ChunkRegisterWordScore copy : copies)
+        if (copy.dirty[w])
+          for (int index=0; index<R*C; index++)
+            wordRegisterChunkCounts.add(w, index, copy.wordRegisterChunkCounts.get(w, index) - old[index]);
+
+      // under the minimal path assumption N_{w|r} counts the chunks in
+      // which w occurs, so it is recomputed rather than merged (two
+      // copies may both have added the same chunk)
+
+      if (score.equals("minimal"))
+        for (int r=0; r<R; r++) {
+
+          int nwr = 0;
+
+          for (int c=0; c<C; c++)
+            if (wordRegisterChunkCounts.get(w, (r * C) + c) > 0)
+              nwr++;
+
+          wordRegisterCountsNorm[r] += nwr - wordRegisterCounts.get(w, r);
+          wordRegisterCounts.set(w, r, nwr);
+        }
+      else {
+
+        wordRegisterCounts.getRow(w, old);
+
+        for (ChunkRegisterWordScore copy : copies)
+          if (copy.dirty[w])
+            for (int r=0; r<R; r++)
+              wordRegisterCounts.add(w, r, copy.wordRegisterCounts.get(w, r) - old[r]);
+      }
+
+      for (int r=0; r<R; r++)
+        countHistogram.move(oldRegister[r], wordRegisterCounts.get(w, r));
+
+      for (ChunkRegisterWordScore copy : copies) {
+        copy.wordRegisterChunkCounts.copyRow(w, wordRegisterChunkCounts);
+        copy.wordRegisterCounts.copyRow(w, wordRegisterCounts);
       }
     }
-    else {
-      wordRegisterCounts[w][r]--;
-      wordRegisterCountsNorm[r]--;
+
+    System.arraycopy(wordRegisterChunkCountsNorm, 0, old, 0, R * C);
+
+    for (ChunkRegisterWordScore copy : copies)
+      for (int index=0; index<R*C; index++)
+        wordRegisterChunkCountsNorm[index] += copy.wordRegisterChunkCountsNorm[index] - old[index];
+
+    if (!score.equals("minimal")) {
+
+      System.arraycopy(wordRegisterCountsNorm, 0, old, 0, R);
+
+      for (ChunkRegisterWordScore copy : copies)
+        for (int r=0; r<R; r++)
+          wordRegisterCountsNorm[r] += copy.wordRegisterCountsNorm[r] - old[r];
+    }
+
+    updateCoefficients();
+
+    for (ChunkRegisterWordScore copy : copies) {
+
+      System.arraycopy(wordRegisterChunkCountsNorm, 0, copy.wordRegisterChunkCountsNorm, 0, R * C);
+      System.arraycopy(wordRegisterCountsNorm, 0, copy.wordRegisterCountsNorm, 0, R);
+
+      copy.updateCoefficients();
+
+      for (int i=0; i<copy.numDirtyRows; i++)
+        copy.dirty[copy.dirtyRows[i]] = false;
+
+      copy.numDirtyRows = 0;
     }
   }
 
@@ -148,54 +470,122 @@ public class ChunkRegisterWordScore {
 
   public void lock() {
 
-    wordRegisterChunkCountsTrain = new int[W][];
+    if (resetToTrain)
+      return; // already locked
 
-    for (int w=0; w<W; w++)
-      wordRegisterChunkCountsTrain[w] = wordRegisterChunkCounts[w].clone();
+    wordRegisterChunkCountsTest = new CountOverlay(W, R * C);
 
     wordRegisterChunkCountsNormTrain = wordRegisterChunkCountsNorm.clone();
 
-    wordRegisterCountsTrain = new int[W][];
-
-    for (int w=0; w<W; w++)
-      wordRegisterCountsTrain[w] = wordRegisterCounts[w].clone();
+    wordRegisterCountsTest = new CountOverlay(W, R);
 
     wordRegisterCountsNormTrain = wordRegisterCountsNorm.clone();
 
     resetToTrain = true;
   }
 
+  // creates a score function for test data that shares these locked
+  // counts but keeps its own changes to them, so that several can be
+  // used at once (e.g., one per thread)
+
+  public ChunkRegisterWordScore testCopy() {
+
+    assert resetToTrain;
+
+    ChunkRegisterWordScore copy = new ChunkRegisterWordScore();
+
+    copy.W = W;
+    copy.R = R;
+    copy.C = C;
+
+    copy.delta = delta.clone();
+    copy.score = score;
+
+    copy.unseenCounts = unseenCounts;
+    copy.unseenScales = unseenScales;
+
+    copy.wordRegisterChunkCounts = wordRegisterChunkCounts;
+    copy.wordRegisterChunkCountsTest = new CountOverlay(W, R * C);
+
+    copy.wordRegisterChunkCountsNorm = wordRegisterChunkCountsNormTrain.clone();
+    copy.wordRegisterChunkCountsNormTrain = wordRegisterChunkCountsNormTrain;
+
+    copy.wordRegisterCounts = wordRegisterCounts;
+    copy.wordRegisterCountsTest = new CountOverlay(W, R);
+
+    copy.wordRegisterCountsNorm = wordRegisterCountsNormTrain.clone();
+    copy.wordRegisterCountsNormTrain = wordRegisterCountsNormTrain;
+
+    copy.countHistogram = new CountHistogram();
+    copy.countHistogram.copyFrom(countHistogram);
+
+    undoTestChanges(copy.countHistogram);
+
+    copy.registerPriorScores = new double[R];
+    copy.registerInverseNorms = new double[R];
+
+    copy.chunkPriorWeights = new double[R * C];
+    copy.chunkInverseNorms = new double[R * C];
+
+    copy.resetToTrain = true;
+
+    copy.updateCoefficients();
+
+    return copy;
+  }
+
+  // moves every register count changed since locking back to its
+  // locked count in the given count-of-counts
+
+  private void undoTestChanges(CountHistogram histogram) {
+
+    for (int k=0; k<wordRegisterCountsTest.getNumTouchedRows(); k++) {
+
+      int w = wordRegisterCountsTest.getTouchedRow(k);
+
+      int[] changes = wordRegisterCountsTest.getRow(w);
+
+      for (int r=0; r<R; r++)
+        if (changes[r] != 0)
+          histogram.move(wordRegisterCounts.get(w, r) + changes[r], wordRegisterCounts.get(w, r));
+    }
+  }
+
   public void resetCounts() {
 
     if (resetToTrain) {
 
-      for (int w=0; w<W; w++)
-        wordRegisterChunkCounts[w] = wordRegisterChunkCountsTrain[w].clone();
+      undoTestChanges(countHistogram);
 
-      wordRegisterChunkCountsNorm = wordRegisterChunkCountsNormTrain.clone();
+      wordRegisterChunkCountsTest.clear();
 
-      for (int w=0; w<W; w++)
-        wordRegisterCounts[w] = wordRegisterCountsTrain[w].clone();
+      System.arraycopy(wordRegisterChunkCountsNormTrain, 0, wordRegisterChunkCountsNorm, 0, R * C);
 
-      wordRegisterCountsNorm = wordRegisterCountsNormTrain.clone();
+      wordRegisterCountsTest.clear();
+
+      System.arraycopy(wordRegisterCountsNormTrain, 0, wordRegisterCountsNorm, 0, R);
     }
     else {
 
-      for (int w=0; w<W; w++)
-        Arrays.fill(wordRegisterChunkCounts[w], 0);
+      wordRegisterChunkCounts.clear();
 
       Arrays.fill(wordRegisterChunkCountsNorm, 0);
 
-      for (int w=0; w<W; w++)
-        Arrays.fill(wordRegisterCounts[w], 0);
+      wordRegisterCounts.clear();
 
       Arrays.fill(wordRegisterCountsNorm, 0);
+
+      countHistogram.clear();
     }
+
+    updateCoefficients();
   }
 
-  // computes log prob using the predictive distribution
+  // computes log prob using the predictive distribution, replaying
+  // the corpus -- only needed to sample delta when the counts aren't
+  // minimal
 
-  public double logProb(Corpus docs, int[][] x) {
+  private double logProb(Corpus docs, Assignments z) {
 
     double logProb = 0.0;
 
@@ -203,21 +593,19 @@ public class ChunkRegisterWordScore {
 
     int D = docs.size();
 
+    int[] offsets = docs.getOffsets();
+    int[] tokens = docs.getTokens();
+    int[] chunks = docs.getChunks();
+
     for (int d=0; d<D; d++) {
 
       int r = docs.getDocument(d).getRegister();
 
-      int[] fs = docs.getDocument(d).getTokens();
+      for (int n=offsets[d]; n<offsets[d+1]; n++) {
 
-      int nd = fs.length;
-
-      int[] cs = docs.getDocument(d).getChunks();
-
-      for (int i=0; i<nd; i++) {
-
-        int w = fs[i];
-        int k = x[d][i];
-        int c = cs[i];
+        int w = tokens[n];
+        int k = z.getSwitch(n);
+        int c = chunks[n];
 
         if (k == 1) {
 
@@ -252,22 +640,106 @@ public class ChunkRegisterWordScore {
     }
   }
 
-  private double logProb(Corpus docs, int[][] x, double[] newLogDelta) {
+  // log P(w, tables | x, r, c) as a function of log delta, up to
+  // terms that do not depend on delta. Under the minimal path
+  // assumption the table counts are fixed by the word counts, so delta
+  // can be sampled given the tables, in closed form: the chunk level
+  // contributes d1^(# of tables) / prod_{r,c} (d1)_{N_{.|r,c}}, and the
+  // register level is a Dirichlet-multinomial in the table counts
+  // N_{w|r}, summed via their count-of-counts. Otherwise the corpus is
+  // replayed.
+
+  private double logProb(Corpus docs, Assignments z, double[] newLogDelta) {
+
+    if (score.equals("minimal")) {
+
+      double d0 = Math.exp(newLogDelta[0]);
+      double d1 = Math.exp(newLogDelta[1]);
+
+      double logProb = countHistogram.logGammaRatioSum(d0 / W);
+
+      int numTables = 0;
+
+      for (int r=0; r<R; r++) {
+        logProb -= LogGamma.ratio(d0, wordRegisterCountsNorm[r]);
+        numTables += wordRegisterCountsNorm[r];
+      }
+
+      for (int index=0; index<R*C; index++)
+        logProb -= LogGamma.ratio(d1, wordRegisterChunkCountsNorm[index]);
+
+      return logProb + numTables * Math.log(d1);
+    }
 
     double[] oldDelta = delta.clone();
 
     for (int i=0; i<delta.length; i++)
       delta[i] = Math.exp(newLogDelta[i]);
 
-    double logProb = logProb(docs, x);
+    double logProb = logProb(docs, z);
 
     for (int i=0; i<delta.length; i++)
       delta[i] = oldDelta[i];
 
+    updateCoefficients();
+
     return logProb;
   }
 
-  public void sampleDelta(Corpus docs, int[][] x, LogRandoms rng, int numIterations, double stepSize) {
+  // computes log P(w, tables | x, r, c) in closed form from the current
+  // counts, under the minimal path assumption: the terms above plus,
+  // for each word type and (register, chunk) pair, log Gamma(N_{w|r,c})
+  // for the tokens that join the type's one table, and the unseen
+  // types' scales. The per-type sums are computed in parallel.
+
+  public double logProb(ForkJoinPool pool) {
+
+    assert score.equals("minimal");
+
+    double logProb = logProb(null, null, new double[] { Math.log(delta[0]), Math.log(delta[1]) });
+
+    logProb += ParallelSum.sum(pool, W, new ParallelSum.Terms() {
+        public double sum(int start, int end) {
+
+          double sum = 0.0;
+
+          for (int w=start; w<end; w++) {
+
+            int nw = 0;
+
+            if ((wordRegisterChunkCountsTest != null) && (wordRegisterChunkCountsTest.getRow(w) != null)) {
+
+              for (int index=0; index<R*C; index++) {
+
+                int n = chunkCount(w, index);
+
+                if (n > 0) {
+                  sum += LogGamma.ratio(1.0, n - 1);
+                  nw += n;
+                }
+              }
+            }
+            else
+              for (int k=0; k<wordRegisterChunkCounts.getNumNonZero(w); k++) {
+
+                int n = wordRegisterChunkCounts.getNonZeroCount(w, k);
+
+                sum += LogGamma.ratio(1.0, n - 1);
+                nw += n;
+              }
+
+            if (unseenScales != null)
+              sum += nw * Math.log(unseenScales[w]);
+          }
+
+          return sum;
+        }
+      });
+
+    return logProb;
+  }
+
+  public void sampleDelta(Corpus docs, Assignments z, LogRandoms rng, int numIterations, double stepSize) {
 
     int I = delta.length;
 
@@ -284,7 +756,7 @@ public class ChunkRegisterWordScore {
 
     for (int s=0; s<numIterations; s++) {
 
-      double lp = logProb(docs, x, rawParam) + rawParamSum;
+      double lp = logProb(docs, z, rawParam) + rawParamSum;
       double lpNew = Math.log(rng.nextUniform()) + lp;
 
       for (int i=0; i<I; i++) {
@@ -304,7 +776,7 @@ public class ChunkRegisterWordScore {
           rawParamNewSum += rawParamNew[i];
         }
 
-        if (logProb(docs, x, rawParamNew) + rawParamNewSum > lpNew)
+        if (logProb(docs, z, rawParamNew) + rawParamNewSum > lpNew)
           break;
         else
           for (int i=0; i<I; i++)
@@ -320,14 +792,21 @@ public class ChunkRegisterWordScore {
 
     for (int i=0; i<I; i++)
       delta[i] = Math.exp(rawParam[i]);
+
+    updateCoefficients();
   }
 
-  public void print(Alphabet dict, String fileName) {
+  public void print(Alphabet dict, String fileName, ForkJoinPool pool) {
 
-    print(dict, 0.0, -1, false, fileName);
+    print(dict, 0.0, -1, false, fileName, pool);
   }
 
-  public void print(Alphabet dict, double threshold, int numWords, boolean summary, String fileName) {
+  // prints the numWords most probable words (all of them, if numWords
+  // is negative) of each chunk's registers, selecting them for a block
+  // of (chunk, register) pairs at a time, in parallel if pool isn't
+  // null -- pair cr is chunk cr / R, register cr % R
+
+  public void print(Alphabet dict, double threshold, int numWords, boolean summary, String fileName, ForkJoinPool pool) {
 
     assert dict.size() == W;
 
@@ -345,38 +824,51 @@ public class ChunkRegisterWordScore {
           pw.println("#chunk register typeindex type proportion");
       }
 
-      Probability[] probs = new Probability[W];
+      if ((numWords > W) || (numWords < 0))
+        numWords = W;
 
-      for (int c=0; c<C; c++) {
-        for (int r=0; r<R; r++) {
-          for (int w=0; w<W; w++)
-            probs[w] = new Probability(w, getScore(w, r, c));
+      int blockSize = Math.min(C * R, TopK.getBlockSize(numWords));
 
-          Arrays.sort(probs);
+      TopK[] selected = new TopK[blockSize];
 
-          if ((numWords > W) || (numWords < 0))
-            numWords = W;
+      for (int i=0; i<blockSize; i++)
+        selected[i] = new TopK(numWords, threshold);
 
-          StringBuffer line = new StringBuffer();
+      TopK.Rows rows = new TopK.Rows() {
+          public double getScore(int cr, int w) {
+            return ChunkRegisterWordScore.this.getScore(w, cr % R, cr / R);
+          }
+        };
+
+      for (int start=0; start<C*R; start+=blockSize) {
 
-          for (int i=0; i<numWords; i++) {
+        int end = Math.min(start + blockSize, C * R);
 
-            // break if there are no more words whose proportion is
-            // greater than zero or threshold...
+        TopK.select(pool, rows, W, start, end, true, selected);
 
-            if ((probs[i].prob == 0) || (probs[i].prob < threshold))
-              break;
+        for (int cr=start; cr<end; cr++) {
+
+          int c = cr / R;
+          int r = cr % R;
+
+          TopK topK = selected[cr - start];
+
+          StringBuffer line = new StringBuffer();
+
+          for (int i=0; i<topK.size(); i++) {
+
+            int w = topK.getIndex(i);
 
             if ((fileName == null) || summary){
-              line.append(dict.lookupObject(probs[i].index));
+              line.append(dict.lookupObject(w));
               line.append(" ");
             }
             else {
               pw.print(c); pw.print(" ");
               pw.print(r); pw.print(" ");
-              pw.print(probs[i].index); pw.print(" ");
-              pw.print(dict.lookupObject(probs[i].index)); pw.print(" ");
-              pw.print(probs[i].prob); pw.println();
+              pw.print(w); pw.print(" ");
+              pw.print(dict.lookupObject(w)); pw.print(" ");
+              pw.print(topK.getScore(i)); pw.println();
             }
           }
 
@@ -387,6 +879,7 @@ public class ChunkRegisterWordScore {
               pw.println("Chunk " + c + ", register " + r + ": " + string);
         }
       }
+
       if (fileName != null)
         pw.close();
     }
@@ -8,11 +8,27 @@ import gnu.trove.*;
 
 import cc.mallet.types.*;
 
+// documents stored as a few large arrays rather than one small array
+// per document -- document d's tokens are tokens[offsets[d]] through
+// tokens[offsets[d+1]-1], its chunks are the same positions of chunks,
+// and the samplers keep their assignments in arrays indexed by the
+// same global positions, so a sweep reads every array in order.
+// Documents are views onto these arrays.
+
 public class Corpus {
 
   private Alphabet wordDict;
   private TIntIntHashMap unseenCounts;
-  private ArrayList<Document> documents;
+
+  private int numDocs, numTokens;
+
+  private int[] offsets; // numDocs + 1 entries
+  private int[] tokens;
+  private int[] chunks;
+  private int[] registers;
+  private String[] sources;
+
+  private Document[] documents;
 
   public Corpus(Alphabet wordDict, TIntIntHashMap unseenCounts) {
 
@@ -20,32 +36,252 @@ public class Corpus {
 
     this.unseenCounts = unseenCounts;
 
-    this.documents = new ArrayList<Document>();
+    numDocs = 0;
+    numTokens = 0;
+
+    offsets = new int[] { 0 };
+    tokens = new int[0];
+    chunks = new int[0];
+    registers = new int[0];
+    sources = new String[0];
+
+    documents = new Document[0];
   }
 
+  // shuffles the order of the documents
+
   public void permute() {
 
-    Collections.shuffle(documents);
+    Document[] shuffled = Arrays.copyOf(documents, numDocs);
+
+    Collections.shuffle(Arrays.asList(shuffled));
+
+    int[] oldOffsets = offsets;
+    int[] oldTokens = tokens;
+    int[] oldChunks = chunks;
+    int[] oldRegisters = registers;
+    String[] oldSources = sources;
+
+    offsets = new int[numDocs + 1];
+    tokens = new int[numTokens];
+    chunks = new int[numTokens];
+    registers = new int[numDocs];
+    sources = new String[numDocs];
+
+    for (int d=0; d<numDocs; d++) {
+
+      int e = shuffled[d].getIndex();
+
+      int nd = oldOffsets[e+1] - oldOffsets[e];
+
+      offsets[d+1] = offsets[d] + nd;
+
+      System.arraycopy(oldTokens, oldOffsets[e], tokens, offsets[d], nd);
+      System.arraycopy(oldChunks, oldOffsets[e], chunks, offsets[d], nd);
+
+      registers[d] = oldRegisters[e];
+      sources[d] = oldSources[e];
+    }
+  }
+
+  // makes room for a total of numDocs documents and numTokens tokens
+
+  public void ensureCapacity(int numDocs, int numTokens) {
+
+    if (numDocs > documents.length) {
+      offsets = Arrays.copyOf(offsets, numDocs + 1);
+      registers = Arrays.copyOf(registers, numDocs);
+      sources = Arrays.copyOf(sources, numDocs);
+      documents = Arrays.copyOf(documents, numDocs);
+    }
+
+    if (numTokens > tokens.length) {
+      tokens = Arrays.copyOf(tokens, numTokens);
+      chunks = Arrays.copyOf(chunks, numTokens);
+    }
+  }
+
+  // appends a document -- chunks may be null, in which case every
+  // token is in chunk 0
+
+  public void add(String source, int[] docTokens, int[] docChunks) {
+
+    int nd = docTokens.length;
+
+    if (docChunks != null)
+      assert docChunks.length == nd;
+
+    if (numDocs == documents.length)
+      ensureCapacity(Math.max(16, 2 * numDocs), numTokens);
+
+    if (numTokens + nd > tokens.length)
+      ensureCapacity(numDocs, Math.max(numTokens + nd, 2 * tokens.length));
+
+    System.arraycopy(docTokens, 0, tokens, numTokens, nd);
+
+    if (docChunks != null)
+      System.arraycopy(docChunks, 0, chunks, numTokens, nd);
+    else
+      Arrays.fill(chunks, numTokens, numTokens + nd, 0);
+
+    numTokens += nd;
+
+    offsets[numDocs + 1] = numTokens;
+    registers[numDocs] = -1;
+    sources[numDocs] = source;
+    documents[numDocs] = new Document(this, numDocs);
+
+    numDocs++;
+  }
+
+  // appends documents with the given sources and lengths, leaving
+  // their tokens and chunks to be filled in by the caller -- new
+  // document d (counting from 0) starts at getOffsets()[size() + d],
+  // where size() is taken before the call
+
+  public void addDocuments(String[] newSources, int[] lengths) {
+
+    assert newSources.length == lengths.length;
+
+    int numNew = lengths.length;
+
+    long total = numTokens;
+
+    for (int length : lengths)
+      total += length;
+
+    if (total > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("Too many tokens: " + total);
+
+    ensureCapacity(numDocs + numNew, (int) total);
+
+    for (int d=0; d<numNew; d++) {
+
+      numTokens += lengths[d];
+
+      offsets[numDocs + 1] = numTokens;
+      registers[numDocs] = -1;
+      sources[numDocs] = newSources[d];
+      documents[numDocs] = new Document(this, numDocs);
+
+      numDocs++;
+    }
   }
 
-  public void add(Document d) {
+  // replaces every word type that occurs fewer than minCount times with
+  // a shared "unseen" type for its frequency, so all the types that
+  // occur once become one type, all those that occur twice another,
+  // and so on. The remaining types keep their order and the unseen
+  // types come after them. unseenCounts records how many types each
+  // unseen type stands for, and the score functions spread its
+  // probability evenly over them, so they still give a distribution
+  // over the original vocabulary. This is a different model, though:
+  // the pruned types share one set of topic counts, which changes the
+  // log probability (on synthetic Zipfian data it goes up, on training
+  // and held-out documents alike), so runs with different min counts
+  // shouldn't be compared by their log probabilities as if only the
+  // running time differed. Returns the # of types pruned.
+
+  public int prune(int minCount) {
+
+    int W = wordDict.size();
+
+    int[] counts = new int[W];
+
+    for (int n=0; n<numTokens; n++)
+      counts[tokens[n]]++;
+
+    PrunedAlphabet prunedDict = new PrunedAlphabet();
+
+    int[] remap = new int[W];
+
+    int[] numTypes = new int[minCount]; // # of types that occur c times, for c < minCount
+
+    for (int w=0; w<W; w++) {
+
+      if (counts[w] >= minCount)
+        remap[w] = prunedDict.lookupIndex(wordDict.lookupObject(w));
+      else
+        numTypes[counts[w]]++;
+    }
+
+    int numKept = prunedDict.size();
+
+    unseenCounts = new TIntIntHashMap();
+
+    int[] unseenTypes = new int[minCount];
+
+    for (int c=1; c<minCount; c++)
+      if (numTypes[c] > 0) {
+        unseenTypes[c] = prunedDict.lookupIndex("<unseen-" + c + ">");
+        unseenCounts.put(unseenTypes[c], numTypes[c]);
+      }
+
+    long numPrunedTokens = 0;
+
+    for (int w=0; w<W; w++)
+      if ((counts[w] > 0) && (counts[w] < minCount)) {
+        remap[w] = unseenTypes[counts[w]];
+        prunedDict.prune((String) wordDict.lookupObject(w), remap[w]);
+        numPrunedTokens += counts[w];
+      }
+
+    for (int n=0; n<numTokens; n++)
+      tokens[n] = remap[tokens[n]];
 
-    documents.add(d);
+    wordDict = prunedDict;
+
+    System.out.println("Pruned " + prunedDict.getNumPruned() + " of " + W + " types (" + numPrunedTokens + " of " + numTokens + " tokens) into " + (prunedDict.size() - numKept) + " unseen types, leaving " + prunedDict.size() + " types");
+
+    return prunedDict.getNumPruned();
   }
 
   public int size() {
 
-    return documents.size();
+    return numDocs;
+  }
+
+  public int getNumTokens() {
+
+    return numTokens;
   }
 
   public Document getDocument(int d) {
 
-    return documents.get(d);
+    return documents[d];
+  }
+
+  // the global arrays -- only the first size() + 1 offsets and
+  // getNumTokens() tokens and chunks are in use
+
+  public int[] getOffsets() {
+
+    return offsets;
+  }
+
+  public int[] getTokens() {
+
+    return tokens;
   }
 
-  public ArrayList<Document> getDocuments() {
+  public int[] getChunks() {
 
-    return documents;
+    return chunks;
+  }
+
+  public String getSource(int d) {
+
+    return sources[d];
+  }
+
+  public void setRegister(int d, int register) {
+
+    registers[d] = register;
+  }
+
+  public int getRegister(int d) {
+
+    return registers[d];
   }
 
   public Alphabet getWordDict() {
@@ -68,7 +304,7 @@ public class Corpus {
     return this.unseenCounts.get(index);
   }
 
-  public void printFeatures(int[][] z, String fileName) {
+  public void printFeatures(Assignments z, String fileName) {
 
     try {
 
@@ -76,22 +312,18 @@ public class Corpus {
 
       pw.println("#doc source pos typeindex type feature");
 
-      for (int d=0; d<documents.size(); d++) {
-
-        int[] fs = documents.get(d).getTokens();
-
-        int nd = fs.length;
+      for (int d=0; d<numDocs; d++) {
 
-        for (int i=0; i<nd; i++) {
+        for (int n=offsets[d]; n<offsets[d+1]; n++) {
 
-          int w = fs[i];
+          int w = tokens[n];
 
           pw.print(d); pw.print(" ");
-          pw.print(documents.get(d).getSource()); pw.print(" ");
-          pw.print(i); pw.print(" ");
+          pw.print(sources[d]); pw.print(" ");
+          pw.print(n - offsets[d]); pw.print(" ");
           pw.print(w); pw.print(" ");
           pw.print(wordDict.lookupObject(w)); pw.print(" ");
-          pw.print(z[d][i]); pw.println();
+          pw.print(z.getTopic(n)); pw.println();
         }
       }
 
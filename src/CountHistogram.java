@@ -0,0 +1,97 @@
+package edu.umass.cs.wallach.cluster;
+
+import java.util.*;
+
+// count-of-counts for a set of cells (e.g., the cells of a count
+// matrix): getNumCells(n) is the number of cells whose count is n, for
+// n > 0. Sums over cells of a function of their counts, such as the
+// log-gamma ratios in a Dirichlet-multinomial likelihood, then cost
+// O(largest count) rather than O(# of tokens). Cells with a count of
+// zero are not recorded. A histogram may also hold the difference
+// between two histograms, in which case bins can be negative.
+
+public class CountHistogram {
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  private int[] numCells; // numCells[n] = # of cells with count n
+
+  private int maxCount; // no nonzero bins above this
+
+  public CountHistogram() {
+
+    numCells = new int[INITIAL_CAPACITY];
+    maxCount = 0;
+  }
+
+  private void ensureCapacity(int count) {
+
+    if (count >= numCells.length)
+      numCells = Arrays.copyOf(numCells, Math.max(2 * numCells.length, count + 1));
+  }
+
+  public int getNumCells(int count) {
+
+    return (count < numCells.length) ? numCells[count] : 0;
+  }
+
+  public int getMaxCount() {
+
+    return maxCount;
+  }
+
+  // records that a cell's count changed from oldCount to newCount
+
+  public void move(int oldCount, int newCount) {
+
+    ensureCapacity(Math.max(oldCount, newCount));
+
+    if (oldCount > 0)
+      numCells[oldCount]--;
+
+    if (newCount > 0)
+      numCells[newCount]++;
+
+    // a difference of histograms can have a nonzero bin at oldCount
+
+    maxCount = Math.max(maxCount, Math.max(oldCount, newCount));
+  }
+
+  // adds every bin of another histogram to this one
+
+  public void add(CountHistogram other) {
+
+    ensureCapacity(other.maxCount);
+
+    for (int n=1; n<=other.maxCount; n++)
+      numCells[n] += other.numCells[n];
+
+    maxCount = Math.max(maxCount, other.maxCount);
+  }
+
+  public void copyFrom(CountHistogram src) {
+
+    numCells = src.numCells.clone();
+    maxCount = src.maxCount;
+  }
+
+  public void clear() {
+
+    Arrays.fill(numCells, 0, maxCount + 1, 0);
+    maxCount = 0;
+  }
+
+  // sum over cells of log (Gamma(a + n) / Gamma(a)), where n is the
+  // cell's count
+
+  public double logGammaRatioSum(double a) {
+
+    double sum = 0.0;
+
+    for (int n=1; n<=maxCount; n++)
+      if (numCells[n] != 0)
+        sum += numCells[n] * LogGamma.ratio(a, n);
+
+    return sum;
+  }
+}
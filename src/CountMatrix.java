@@ -0,0 +1,136 @@
+package edu.umass.cs.wallach.cluster;
+
+import java.util.*;
+
+// a dense numRows x numColumns matrix of counts stored row by row in
+// a few large int arrays rather than one array per row. Matrices with
+// more than MAX_SEGMENT_SIZE cells are split into segments, each
+// holding a power-of-two number of whole rows, so the number of cells
+// isn't limited by the maximum array length.
+
+public class CountMatrix {
+
+  private static final int MAX_SEGMENT_SIZE = 1 << 30;
+
+  private int numRows, numColumns;
+
+  private int shift, mask; // row -> segment and offset
+
+  private int[][] segments;
+
+  public CountMatrix(int numRows, int numColumns) {
+
+    this.numRows = numRows;
+    this.numColumns = numColumns;
+
+    // largest power of two number of rows per segment
+
+    shift = 0;
+
+    while ((shift < 30) && ((long) numColumns << (shift + 1) <= MAX_SEGMENT_SIZE) && ((1 << shift) < numRows))
+      shift++;
+
+    mask = (1 << shift) - 1;
+
+    int numSegments = (numRows + mask) >>> shift;
+
+    segments = new int[Math.max(numSegments, 1)][];
+
+    for (int s=0; s<numSegments; s++)
+      segments[s] = new int[Math.min(mask + 1, numRows - (s << shift)) * numColumns];
+
+    if (numSegments == 0)
+      segments[0] = new int[0];
+  }
+
+  public int getNumRows() {
+
+    return numRows;
+  }
+
+  public int getNumColumns() {
+
+    return numColumns;
+  }
+
+  public int get(int row, int column) {
+
+    return segments[row >>> shift][((row & mask) * numColumns) + column];
+  }
+
+  public void set(int row, int column, int value) {
+
+    segments[row >>> shift][((row & mask) * numColumns) + column] = value;
+  }
+
+  // adds value to the count and returns the old count
+
+  public int add(int row, int column, int value) {
+
+    int[] segment = segments[row >>> shift];
+    int index = ((row & mask) * numColumns) + column;
+
+    int oldValue = segment[index];
+    segment[index] = oldValue + value;
+
+    return oldValue;
+  }
+
+  public int increment(int row, int column) {
+
+    return add(row, column, 1);
+  }
+
+  public int decrement(int row, int column) {
+
+    return add(row, column, -1);
+  }
+
+  // copies a row into dest[0, numColumns)
+
+  public void getRow(int row, int[] dest) {
+
+    System.arraycopy(segments[row >>> shift], (row & mask) * numColumns, dest, 0, numColumns);
+  }
+
+  // copies src[0, numColumns) into a row
+
+  public void setRow(int row, int[] src) {
+
+    System.arraycopy(src, 0, segments[row >>> shift], (row & mask) * numColumns, numColumns);
+  }
+
+  // copies a row of another matrix with the same shape
+
+  public void copyRow(int row, CountMatrix src) {
+
+    assert (src.numRows == numRows) && (src.numColumns == numColumns);
+
+    System.arraycopy(src.segments[row >>> shift], (row & mask) * numColumns, segments[row >>> shift], (row & mask) * numColumns, numColumns);
+  }
+
+  // copies every count of another matrix with the same shape
+
+  public void copyFrom(CountMatrix src) {
+
+    assert (src.numRows == numRows) && (src.numColumns == numColumns);
+
+    for (int s=0; s<segments.length; s++)
+      System.arraycopy(src.segments[s], 0, segments[s], 0, segments[s].length);
+  }
+
+  public CountMatrix copy() {
+
+    CountMatrix copy = new CountMatrix(numRows, numColumns);
+
+    copy.copyFrom(this);
+
+    return copy;
+  }
+
+  public void clear() {
+
+    for (int s=0; s<segments.length; s++)
+      Arrays.fill(segments[s], 0);
+  }
+}
@@ -0,0 +1,242 @@
+package edu.umass.cs.wallach.cluster;
+
+import java.lang.management.*;
+import java.util.*;
+
+import cc.mallet.types.*;
+
+// compares the sweep time and garbage collection time of a dense
+// collapsed Gibbs sweep over an instance list when the word-topic
+// counts are stored as a jagged int[W][T] array (the previous layout)
+// and as a CountMatrix. Each sweep does the same work as
+// LDA.sampleTopics, including its per-token allocation.
+
+public class CountMatrixBenchmark {
+
+  private static final String[] LAYOUTS = { "jagged", "flat" };
+
+  private static long getGCTime() {
+
+    long time = 0;
+
+    for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans())
+      time += Math.max(bean.getCollectionTime(), 0);
+
+    return time;
+  }
+
+  private static long getGCCount() {
+
+    long count = 0;
+
+    for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans())
+      count += Math.max(bean.getCollectionCount(), 0);
+
+    return count;
+  }
+
+  // runs numSweeps sweeps and returns the total time in milliseconds --
+  // each layout has its own copy of the sweep, so that the inner loop
+  // doesn't branch on the layout
+
+  private static long sweep(Corpus docs, int W, int T, String layout, int numSweeps) {
+
+    if (layout.equals("jagged"))
+      return sweepJagged(docs, new int[W][T], W, T, numSweeps);
+    else
+      return sweepMatrix(docs, new CountMatrix(W, T), W, T, numSweeps);
+  }
+
+  private static long sweepJagged(Corpus docs, int[][] counts, int W, int T, int numSweeps) {
+
+    int D = docs.size();
+
+    double alpha = 0.1;
+    double beta = 0.01 * W;
+
+    int[] countsNorm = new int[T];
+    int[][] docCounts = new int[D][T];
+
+    int[] offsets = docs.getOffsets();
+    int[] tokens = docs.getTokens();
+
+    int[] z = new int[docs.getNumTokens()];
+
+    LogRandoms rng = new LogRandoms(1000);
+
+    for (int d=0; d<D; d++) {
+
+      for (int n=offsets[d]; n<offsets[d+1]; n++) {
+
+        int j = rng.nextInt(T);
+
+        z[n] = j;
+
+        counts[tokens[n]][j]++;
+
+        countsNorm[j]++;
+        docCounts[d][j]++;
+      }
+    }
+
+    long start = System.currentTimeMillis();
+
+    for (int s=0; s<numSweeps; s++)
+      for (int d=0; d<D; d++) {
+
+        for (int n=offsets[d]; n<offsets[d+1]; n++) {
+
+          int w = tokens[n];
+          int j = z[n];
+
+          counts[w][j]--;
+
+          countsNorm[j]--;
+          docCounts[d][j]--;
+
+          double[] dist = new double[T];
+          double distSum = 0.0;
+
+          for (j=0; j<T; j++) {
+
+            int nwj = counts[w][j];
+
+            double score = (nwj + beta / W) / (countsNorm[j] + beta) * (docCounts[d][j] + alpha);
+
+            dist[j] = score;
+            distSum += score;
+          }
+
+          j = rng.nextDiscrete(dist, distSum);
+
+          z[n] = j;
+
+          counts[w][j]++;
+
+          countsNorm[j]++;
+          docCounts[d][j]++;
+        }
+      }
+
+    return System.currentTimeMillis() - start;
+  }
+
+  private static long sweepMatrix(Corpus docs, CountMatrix counts, int W, int T, int numSweeps) {
+
+    int D = docs.size();
+
+    double alpha = 0.1;
+    double beta = 0.01 * W;
+
+    int[] countsNorm = new int[T];
+    int[][] docCounts = new int[D][T];
+
+    int[] offsets = docs.getOffsets();
+    int[] tokens = docs.getTokens();
+
+    int[] z = new int[docs.getNumTokens()];
+
+    LogRandoms rng = new LogRandoms(1000);
+
+    for (int d=0; d<D; d++) {
+
+      for (int n=offsets[d]; n<offsets[d+1]; n++) {
+
+        int j = rng.nextInt(T);
+
+        z[n] = j;
+
+        counts.increment(tokens[n], j);
+
+        countsNorm[j]++;
+        docCounts[d][j]++;
+      }
+    }
+
+    long start = System.currentTimeMillis();
+
+    for (int s=0; s<numSweeps; s++)
+      for (int d=0; d<D; d++) {
+
+        for (int n=offsets[d]; n<offsets[d+1]; n++) {
+
+          int w = tokens[n];
+          int j = z[n];
+
+          counts.decrement(w, j);
+
+          countsNorm[j]--;
+          docCounts[d][j]--;
+
+          double[] dist = new double[T];
+          double distSum = 0.0;
+
+          for (j=0; j<T; j++) {
+
+            int nwj = counts.get(w, j);
+
+            double score = (nwj + beta / W) / (countsNorm[j] + beta) * (docCounts[d][j] + alpha);
+
+            dist[j] = score;
+            distSum += score;
+          }
+
+          j = rng.nextDiscrete(dist, distSum);
+
+          z[n] = j;
+
+          counts.increment(w, j);
+
+          countsNorm[j]++;
+          docCounts[d][j]++;
+        }
+      }
+
+    return System.currentTimeMillis() - start;
+  }
+
+  public static void main(String[] args) throws java.io.IOException {
+
+    if (args.length != 3) {
+      System.out.println("Usage: CountMatrixBenchmark <instance_list> <num_topics> <num_sweeps>");
+      System.exit(1);
+    }
+
+    String instanceListFileName = args[0];
+
+    int T = Integer.parseInt(args[1]); // # of topics
+    int numSweeps = Integer.parseInt(args[2]);
+
+    Alphabet wordDict = new Alphabet();
+
+    Corpus docs = new Corpus(wordDict, null);
+
+    InstanceListLoader.load(instanceListFileName, docs);
+
+    int W = wordDict.size();
+
+    System.out.println("Num docs: " + docs.size());
+    System.out.println("Num words in vocab: " + W);
+    System.out.println("Num topics: " + T);
+
+    // warm up the JIT for every layout before timing
+
+    for (String layout : LAYOUTS)
+      sweep(docs, W, T, layout, Math.min(numSweeps, 3));
+
+    for (String layout : LAYOUTS) {
+
+      System.gc();
+
+      long gcTime = getGCTime();
+      long gcCount = getGCCount();
+
+      long time = sweep(docs, W, T, layout, numSweeps);
+
+      gcTime = getGCTime() - gcTime;
+      gcCount = getGCCount() - gcCount;
+
+      System.out.println(layout + ": " + ((double) time / numSweeps) + " ms/sweep, " + gcCount + " collections, " + gcTime + " ms in GC");
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package edu.umass.cs.wallach.cluster;
+
+import java.util.*;
+
+// changes to an immutable base matrix of counts (e.g., the training
+// counts, while test documents are sampled), so that a cell's current
+// count is its base count plus get(row, column). Only the rows that
+// have been touched store their changes, so clear() costs O(# of
+// touched rows x numColumns) rather than a copy of the base, and any
+// number of overlays can share one base. A touched row's space is
+// kept when the overlay is cleared, so it can be reused without
+// allocating.
+
+public class CountOverlay {
+
+  private int numRows, numColumns;
+
+  private int[][] rows; // changes to each row, or null if never touched
+
+  private int[] touchedRows; // rows touched since the last clear
+  private int numTouchedRows;
+  private boolean[] touched;
+
+  public CountOverlay(int numRows, int numColumns) {
+
+    this.numRows = numRows;
+    this.numColumns = numColumns;
+
+    rows = new int[numRows][];
+
+    touchedRows = new int[0];
+    numTouchedRows = 0;
+    touched = new boolean[numRows];
+  }
+
+  public int getNumRows() {
+
+    return numRows;
+  }
+
+  public int getNumColumns() {
+
+    return numColumns;
+  }
+
+  public int get(int row, int column) {
+
+    return touched[row] ? rows[row][column] : 0;
+  }
+
+  // returns the changes to a row, or null if it hasn't been touched
+  // since the last clear
+
+  public int[] getRow(int row) {
+
+    return touched[row] ? rows[row] : null;
+  }
+
+  // adds every change to a row to dest[0, numColumns)
+
+  public void addRow(int row, int[] dest) {
+
+    if (touched[row]) {
+
+      int[] changes = rows[row];
+
+      for (int column=0; column<numColumns; column++)
+        dest[column] += changes[column];
+    }
+  }
+
+  // adds value to the change and returns the old change
+
+  public int add(int row, int column, int value) {
+
+    if (!touched[row]) {
+
+      if (rows[row] == null)
+        rows[row] = new int[numColumns];
+
+      if (numTouchedRows == touchedRows.length)
+        touchedRows = Arrays.copyOf(touchedRows, Math.max(16, 2 * numTouchedRows));
+
+      touched[row] = true;
+      touchedRows[numTouchedRows++] = row;
+    }
+
+    int oldValue = rows[row][column];
+
+    rows[row][column] = oldValue + value;
+
+    return oldValue;
+  }
+
+  public int getNumTouchedRows() {
+
+    return numTouchedRows;
+  }
+
+  public int getTouchedRow(int k) {
+
+    return touchedRows[k];
+  }
+
+  // zeroes every change
+
+  public void clear() {
+
+    for (int k=0; k<numTouchedRows; k++) {
+
+      int row = touchedRows[k];
+
+      Arrays.fill(rows[row], 0);
+      touched[row] = false;
+    }
+
+    numTouchedRows = 0;
+  }
+}
@@ -0,0 +1,127 @@
+package edu.umass.cs.wallach.cluster;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+// computes diagnostics (the log probability and the topic summaries)
+// on a background thread from snapshots of a model's counts, so that
+// the sampler can carry on while they are computed. Snapshots are
+// evaluated one at a time, in the order they were submitted, and each
+// log probability is written to log_prob.txt tagged with its
+// iteration.
+//
+// A snapshot is a full copy of every count matrix (e.g., 4WT bytes for
+// dense topic-word counts), so at most MAX_PENDING = 1 snapshot exists
+// at a time -- reserve() waits until the previous snapshot has been
+// evaluated and dropped, and must be called before the next one is
+// taken. Diagnostics therefore need at most as much memory again as the
+// model's counts (not the corpus or the assignments, which aren't
+// copied), and the sampler only waits if evaluating one snapshot
+// takes longer than the print interval.
+//
+// A snapshot that fails to evaluate is reported on stderr with its
+// iteration, and the first failure is rethrown by close().
+
+public class Diagnostics {
+
+  private static final int MAX_PENDING = 1;
+
+  private PrintWriter logProbWriter;
+
+  private ExecutorService executor;
+  private Semaphore pending; // one permit per free slot in the queue
+
+  // the first evaluation that failed (only touched by the background
+  // thread until close() has waited for it)
+
+  private Throwable failure;
+  private int failedItn;
+
+  public Diagnostics(PrintWriter logProbWriter) {
+
+    this.logProbWriter = logProbWriter;
+
+    executor = Executors.newSingleThreadExecutor();
+    pending = new Semaphore(MAX_PENDING);
+  }
+
+  // waits for a free slot -- this must be called before taking each
+  // snapshot, and followed by submit()
+
+  public void reserve() {
+
+    try {
+      pending.acquire();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+
+  // queues a snapshot for iteration itn -- task prints any summaries
+  // and returns the snapshot's log probability
+
+  public void submit(int itn, Callable<Double> task) {
+
+    executor.execute(new Evaluation(itn, task));
+  }
+
+  // evaluates one snapshot, dropping it before freeing its slot so that
+  // it is garbage by the time the next one can be taken
+
+  private class Evaluation implements Runnable {
+
+    private int itn;
+    private Callable<Double> task;
+
+    public Evaluation(int itn, Callable<Double> task) {
+
+      this.itn = itn;
+      this.task = task;
+    }
+
+    public void run() {
+
+      try {
+
+        double logProb = task.call();
+
+        logProbWriter.println(itn + " " + logProb);
+        logProbWriter.flush();
+      }
+      catch (Throwable t) {
+
+        System.err.println("Diagnostics for iteration " + itn + " failed: " + t);
+
+        if (failure == null) {
+          failure = t;
+          failedItn = itn;
+        }
+      }
+      finally {
+        task = null;
+        pending.release();
+      }
+    }
+  }
+
+  // waits for every queued snapshot to be evaluated and stops the
+  // background thread, then rethrows the first failure, if any
+
+  public void close() {
+
+    executor.shutdown();
+
+    try {
+      while (!executor.awaitTermination(1, TimeUnit.SECONDS));
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+
+    if (failure != null)
+      throw new RuntimeException("Diagnostics for iteration " + failedItn + " failed", failure);
+  }
+}
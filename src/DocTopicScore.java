@@ -2,6 +2,7 @@ package edu.umass.cs.wallach.cluster;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.zip.*;
 
 import gnu.trove.*;
@@ -13,7 +14,7 @@ public class DocTopicScore {
 
   // observed counts
 
-  private int[][] topicDocCounts; // N_{j|d}
+  private SparseCountMatrix topicDocCounts; // N_{j|d}, one row per document
   private int[] topicDocCountsNorm; // N_{.|d}
 
   private int[] topicCounts; // N_{j}
@@ -22,8 +23,20 @@ public class DocTopicScore {
   private int[] topicCountsTrain;
   private int topicCountsNormTrain;
 
+  // # of documents with each N_{.|d}, for sampling alpha -- a copy
+  // records the changes made by its worker since the last merge
+
+  private CountHistogram docLengthHistogram;
+
   private int T, D; // constants
 
+  // getScore(j, d) = (priorNumerators[j] inversePriorNorm a1 + N_{j|d})
+  // / (N_{.|d} + a1) -- the coefficients are updated along with the
+  // counts and recomputed by updateCoefficients()
+
+  private double[] priorNumerators; // a0 / T + N_{j}
+  private double inversePriorNorm; // 1 / (N_{.} + a0)
+
   // hyperparameters
 
   private double[] alpha;
@@ -32,6 +45,9 @@ public class DocTopicScore {
 
   private String score;
 
+  private DocTopicScore() {
+  }
+
   // create a score function with zero counts
 
   public DocTopicScore(int T, int D, double[] alpha, String score) {
@@ -46,30 +62,56 @@ public class DocTopicScore {
 
     // allocate space for counts
 
-    topicDocCounts = new int[T][D];
+    topicDocCounts = new SparseCountMatrix(D, T);
     topicDocCountsNorm = new int[D];
 
     topicCounts = new int[T];
     topicCountsNorm = 0;
+
+    priorNumerators = new double[T];
+
+    docLengthHistogram = new CountHistogram();
+
+    updateCoefficients();
   }
 
-  public double getScore(int j, int d) {
+  // this must be called whenever alpha changes
 
-    double score = 1.0 / T;
+  public void updateCoefficients() {
 
-    int nj = topicCounts[j];
-    int n = topicCountsNorm;
+    for (int j=0; j<T; j++)
+      priorNumerators[j] = alpha[0] / T + topicCounts[j];
+
+    inversePriorNorm = 1.0 / (topicCountsNorm + alpha[0]);
+  }
+
+  private void updateCoefficients(int j) {
+
+    priorNumerators[j] = alpha[0] / T + topicCounts[j];
+    inversePriorNorm = 1.0 / (topicCountsNorm + alpha[0]);
+  }
 
-    score *= alpha[0] / (n + alpha[0]);
-    score += nj / (n + alpha[0]);
+  public double getScore(int j, int d) {
 
-    int njd = topicDocCounts[j][d];
+    int njd = topicDocCounts.get(d, j);
     int nd = topicDocCountsNorm[d];
 
-    score *= alpha[1] / (nd + alpha[1]);
-    score += njd / (nd + alpha[1]);
+    return (priorNumerators[j] * inversePriorNorm * alpha[1] + njd) / (nd + alpha[1]);
+  }
+
+  // sets scores[j] = getScore(j, d) for every topic j in O(T) time
+  // plus O(1) per nonzero topic of document d
+
+  public void getScores(int d, double[] scores) {
 
-    return score;
+    double inverseNorm = 1.0 / (topicDocCountsNorm[d] + alpha[1]);
+    double priorScale = inversePriorNorm * alpha[1] * inverseNorm;
+
+    for (int j=0; j<T; j++)
+      scores[j] = priorNumerators[j] * priorScale;
+
+    for (int k=0; k<topicDocCounts.getNumNonZero(d); k++)
+      scores[topicDocCounts.getNonZeroColumn(d, k)] += topicDocCounts.getNonZeroCount(d, k) * inverseNorm;
   }
 
   public double getScoreNoPrior(int j, int d) {
@@ -79,13 +121,55 @@ public class DocTopicScore {
     if (nd == 0)
       return 0.0;
     else
-      return (double) topicDocCounts[j][d] / (double) nd;
+      return (double) topicDocCounts.get(d, j) / (double) nd;
+  }
+
+  public int getCount(int j, int d) {
+
+    return topicDocCounts.get(d, j);
+  }
+
+  public int getCountNorm(int d) {
+
+    return topicDocCountsNorm[d];
+  }
+
+  // the nonzero topics of document d, in increasing order of topic, are
+  // getNonZeroTopic(d, k) for k < getNumNonZeroTopics(d)
+
+  public int getNumNonZeroTopics(int d) {
+
+    return topicDocCounts.getNumNonZero(d);
+  }
+
+  public int getNonZeroTopic(int d, int k) {
+
+    return topicDocCounts.getNonZeroColumn(d, k);
+  }
+
+  // N_{j|d} for j = getNonZeroTopic(d, k)
+
+  public int getNonZeroCount(int d, int k) {
+
+    return topicDocCounts.getNonZeroCount(d, k);
+  }
+
+  public int getTopicCount(int j) {
+
+    return topicCounts[j];
+  }
+
+  public int getTopicCountNorm() {
+
+    return topicCountsNorm;
   }
 
   public void incrementCounts(int j, int d) {
 
-    int oldCount = topicDocCounts[j][d]++;
-    topicDocCountsNorm[d]++;
+    int oldCount = topicDocCounts.increment(d, j);
+    int nd = topicDocCountsNorm[d]++;
+
+    docLengthHistogram.move(nd, nd + 1);
 
     if (score.equals("minimal")) {
       if (oldCount == 0) {
@@ -97,12 +181,16 @@ public class DocTopicScore {
       topicCounts[j]++;
       topicCountsNorm++;
     }
+
+    updateCoefficients(j);
   }
 
   public void decrementCounts(int j, int d) {
 
-    int oldCount = topicDocCounts[j][d]--;
-    topicDocCountsNorm[d]--;
+    int oldCount = topicDocCounts.decrement(d, j);
+    int nd = topicDocCountsNorm[d]--;
+
+    docLengthHistogram.move(nd, nd - 1);
 
     if (score.equals("minimal")) {
       if (oldCount == 1) {
@@ -114,6 +202,97 @@ public class DocTopicScore {
       topicCounts[j]--;
       topicCountsNorm--;
     }
+
+    updateCoefficients(j);
+  }
+
+  // creates a copy for a worker thread -- the document-specific counts
+  // and the hyperparameters are shared with this score function, so
+  // each document must only ever be sampled by one worker
+
+  public DocTopicScore copy() {
+
+    DocTopicScore copy = new DocTopicScore();
+
+    copy.T = T;
+    copy.D = D;
+
+    copy.alpha = alpha;
+    copy.score = score;
+
+    copy.topicDocCounts = topicDocCounts;
+    copy.topicDocCountsNorm = topicDocCountsNorm;
+
+    copy.topicCounts = topicCounts.clone();
+    copy.topicCountsNorm = topicCountsNorm;
+
+    copy.priorNumerators = priorNumerators.clone();
+    copy.inversePriorNorm = inversePriorNorm;
+
+    copy.docLengthHistogram = new CountHistogram();
+
+    return copy;
+  }
+
+  // creates a frozen copy of the counts and the hyperparameters, for
+  // computing diagnostics while sampling carries on with this one
+
+  public DocTopicScore snapshot() {
+
+    DocTopicScore snapshot = new DocTopicScore();
+
+    snapshot.T = T;
+    snapshot.D = D;
+
+    snapshot.alpha = alpha.clone();
+    snapshot.score = score;
+
+    snapshot.topicDocCounts = topicDocCounts.copy();
+    snapshot.topicDocCountsNorm = topicDocCountsNorm.clone();
+
+    snapshot.topicCounts = topicCounts.clone();
+    snapshot.topicCountsNorm = topicCountsNorm;
+
+    snapshot.priorNumerators = new double[T];
+
+    snapshot.docLengthHistogram = new CountHistogram();
+    snapshot.docLengthHistogram.copyFrom(docLengthHistogram);
+
+    snapshot.updateCoefficients();
+
+    return snapshot;
+  }
+
+  // adds the changes made to each copy's non-document-specific counts
+  // since the last merge to these counts and then resets every copy to
+  // the merged counts
+
+  public void merge(DocTopicScore[] copies) {
+
+    int[] old = topicCounts.clone();
+    int oldNorm = topicCountsNorm;
+
+    for (DocTopicScore copy : copies) {
+
+      for (int j=0; j<T; j++)
+        topicCounts[j] += copy.topicCounts[j] - old[j];
+
+      topicCountsNorm += copy.topicCountsNorm - oldNorm;
+
+      // each document is only sampled by one worker, so the changes to
+      // the document lengths can simply be added
+
+      docLengthHistogram.add(copy.docLengthHistogram);
+      copy.docLengthHistogram.clear();
+    }
+
+    updateCoefficients();
+
+    for (DocTopicScore copy : copies) {
+      System.arraycopy(topicCounts, 0, copy.topicCounts, 0, T);
+      copy.topicCountsNorm = topicCountsNorm;
+      copy.updateCoefficients();
+    }
   }
 
   // this must be called before processing test data
@@ -122,9 +301,11 @@ public class DocTopicScore {
 
     this.D = numTestDocs;
 
-    topicDocCounts = new int[T][D];
+    topicDocCounts = new SparseCountMatrix(D, T);
     topicDocCountsNorm = new int[D];
 
+    docLengthHistogram.clear();
+
     // only need to lock the non-document-specific counts
 
     topicCountsTrain = topicCounts.clone();
@@ -135,11 +316,12 @@ public class DocTopicScore {
 
   public void resetCounts() {
 
-    for (int j=0; j<T; j++)
-      Arrays.fill(topicDocCounts[j], 0);
+    topicDocCounts.clear();
 
     Arrays.fill(topicDocCountsNorm, 0);
 
+    docLengthHistogram.clear();
+
     if (resetToTrain) {
       topicCounts = topicCountsTrain.clone();
       topicCountsNorm = topicCountsNormTrain;
@@ -148,11 +330,15 @@ public class DocTopicScore {
       Arrays.fill(topicCounts, 0);
       topicCountsNorm = 0;
     }
+
+    updateCoefficients();
   }
 
-  // computes log prob using the predictive distribution
+  // computes log prob using the predictive distribution, replaying
+  // the corpus -- only needed to sample alpha when the counts aren't
+  // minimal
 
-  public double logProb(Corpus docs, int[][] x, int[][] z) {
+  private double logProb(Corpus docs, Assignments z) {
 
     double logProb = 0.0;
 
@@ -160,23 +346,18 @@ public class DocTopicScore {
 
     assert docs.size() == D;
 
-    if (x != null)
-      assert x.length == D;
+    assert z.size() == docs.getNumTokens();
 
-    assert z.length == D;
+    int[] offsets = docs.getOffsets();
 
     for (int d=0; d<D; d++) {
 
-      int[] fs = docs.getDocument(d).getTokens();
-
-      int nd = fs.length;
-
-      for (int i=0; i<nd; i++) {
+      for (int n=offsets[d]; n<offsets[d+1]; n++) {
 
-        int k = (x != null) ? x[d][i] : -1;
-        int j = z[d][i];
+        int k = z.getSwitch(n);
+        int j = z.getTopic(n);
 
-        if ((k == 0) || (k == -1)) {
+        if (k == 0) {
 
           logProb += Math.log(getScore(j, d));
 
@@ -209,22 +390,76 @@ public class DocTopicScore {
     }
   }
 
-  private double logProb(Corpus docs, int[][] x, int[][] z, double[] newLogAlpha) {
+  // log P(z, tables) as a function of log alpha, up to terms that do
+  // not depend on alpha. Under the minimal path assumption the table
+  // counts are fixed by the topic counts, so (as when sampling HDP
+  // concentration parameters) alpha can be sampled given the tables,
+  // in closed form: each document contributes a1^(# of its tables) /
+  // (a1)_{N_{.|d}}, summed via the count-of-counts of the document
+  // lengths, and the top level is a Dirichlet-multinomial in the table
+  // counts N_{j}. Otherwise the corpus is replayed.
+
+  private double logProb(Corpus docs, Assignments z, double[] newLogAlpha) {
+
+    if (score.equals("minimal")) {
+
+      double a0 = Math.exp(newLogAlpha[0]);
+      double a1 = Math.exp(newLogAlpha[1]);
+
+      double logProb = topicCountsNorm * Math.log(a1) - docLengthHistogram.logGammaRatioSum(a1);
+
+      for (int j=0; j<T; j++)
+        logProb += LogGamma.ratio(a0 / T, topicCounts[j]);
+
+      return logProb - LogGamma.ratio(a0, topicCountsNorm);
+    }
 
     double[] oldAlpha = alpha.clone();
 
     for (int i=0; i<alpha.length; i++)
       alpha[i] = Math.exp(newLogAlpha[i]);
 
-    double logProb = logProb(docs, x, z);
+    double logProb = logProb(docs, z);
 
     for (int i=0; i<alpha.length; i++)
       alpha[i] = oldAlpha[i];
 
+    updateCoefficients();
+
     return logProb;
   }
 
-  public void sampleAlpha(Corpus docs, int[][] x, int[][] z, LogRandoms rng, int numIterations, double stepSize) {
+  // computes log P(z, tables) in closed form from the current counts,
+  // under the minimal path assumption: the terms above plus, for each
+  // document and topic, log Gamma(N_{j|d}) for the N_{j|d} - 1 tokens
+  // that join the topic's one table. This is the joint with the
+  // tables, so it is lower than the predictive-distribution
+  // logProb(docs, z), which sums over seatings token by token. The
+  // per-document sums are computed in parallel.
+
+  public double logProb(ForkJoinPool pool) {
+
+    assert score.equals("minimal");
+
+    double logProb = logProb(null, null, new double[] { Math.log(alpha[0]), Math.log(alpha[1]) });
+
+    logProb += ParallelSum.sum(pool, D, new ParallelSum.Terms() {
+        public double sum(int start, int end) {
+
+          double sum = 0.0;
+
+          for (int d=start; d<end; d++)
+            for (int k=0; k<topicDocCounts.getNumNonZero(d); k++)
+              sum += LogGamma.ratio(1.0, topicDocCounts.getNonZeroCount(d, k) - 1);
+
+          return sum;
+        }
+      });
+
+    return logProb;
+  }
+
+  public void sampleAlpha(Corpus docs, Assignments z, LogRandoms rng, int numIterations, double stepSize) {
 
     int I = alpha.length;
 
@@ -241,7 +476,7 @@ public class DocTopicScore {
 
     for (int s=0; s<numIterations; s++) {
 
-      double lp = logProb(docs, x, z, rawParam) + rawParamSum;
+      double lp = logProb(docs, z, rawParam) + rawParamSum;
       double lpNew = Math.log(rng.nextUniform()) + lp;
 
       for (int i=0; i<I; i++) {
@@ -261,7 +496,7 @@ public class DocTopicScore {
           rawParamNewSum += rawParamNew[i];
         }
 
-        if (logProb(docs, x, z, rawParamNew) + rawParamNewSum > lpNew)
+        if (logProb(docs, z, rawParamNew) + rawParamNewSum > lpNew)
           break;
         else
           for (int i=0; i<I; i++)
@@ -277,14 +512,20 @@ public class DocTopicScore {
 
     for (int i=0; i<I; i++)
       alpha[i] = Math.exp(rawParam[i]);
+
+    updateCoefficients();
   }
 
-  public void print(Corpus docs, String fileName) {
+  public void print(Corpus docs, String fileName, ForkJoinPool pool) {
 
-    print(docs, 0.0, -1, fileName);
+    print(docs, 0.0, -1, fileName, pool);
   }
 
-  public void print(Corpus docs, double threshold, int numTopics, String fileName) {
+  // prints the numTopics most probable topics (all of them, if
+  // numTopics is negative) of each document, selecting them for a
+  // block of documents at a time, in parallel if pool isn't null
+
+  public void print(Corpus docs, double threshold, int numTopics, String fileName, ForkJoinPool pool) {
 
     assert docs.size() == D;
 
@@ -294,31 +535,91 @@ public class DocTopicScore {
 
       pw.println("#doc source topic proportion ...");
 
-      Probability[] probs = new Probability[T];
+      if ((numTopics > T) || (numTopics < 0))
+        numTopics = T;
 
-      for (int d=0; d<D; d++) {
+      int blockSize = Math.min(D, TopK.getBlockSize(numTopics));
 
-        pw.print(d); pw.print(" ");
-        pw.print(docs.getDocument(d).getSource()); pw.print(" ");
+      TopK[] selected = new TopK[blockSize];
+
+      for (int i=0; i<blockSize; i++)
+        selected[i] = new TopK(numTopics, threshold);
+
+      TopK.Rows rows = new TopK.Rows() {
+          public double getScore(int d, int j) {
+            return DocTopicScore.this.getScore(j, d);
+          }
+        };
+
+      for (int start=0; start<D; start+=blockSize) {
+
+        int end = Math.min(start + blockSize, D);
+
+        TopK.select(pool, rows, T, start, end, false, selected);
+
+        for (int d=start; d<end; d++) {
+
+          TopK topK = selected[d - start];
+
+          pw.print(d); pw.print(" ");
+          pw.print(docs.getDocument(d).getSource()); pw.print(" ");
+
+          for (int i=0; i<topK.size(); i++) {
+            pw.print(topK.getIndex(i)); pw.print(" ");
+            pw.print(topK.getScore(i)); pw.print(" ");
+          }
+
+          pw.println();
+        }
+      }
+
+      pw.close();
+    }
+    catch (IOException e) {
+      System.out.println(e);
+    }
+  }
+
+  // prints only each document's nonzero topic counts, with the
+  // parameters needed to smooth them written once in the header --
+  // getScore(j, d) = (a1 base_j + N_{j|d}) / (N_{.|d} + a1), where
+  // base_j = (a0 / T + N_{j}) / (N_{.} + a0) -- so the file grows with
+  // the # of nonzero counts rather than D x T
+
+  public void printSparse(Corpus docs, String fileName) {
 
-        for (int j=0; j<T; j++)
-          probs[j] = new Probability(j, getScore(j, d));
+    assert docs.size() == D;
+
+    try {
+
+      PrintStream pw = new PrintStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(new File(fileName)))));
 
-        Arrays.sort(probs);
+      pw.println("#theta_{j|d} = (alpha1 * base_j + count) / (length + alpha1)");
 
-        if ((numTopics > T) || (numTopics < 0))
-          numTopics = T;
+      pw.print("#alpha1 "); pw.print(alpha[1]); pw.println();
 
-        for (int i=0; i<numTopics; i++) {
+      pw.print("#base");
+
+      for (int j=0; j<T; j++) {
+        pw.print(" "); pw.print(priorNumerators[j] * inversePriorNorm);
+      }
+
+      pw.println();
+
+      pw.println("#doc source length topic count ...");
+
+      for (int d=0; d<D; d++) {
+
+        pw.print(d); pw.print(" ");
+        pw.print(docs.getDocument(d).getSource()); pw.print(" ");
+        pw.print(topicDocCountsNorm[d]);
 
-          // break if there are no more topics whose proportion is
-          // greater than zero or threshold...
+        for (int k=0; k<topicDocCounts.getNumNonZero(d); k++) {
 
-          if ((probs[i].prob == 0) || (probs[i].prob < threshold))
-            break;
+          int j = topicDocCounts.getNonZeroColumn(d, k);
 
-          pw.print(probs[i].index); pw.print(" ");
-          pw.print(probs[i].prob); pw.print(" ");
+          pw.print(" "); pw.print(j);
+          pw.print(" "); pw.print(topicDocCounts.get(d, j));
         }
 
         pw.println();
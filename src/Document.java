@@ -1,72 +1,61 @@
 package edu.umass.cs.wallach.cluster;
 
+// a view onto document d of a corpus -- its tokens and chunks are the
+// corpus' global arrays from getStart() to getEnd()
+
 public class Document {
 
-  private String source = null;
+  private Corpus corpus;
+  private int d;
 
-  private int[] tokens = null;
-  private int[] chunks = null;
+  Document(Corpus corpus, int d) {
 
-  private int register = -1;
+    this.corpus = corpus;
+    this.d = d;
+  }
 
-  public Document(String source) {
+  public int getIndex() {
 
-    this.source = source;
+    return d;
   }
 
-  public void setTokens(int[] tokens) {
-
-    if (chunks != null)
-      assert tokens.length == chunks.length;
+  public String getSource() {
 
-    this.tokens = tokens;
+    return corpus.getSource(d);
   }
 
-  public void setChunks(int[] chunks) {
+  public int getStart() {
 
-    if (tokens != null)
-      assert chunks.length == tokens.length;
-
-    this.chunks = chunks;
+    return corpus.getOffsets()[d];
   }
 
-  public String getSource() {
+  public int getEnd() {
 
-    return source;
+    return corpus.getOffsets()[d+1];
   }
 
   public int getLength() {
 
-    return tokens.length;
+    return getEnd() - getStart();
   }
 
   public int getToken(int i) {
 
-    return tokens[i];
+    return corpus.getTokens()[getStart() + i];
   }
 
-  public int[] getTokens() {
+  public int getChunk(int i) {
 
-    return tokens;
+    return corpus.getChunks()[getStart() + i];
   }
 
   public void setRegister(int register) {
 
-    this.register = register;
+    corpus.setRegister(d, register);
   }
 
   public int getRegister() {
 
-    return register;
-  }
-
-  public int getChunk(int i) {
-
-    return chunks[i];
-  }
-
-  public int[] getChunks() {
-
-    return chunks;
+    return corpus.getRegister(d);
   }
 }
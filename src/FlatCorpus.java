@@ -0,0 +1,516 @@
+package edu.umass.cs.wallach.cluster;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+
+import cc.mallet.types.*;
+
+// a corpus stored as flat little-endian arrays, so that it can be
+// memory-mapped rather than deserialized. The file is a fixed-size
+// header followed by five sections, each starting on an 8-byte
+// boundary:
+//
+//   document offsets  D + 1 ints, document d is tokens [off[d], off[d+1])
+//   tokens            N ints, indices into the vocabulary
+//   chunks            N ints (absent if no instance had chunks)
+//   sources           D + 1 byte offsets, then the UTF-8 sources
+//   vocabulary        W + 1 byte offsets, then the UTF-8 words
+//
+// Words are lowercased when the file is written and the vocabulary is
+// in order of first occurrence, so loading a flat corpus into an empty
+// Alphabet gives exactly the indices InstanceListLoader would. Each
+// section is mapped separately, so none can exceed 2 GB.
+
+public class FlatCorpus {
+
+  private static final int MAGIC = 0x4b4d5452; // "RTMK", little-endian
+  private static final int VERSION = 1;
+
+  private static final int NUM_SECTIONS = 5;
+  private static final int HEADER_SIZE = 32 + 8 * NUM_SECTIONS;
+
+  // is fileName a flat corpus (rather than a serialized InstanceList)?
+
+  public static boolean isFlatCorpus(String fileName) throws IOException {
+
+    DataInputStream in = new DataInputStream(new FileInputStream(fileName));
+
+    try {
+      return Integer.reverseBytes(in.readInt()) == MAGIC;
+    }
+    catch (EOFException e) {
+      return false;
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  private static long align(long pos) {
+
+    return (pos + 7) & ~7L;
+  }
+
+  private static byte[] encode(String s) {
+
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static void writeInt(DataOutputStream out, int value) throws IOException {
+
+    out.writeInt(Integer.reverseBytes(value));
+  }
+
+  private static void writeLong(DataOutputStream out, long value) throws IOException {
+
+    out.writeLong(Long.reverseBytes(value));
+  }
+
+  private static void writeStrings(DataOutputStream out, ArrayList<byte[]> strings) throws IOException {
+
+    int offset = 0;
+
+    writeInt(out, offset);
+
+    for (byte[] bytes : strings) {
+      offset += bytes.length;
+      writeInt(out, offset);
+    }
+
+    for (byte[] bytes : strings)
+      out.write(bytes);
+  }
+
+  public static void write(InstanceList instances, String fileName) throws IOException {
+
+    Alphabet instanceDict = instances.getDataAlphabet();
+
+    Writer writer = new Writer(fileName, 1 << 16);
+
+    try {
+
+      // the index of each instance type in the lowercased vocabulary
+
+      int[] typeToWord = new int[instanceDict.size()];
+      Arrays.fill(typeToWord, -1);
+
+      int[] tokens = new int[0];
+
+      for (int d=0; d<instances.size(); d++) {
+
+        Instance instance = instances.get(d);
+
+        FeatureSequence fs = (FeatureSequence) instance.getData();
+
+        int nd = fs.getLength();
+
+        int[] cs = (int[]) instance.getProperty("chunks");
+
+        if (cs != null)
+          assert cs.length == nd;
+
+        if (tokens.length < nd)
+          tokens = new int[nd];
+
+        for (int i=0; i<nd; i++) {
+
+          int type = fs.getIndexAtPosition(i);
+
+          if (typeToWord[type] == -1)
+            typeToWord[type] = writer.lookup((String) instanceDict.lookupObject(type));
+
+          tokens[i] = typeToWord[type];
+        }
+
+        writer.add(instance.getSource().toString(), tokens, cs, nd);
+      }
+
+      writer.close();
+    }
+    finally {
+      writer.delete();
+    }
+  }
+
+  // writes a flat corpus one document at a time, keeping only the
+  // vocabulary in memory -- each section is written to a temporary
+  // file next to fileName as it grows, and close() copies them into
+  // place. Words are lowercased and the vocabulary is in order of
+  // first lookup. Empty documents are skipped.
+
+  public static class Writer {
+
+    private static final int NUM_TMP_FILES = 5; // offsets, tokens, chunks, source offsets, sources
+
+    private String fileName;
+
+    private File[] tmpFiles;
+    private DataOutputStream[] tmpOuts;
+
+    private HashMap<String, Integer> vocab;
+    private ArrayList<byte[]> words;
+
+    private int D;
+    private long N, sourceBytes;
+
+    private boolean hasChunks;
+
+    public Writer(String fileName, int bufferSize) throws IOException {
+
+      this.fileName = fileName;
+
+      File dir = new File(fileName).getAbsoluteFile().getParentFile();
+
+      tmpFiles = new File[NUM_TMP_FILES];
+      tmpOuts = new DataOutputStream[NUM_TMP_FILES];
+
+      for (int i=0; i<NUM_TMP_FILES; i++) {
+        tmpFiles[i] = File.createTempFile("flat", ".tmp", dir);
+        tmpFiles[i].deleteOnExit();
+        tmpOuts[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFiles[i]), Math.max(bufferSize / NUM_TMP_FILES, 1 << 12)));
+      }
+
+      vocab = new HashMap<String, Integer>();
+      words = new ArrayList<byte[]>();
+
+      D = 0;
+      N = 0;
+      sourceBytes = 0;
+
+      hasChunks = false;
+
+      writeInt(tmpOuts[0], 0);
+      writeInt(tmpOuts[3], 0);
+    }
+
+    // the index of word (lowercased) in the vocabulary, which is added
+    // if it isn't there already
+
+    public int lookup(String word) {
+
+      word = word.toLowerCase();
+
+      Integer w = vocab.get(word);
+
+      if (w == null) {
+        w = words.size();
+        vocab.put(word, w);
+        words.add(encode(word));
+      }
+
+      return w;
+    }
+
+    // adds a document made of the first length tokens (vocabulary
+    // indices) and chunks -- chunks may be null, in which case every
+    // token is in chunk 0
+
+    public void add(String source, int[] tokens, int[] chunks, int length) throws IOException {
+
+      if (length == 0)
+        return;
+
+      if (N + length > Integer.MAX_VALUE)
+        throw new IOException("Too many tokens for a flat corpus");
+
+      for (int i=0; i<length; i++) {
+        assert (tokens[i] >= 0) && (tokens[i] < words.size());
+        writeInt(tmpOuts[1], tokens[i]);
+        writeInt(tmpOuts[2], (chunks == null) ? 0 : chunks[i]);
+      }
+
+      if (chunks != null)
+        hasChunks = true;
+
+      N += length;
+
+      writeInt(tmpOuts[0], (int) N);
+
+      byte[] bytes = encode(source);
+
+      if (sourceBytes + bytes.length > Integer.MAX_VALUE)
+        throw new IOException("Too many source bytes for a flat corpus");
+
+      sourceBytes += bytes.length;
+
+      tmpOuts[4].write(bytes);
+      writeInt(tmpOuts[3], (int) sourceBytes);
+
+      D++;
+    }
+
+    public void close() throws IOException {
+
+      for (DataOutputStream out : tmpOuts)
+        out.close();
+
+      int W = words.size();
+
+      long[] positions = new long[NUM_SECTIONS];
+
+      positions[0] = align(HEADER_SIZE);
+      positions[1] = align(positions[0] + 4L * (D + 1));
+      positions[2] = align(positions[1] + 4L * N);
+      positions[3] = align(positions[2] + (hasChunks ? 4L * N : 0));
+      positions[4] = align(positions[3] + 4L * (D + 1) + sourceBytes);
+
+      ByteArrayOutputStream header = new ByteArrayOutputStream();
+
+      DataOutputStream out = new DataOutputStream(header);
+
+      writeInt(out, MAGIC);
+      writeInt(out, VERSION);
+      writeInt(out, D);
+      writeInt(out, W);
+      writeLong(out, N);
+      writeInt(out, hasChunks ? 1 : 0);
+      writeInt(out, 0);
+
+      for (long pos : positions)
+        writeLong(out, pos);
+
+      ByteArrayOutputStream vocabulary = new ByteArrayOutputStream();
+
+      writeStrings(new DataOutputStream(vocabulary), words);
+
+      File file = new File(fileName);
+      File tmpFile = new File(fileName + ".tmp");
+
+      FileOutputStream fos = new FileOutputStream(tmpFile);
+
+      try {
+
+        FileChannel channel = fos.getChannel();
+
+        write(channel, header.toByteArray());
+
+        pad(channel, positions[0]);
+        copy(tmpFiles[0], channel);
+
+        pad(channel, positions[1]);
+        copy(tmpFiles[1], channel);
+
+        pad(channel, positions[2]);
+
+        if (hasChunks)
+          copy(tmpFiles[2], channel);
+
+        pad(channel, positions[3]);
+        copy(tmpFiles[3], channel);
+        copy(tmpFiles[4], channel);
+
+        pad(channel, positions[4]);
+        write(channel, vocabulary.toByteArray());
+      }
+      finally {
+        fos.close();
+      }
+
+      if (!tmpFile.renameTo(file))
+        throw new IOException("Couldn't rename " + tmpFile + " to " + file);
+    }
+
+    // removes the temporary files
+
+    public void delete() {
+
+      for (int i=0; i<NUM_TMP_FILES; i++) {
+
+        try {
+          tmpOuts[i].close();
+        }
+        catch (IOException e) {
+        }
+
+        tmpFiles[i].delete();
+      }
+    }
+
+    private static void write(FileChannel channel, byte[] bytes) throws IOException {
+
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+      while (buffer.hasRemaining())
+        channel.write(buffer);
+    }
+
+    // pads with zeroes up to pos
+
+    private static void pad(FileChannel channel, long pos) throws IOException {
+
+      write(channel, new byte[(int) (pos - channel.position())]);
+    }
+
+    private static void copy(File from, FileChannel to) throws IOException {
+
+      FileInputStream in = new FileInputStream(from);
+
+      try {
+
+        FileChannel channel = in.getChannel();
+
+        long size = channel.size();
+
+        for (long pos=0; pos<size; )
+          pos += channel.transferTo(pos, size - pos, to);
+      }
+      finally {
+        in.close();
+      }
+    }
+  }
+
+  private static ByteBuffer map(FileChannel channel, long pos, long size) throws IOException {
+
+    if (size > Integer.MAX_VALUE)
+      throw new IOException("Section of " + size + " bytes is too large to map");
+
+    if (pos + size > channel.size())
+      throw new IOException("Truncated flat corpus");
+
+    return channel.map(FileChannel.MapMode.READ_ONLY, pos, size).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static String[] readStrings(FileChannel channel, long pos, int n) throws IOException {
+
+    IntBuffer offsets = map(channel, pos, 4L * (n + 1)).asIntBuffer();
+
+    byte[] bytes = new byte[offsets.get(n)];
+
+    map(channel, pos + 4L * (n + 1), bytes.length).get(bytes);
+
+    String[] strings = new String[n];
+
+    for (int i=0; i<n; i++)
+      strings[i] = new String(bytes, offsets.get(i), offsets.get(i + 1) - offsets.get(i), StandardCharsets.UTF_8);
+
+    return strings;
+  }
+
+  // adds the documents in fileName to docs, looking up each word in
+  // docs' vocabulary -- as in InstanceListLoader, words that can't be
+  // added (because the vocabulary's growth has been stopped) are
+  // dropped. Unless words are dropped, the tokens and chunks are copied
+  // in bulk from the mapped sections straight into docs' arrays.
+
+  public static void load(String fileName, Corpus docs) throws IOException {
+
+    RandomAccessFile raf = new RandomAccessFile(fileName, "r");
+
+    try {
+
+      FileChannel channel = raf.getChannel();
+
+      ByteBuffer header = map(channel, 0, HEADER_SIZE);
+
+      if (header.getInt() != MAGIC)
+        throw new IOException(fileName + " is not a flat corpus");
+
+      int version = header.getInt();
+
+      if (version != VERSION)
+        throw new IOException(fileName + " has unsupported version " + version);
+
+      int D = header.getInt();
+      int W = header.getInt();
+      long N = header.getLong();
+      boolean hasChunks = (header.getInt() != 0);
+      header.getInt();
+
+      long[] positions = new long[NUM_SECTIONS];
+
+      for (int i=0; i<NUM_SECTIONS; i++)
+        positions[i] = header.getLong();
+
+      IntBuffer docOffsets = map(channel, positions[0], 4L * (D + 1)).asIntBuffer();
+      IntBuffer tokens = map(channel, positions[1], 4L * N).asIntBuffer();
+      IntBuffer chunks = hasChunks ? map(channel, positions[2], 4L * N).asIntBuffer() : null;
+
+      String[] sources = readStrings(channel, positions[3], D);
+      String[] words = readStrings(channel, positions[4], W);
+
+      // one lookup per word type, rather than per token
+
+      Alphabet wordDict = docs.getWordDict();
+
+      int[] remap = new int[W];
+
+      boolean identity = true;
+      boolean dropped = false;
+
+      for (int v=0; v<W; v++) {
+
+        remap[v] = wordDict.lookupIndex(words[v]);
+
+        if (remap[v] != v)
+          identity = false;
+
+        if (remap[v] == -1) // this will only happen if wordDict's growth has been stopped
+          dropped = true;
+      }
+
+      // each document's length, after dropping any words
+
+      int[] lengths = new int[D];
+
+      for (int d=0; d<D; d++)
+        lengths[d] = docOffsets.get(d + 1) - docOffsets.get(d);
+
+      if (dropped)
+        for (int d=0; d<D; d++)
+          for (int i=docOffsets.get(d); i<docOffsets.get(d + 1); i++)
+            if (remap[tokens.get(i)] == -1)
+              lengths[d]--;
+
+      int base = docs.getNumTokens();
+
+      docs.addDocuments(sources, lengths);
+
+      int[] docTokens = docs.getTokens();
+      int[] docChunks = docs.getChunks();
+
+      int numTokens = docs.getNumTokens() - base;
+
+      if (!dropped) {
+
+        // copy every document at once straight out of the mapped
+        // buffers, and remap in place if need be
+
+        tokens.position(0);
+        tokens.get(docTokens, base, numTokens);
+
+        if (chunks != null) {
+          chunks.position(0);
+          chunks.get(docChunks, base, numTokens);
+        }
+        else
+          Arrays.fill(docChunks, base, base + numTokens, 0);
+
+        if (!identity)
+          for (int n=base; n<base+numTokens; n++)
+            docTokens[n] = remap[docTokens[n]];
+      }
+      else {
+
+        int n = base;
+
+        for (int i=0; i<N; i++) {
+
+          int w = remap[tokens.get(i)];
+
+          if (w != -1) {
+            docTokens[n] = w;
+            docChunks[n] = (chunks != null) ? chunks.get(i) : 0;
+            n++;
+          }
+        }
+      }
+    }
+    finally {
+      raf.close();
+    }
+  }
+}
@@ -0,0 +1,31 @@
+package edu.umass.cs.wallach.cluster;
+
+import java.io.*;
+
+import cc.mallet.types.*;
+
+public class FlatCorpusConverter {
+
+  public static void main(String[] args) throws java.io.IOException {
+
+    if (args.length != 2) {
+      System.out.println("Usage: FlatCorpusConverter <instance_list> <output_corpus>");
+      System.exit(1);
+    }
+
+    String instanceListFileName = args[0];
+    String outputCorpusFileName = args[1];
+
+    System.out.print("Loading " + instanceListFileName + "...");
+
+    InstanceList instances = InstanceList.load(new File(instanceListFileName));
+
+    System.out.println();
+
+    System.out.print("Saving " + instances.size() + " instances to " + outputCorpusFileName + "...");
+
+    FlatCorpus.write(instances, outputCorpusFileName);
+
+    System.out.println();
+  }
+}
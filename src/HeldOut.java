@@ -0,0 +1,49 @@
+package edu.umass.cs.wallach.cluster;
+
+import java.io.*;
+
+// reporting for document completion (Wallach et al., 2009), where the
+// first half of each test document is folded in and the second half
+// is scored -- shared by the models' documentCompletion() methods
+
+public class HeldOut {
+
+  // writes "<source> <# of held-out tokens> <log prob>" for each test
+  // document to fileName, prints the total log prob, # of held-out
+  // tokens and perplexity, and returns the total log prob
+
+  public static double print(Corpus testDocs, double[] logProbs, String fileName) {
+
+    double logProb = 0.0;
+
+    long numTokens = 0;
+
+    try {
+
+      PrintWriter pw = new PrintWriter(fileName);
+
+      for (int d=0; d<testDocs.size(); d++) {
+
+        Document doc = testDocs.getDocument(d);
+
+        int numHeldOut = doc.getLength() - doc.getLength() / 2;
+
+        pw.println(doc.getSource() + " " + numHeldOut + " " + logProbs[d]);
+
+        logProb += logProbs[d];
+        numTokens += numHeldOut;
+      }
+
+      pw.close();
+    }
+    catch (IOException e) {
+      System.out.println(e);
+    }
+
+    System.out.println("Held-out log prob: " + logProb);
+    System.out.println("# held-out tokens: " + numTokens);
+    System.out.println("Perplexity: " + Math.exp(-logProb / numTokens));
+
+    return logProb;
+  }
+}
@@ -2,23 +2,59 @@ package edu.umass.cs.wallach.cluster;
 
 import java.io.*;
 import java.util.*;
-
-import gnu.trove.*;
+import java.util.concurrent.*;
 
 import cc.mallet.types.*;
 
 public class InstanceListLoader {
 
+  private static final int UNMAPPED = -2;
+
+  private static final int BLOCK_SIZE = 1024; // documents per task
+
+  // loads either a serialized InstanceList or a flat corpus written by
+  // FlatCorpusConverter, which is memory-mapped rather than deserialized
+
   public static void load(String inputFile, Corpus docs) {
 
-    InstanceList instances = InstanceList.load(new File(inputFile));
+    try {
+      if (FlatCorpus.isFlatCorpus(inputFile)) {
+        FlatCorpus.load(inputFile, docs);
+        return;
+      }
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+
+    load(InstanceList.load(new File(inputFile)), docs, Runtime.getRuntime().availableProcessors());
+  }
 
-    Alphabet wordDict = docs.getWordDict();
+  // adds the non-empty instances to docs. Each instance word type is
+  // lowercased and looked up in docs' vocabulary once, in order of
+  // first occurrence, so the vocabulary is the same as if every token
+  // were looked up in turn -- tokens whose words can't be added
+  // (because the vocabulary's growth has been stopped) are dropped.
+  // The documents are then copied into the corpus in blocks, on
+  // numThreads threads.
 
-    // read in data
+  public static void load(final InstanceList instances, Corpus docs, int numThreads) {
+
+    Alphabet wordDict = docs.getWordDict();
 
     Alphabet instanceDict = instances.getDataAlphabet();
 
+    final int[] remap = new int[instanceDict.size()];
+    Arrays.fill(remap, UNMAPPED);
+
+    // map each word type and count each document's remaining tokens
+
+    int[] indices = new int[instances.size()]; // instances to add
+    int[] lengths = new int[instances.size()];
+    String[] sources = new String[instances.size()];
+
+    int numNew = 0;
+
     for (int d=0; d<instances.size(); d++) {
 
       Instance instance = instances.get(d);
@@ -27,43 +63,92 @@ public class InstanceListLoader {
 
       int nd = fs.getLength();
 
+      if (nd == 0)
+        continue;
+
       int[] chunks = (int[]) instance.getProperty("chunks");
 
       if (chunks != null)
         assert chunks.length == nd;
-      else {
-        chunks = new int[nd];
-        Arrays.fill(chunks, 0);
+
+      int[] features = fs.getFeatures();
+
+      int length = 0;
+
+      for (int i=0; i<nd; i++) {
+
+        int type = features[i];
+
+        if (remap[type] == UNMAPPED)
+          remap[type] = wordDict.lookupIndex(((String) instanceDict.lookupObject(type)).toLowerCase());
+
+        if (remap[type] != -1) // this will only happen if wordDict's growth has been stopped
+          length++;
       }
 
-      if (nd > 0) {
+      indices[numNew] = d;
+      lengths[numNew] = length;
+      sources[numNew] = instance.getSource().toString();
 
-        Document document = new Document(instance.getSource().toString());
+      numNew++;
+    }
 
-        TIntArrayList tokenList = new TIntArrayList();
-        TIntArrayList chunkList = new TIntArrayList();
+    final int first = docs.size();
 
-        for (int i=0; i<nd; i++) {
+    docs.addDocuments(Arrays.copyOf(sources, numNew), Arrays.copyOf(lengths, numNew));
 
-          String word = ((String) instanceDict.lookupObject(fs.getIndexAtPosition(i))).toLowerCase();
+    // copy the tokens and chunks
 
-          int w = wordDict.lookupIndex(word);
+    final int[] docIndices = indices;
 
-          if (w != -1) { // this will only happen if wordDict's growth has been stopped
-            tokenList.add(w);
+    final int[] offsets = docs.getOffsets();
+    final int[] tokens = docs.getTokens();
+    final int[] chunks = docs.getChunks();
 
-            chunkList.add(chunks[i]);
-          }
-        }
+    List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
 
-        assert tokenList.size() <= nd;
-        assert chunkList.size() <= nd;
+    for (int start=0; start<numNew; start+=BLOCK_SIZE) {
 
-        document.setTokens(tokenList.toNativeArray());
-        document.setChunks(chunkList.toNativeArray());
+      final int blockStart = start;
+      final int blockEnd = Math.min(start + BLOCK_SIZE, numNew);
 
-        docs.add(document);
-      }
+      tasks.add(new Callable<Object>() {
+          public Object call() {
+
+            for (int k=blockStart; k<blockEnd; k++) {
+
+              Instance instance = instances.get(docIndices[k]);
+
+              FeatureSequence fs = (FeatureSequence) instance.getData();
+
+              int[] features = fs.getFeatures();
+              int[] cs = (int[]) instance.getProperty("chunks");
+
+              int n = offsets[first + k];
+
+              for (int i=0; i<fs.getLength(); i++) {
+
+                int w = remap[features[i]];
+
+                if (w != -1) {
+                  tokens[n] = w;
+                  chunks[n] = (cs == null) ? 0 : cs[i];
+                  n++;
+                }
+              }
+
+              assert n == offsets[first + k + 1];
+            }
+
+            return null;
+          }
+        });
     }
+
+    ForkJoinPool pool = new ForkJoinPool(numThreads);
+
+    Shards.invokeAll(pool, tasks);
+
+    pool.shutdown();
   }
 }
@@ -2,6 +2,7 @@ package edu.umass.cs.wallach.cluster;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import gnu.trove.*;
 
@@ -17,84 +18,89 @@ public class LDA {
 
   private int W, T, D; // constants
 
-  private int[][] z; // topic assignments
+  private Assignments z; // topic assignments, indexed by corpus position
 
   private LogRandoms rng; // random number generator
 
-  private double getScore(int w, int j, int d) {
+  private SamplingWorkspace workspace; // scratch buffers for sampling
 
-    return topicWordScore.getScore(w, j) * docTopicScore.getScore(j, d);
-  }
+  // worker threads for parallel sampling
 
-  // computes P(w, z) using the predictive distribution
+  private LDA[] workers;
+  private int[] shards;
+  private ForkJoinPool pool;
+  private int syncInterval;
+  private int[] mergedRows;
 
-  private double logProb(Corpus docs) {
+  private SparseTopicSampler sparseSampler;
+  private AliasTopicSampler aliasSampler;
 
-    double logProb = 0;
+  private double getScore(int w, int j, int d) {
 
-    topicWordScore.resetCounts();
-    docTopicScore.resetCounts();
+    return topicWordScore.getScore(w, j) * docTopicScore.getScore(j, d);
+  }
 
-    for (int d=0; d<D; d++) {
+  // computes P(w, z) in closed form from the current counts (with the
+  // tables under the minimal path assumption), in parallel if there
+  // are worker threads -- the result doesn't depend on their number
 
-      int[] fs = docs.getDocument(d).getTokens();
+  private double logProb() {
 
-      int nd = fs.length;
+    return topicWordScore.logProb(pool) + docTopicScore.logProb(pool);
+  }
 
-      for (int i=0; i<nd; i++) {
+  // creates a copy of the model with frozen copies of its counts, for
+  // computing diagnostics while sampling carries on
 
-        int w = fs[i];
-        int j = z[d][i];
+  private LDA snapshot() {
 
-        logProb += Math.log(getScore(w, j, d));
+    LDA snapshot = new LDA();
 
-        topicWordScore.incrementCounts(w, j);
-        docTopicScore.incrementCounts(j, d);
-      }
-    }
+    snapshot.topicWordScore = topicWordScore.snapshot();
+    snapshot.docTopicScore = docTopicScore.snapshot();
+
+    snapshot.pool = pool;
 
-    return logProb;
+    return snapshot;
   }
 
-  private void sampleTopics(Corpus docs, boolean init) {
+  private void sampleTopics(Corpus docs, boolean init, int start, int end) {
 
     // resample topics
 
-    for (int d=0; d<D; d++) {
-
-      int[] fs = docs.getDocument(d).getTokens();
+    int[] offsets = docs.getOffsets();
+    int[] tokens = docs.getTokens();
 
-      int nd = fs.length;
+    for (int d=start; d<end; d++) {
 
-      if (init)
-        z[d] = new int[nd];
+      for (int n=offsets[d]; n<offsets[d+1]; n++) {
 
-      for (int i=0; i<nd; i++) {
-
-        int w = fs[i];
-        int oldTopic = z[d][i];
+        int w = tokens[n];
+        int oldTopic = z.getTopic(n);
 
         if (!init) {
           topicWordScore.decrementCounts(w, oldTopic);
           docTopicScore.decrementCounts(oldTopic, d);
         }
 
-        // build a distribution over topics
+        int newTopic;
 
-        double dist[] = new double[T];
-        double distSum = 0.0;
+        if (!init && (aliasSampler != null))
+          newTopic = aliasSampler.sample(w, d, z, offsets[d], offsets[d+1], n, oldTopic, 1.0, -1.0, 0, rng);
+        else {
 
-        for (int j=0; j<T; j++) {
+          // build a distribution over topics
 
-          double score = getScore(w, j, d);
+          double[] dist = workspace.getDist(T);
 
-          dist[j] = score;
-          distSum += score;
-        }
+          docTopicScore.getScores(d, dist);
 
-        int newTopic = rng.nextDiscrete(dist, distSum);
+          double distSum = topicWordScore.scoreVector(w, 1.0, dist, dist);
 
-        z[d][i] = newTopic;
+          newTopic = rng.nextDiscrete(dist, T, distSum);
+        }
+
+        z.setTopic(n, newTopic);
 
         topicWordScore.incrementCounts(w, newTopic);
         docTopicScore.incrementCounts(newTopic, d);
@@ -102,9 +108,262 @@ public class LDA {
     }
   }
 
+  // creates one worker per thread, each with its own copy of the
+  // global counts and a contiguous shard of documents
+
+  private void createWorkers(Corpus docs, int numThreads) {
+
+    pool = new ForkJoinPool(numThreads);
+
+    shards = Shards.split(docs, numThreads);
+
+    workers = new LDA[numThreads];
+
+    for (int p=0; p<numThreads; p++) {
+
+      LDA worker = new LDA();
+
+      worker.topicWordScore = topicWordScore.copy();
+      worker.docTopicScore = docTopicScore.copy();
+
+      worker.W = W;
+      worker.T = T;
+      worker.D = D;
+
+      worker.z = z;
+
+      worker.rng = new LogRandoms(rng.nextInt());
+      worker.workspace = new SamplingWorkspace();
+
+      if (sparseSampler != null) {
+        worker.sparseSampler = new SparseTopicSampler(worker.topicWordScore, worker.docTopicScore, W, T);
+        worker.sparseSampler.initialize();
+      }
+
+      if (aliasSampler != null)
+        worker.aliasSampler = new AliasTopicSampler(worker.topicWordScore, worker.docTopicScore, W, T, 2);
+
+      workers[p] = worker;
+    }
+  }
+
+  // adds every worker's changes to the global counts and resets the
+  // workers' copies to the merged counts
+
+  private void mergeWorkers() {
+
+    int P = workers.length;
+
+    TopicWordScore[] topicWordScores = new TopicWordScore[P];
+    DocTopicScore[] docTopicScores = new DocTopicScore[P];
+
+    for (int p=0; p<P; p++) {
+      topicWordScores[p] = workers[p].topicWordScore;
+      docTopicScores[p] = workers[p].docTopicScore;
+    }
+
+    mergedRows = topicWordScore.merge(topicWordScores);
+    docTopicScore.merge(docTopicScores);
+  }
+
+  // approximate distributed Gibbs sampling -- each worker samples its
+  // own shard against its own copy of the counts, and the copies are
+  // merged every syncInterval documents (or once per sweep if
+  // syncInterval is zero)
+
+  private void sampleTopicsParallel(final Corpus docs) {
+
+    int P = workers.length;
+
+    // pick up any changes to the hyperparameters since the last sweep
+
+    for (int p=0; p<P; p++) {
+      workers[p].topicWordScore.updateCoefficients();
+      workers[p].docTopicScore.updateCoefficients();
+    }
+
+    int maxShardSize = 0;
+
+    for (int p=0; p<P; p++)
+      maxShardSize = Math.max(maxShardSize, shards[p+1] - shards[p]);
+
+    int blockSize = (syncInterval > 0) ? syncInterval : maxShardSize;
+
+    for (int offset=0; offset<maxShardSize; offset+=blockSize) {
+
+      List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+
+      for (int p=0; p<P; p++) {
+
+        final LDA worker = workers[p];
+
+        final int start = Math.min(shards[p] + offset, shards[p+1]);
+        final int end = Math.min(start + blockSize, shards[p+1]);
+
+        tasks.add(new Callable<Object>() {
+            public Object call() {
+              if (worker.sparseSampler != null) {
+
+                // pick up the other workers' changes
+
+                if (mergedRows != null)
+                  for (int w : mergedRows)
+                    worker.sparseSampler.initialize(w);
+
+                worker.sparseSampler.sampleTopics(docs, z, start, end, worker.rng);
+              }
+              else
+                worker.sampleTopics(docs, false, start, end);
+              return null;
+            }
+          });
+      }
+
+      Shards.invokeAll(pool, tasks);
+
+      mergeWorkers();
+    }
+  }
+
+  // creates a sampler for test documents that shares the locked
+  // training counts -- it folds in one document at a time, keeping
+  // its own changes to the counts, which are undone by resetCounts().
+  // Each thread needs its own tester.
+
+  private LDA createTester() {
+
+    topicWordScore.lock();
+
+    LDA tester = new LDA();
+
+    tester.topicWordScore = topicWordScore.testCopy();
+
+    tester.docTopicScore = docTopicScore.copy();
+    tester.docTopicScore.lock(1);
+
+    tester.W = W;
+    tester.T = T;
+    tester.D = 1;
+
+    tester.workspace = new SamplingWorkspace();
+
+    return tester;
+  }
+
+  // undoes a tester's changes to the counts and adds the tokens to
+  // them as its only document, with initial assignments -- returns
+  // the one-document corpus to sample
+
+  private Corpus beginFoldIn(String source, int[] tokens, int seed) {
+
+    topicWordScore.resetCounts();
+    docTopicScore.resetCounts();
+
+    rng = new LogRandoms(seed);
+
+    Corpus docs = new Corpus(null, null);
+    docs.add(source, tokens, null);
+
+    z = new Assignments(tokens.length, T, false);
+
+    sampleTopics(docs, true, 0, 1);
+
+    return docs;
+  }
+
+  // log P(second half of doc | first half), estimated by sampling the
+  // topics of the first half for numItns sweeps and averaging the
+  // probability of the second half over the last numSamples of them
+
+  private double completeDocument(Corpus testDocs, int d, int numItns, int numSamples, int seed) {
+
+    Document doc = testDocs.getDocument(d);
+
+    int[] tokens = testDocs.getTokens();
+
+    int start = doc.getStart();
+    int nd = doc.getLength();
+    int m = nd / 2; // # of observed tokens
+
+    Corpus docs = beginFoldIn(doc.getSource(), Arrays.copyOfRange(tokens, start, start + m), seed);
+
+    double logProb = Double.NEGATIVE_INFINITY;
+
+    for (int s=1; s<=numItns; s++) {
+
+      sampleTopics(docs, false, 0, 1);
+
+      if (s > numItns - numSamples) {
+
+        // each held-out token's probability given the sample
+
+        double[] dist = workspace.getDist(T);
+
+        double sampleLogProb = 0.0;
+
+        for (int i=m; i<nd; i++) {
+
+          docTopicScore.getScores(0, dist);
+
+          sampleLogProb += Math.log(topicWordScore.scoreVector(tokens[start + i], 1.0, dist, dist));
+        }
+
+        logProb = Maths.sumLogProb(logProb, sampleLogProb);
+      }
+    }
+
+    return logProb - Math.log(numSamples);
+  }
+
+  // evaluates the trained model on held-out documents by document
+  // completion, as RegisterLDA.documentCompletion() does -- writes
+  // "<source> <# of held-out tokens> <log prob>" for each document to
+  // outputFileName and returns the total log prob
+
+  public double documentCompletion(final Corpus testDocs, final int numItns, final int numSamples, int numThreads, String outputFileName) {
+
+    assert (numSamples >= 1) && (numSamples <= numItns);
+
+    int numTestDocs = testDocs.size();
+
+    final double[] logProbs = new double[numTestDocs];
+
+    long start = System.currentTimeMillis();
+
+    ForkJoinPool testPool = new ForkJoinPool(numThreads);
+
+    int[] bounds = Shards.split(testDocs, numThreads);
+
+    List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+
+    for (int p=0; p<numThreads; p++) {
+
+      final LDA tester = createTester();
+
+      final int shardStart = bounds[p];
+      final int shardEnd = bounds[p+1];
+
+      tasks.add(new Callable<Object>() {
+          public Object call() {
+            for (int d=shardStart; d<shardEnd; d++)
+              logProbs[d] = tester.completeDocument(testDocs, d, numItns, numSamples, d);
+            return null;
+          }
+        });
+    }
+
+    Shards.invokeAll(testPool, tasks);
+
+    testPool.shutdown();
+
+    Timer.printTimingInfo(start, System.currentTimeMillis());
+
+    return HeldOut.print(testDocs, logProbs, outputFileName);
+  }
+
   // estimate topics
 
-  public void estimate(Corpus docs, TIntIntHashMap unseenCounts, int[][] zInit, int itnOffset, int T, double[] alpha, double[] beta, int numItns, int printInterval, int saveStateInterval, boolean[] sample, String documentTopicsFileName, String topicWordsFileName, String topicSummaryFileName, String stateFileName, String alphaFileName, String betaFileName, String logProbFileName) {
+  public void estimate(Corpus docs, TIntIntHashMap unseenCounts, Assignments zInit, LogRandoms rngInit, int itnOffset, int T, double[] alpha, double[] beta, int numItns, int printInterval, int saveStateInterval, boolean[] sample, String sampler, int numThreads, int syncInterval, boolean sparseOutput, String documentTopicsFileName, String topicWordsFileName, String topicSummaryFileName, String stateFileName, String checkpointFileName, String alphaFileName, String betaFileName, String logProbFileName) {
 
     boolean append = false;
 
@@ -115,11 +374,12 @@ public class LDA {
       append = true;
     }
 
-    Alphabet wordDict = docs.getWordDict();
+    final Alphabet wordDict = docs.getWordDict();
 
     assert (saveStateInterval == 0) || (numItns % saveStateInterval == 0);
 
-    rng = new LogRandoms(1000);
+    rng = (rngInit == null) ? new LogRandoms(1000) : rngInit;
+    workspace = new SamplingWorkspace();
 
     this.T = T;
 
@@ -129,29 +389,29 @@ public class LDA {
     System.out.println("Num docs: " + D);
     System.out.println("Num words in vocab: " + W);
     System.out.println("Num topics: " + T);
+    System.out.println("Sampler: " + sampler);
 
     topicWordScore = new TopicWordScore(W, T, beta, unseenCounts);
     docTopicScore = new DocTopicScore(T, D, alpha, "minimal");
 
     if (zInit == null) {
 
-      z = new int[D][];
-      sampleTopics(docs, true); // initialize topic assignments
+      z = new Assignments(docs.getNumTokens(), T, false);
+      sampleTopics(docs, true, 0, D); // initialize topic assignments
     }
     else {
 
       z = zInit;
 
-      for (int d=0; d<D; d++) {
+      int[] offsets = docs.getOffsets();
+      int[] tokens = docs.getTokens();
 
-        int[] fs = docs.getDocument(d).getTokens();
-
-        int nd = fs.length;
+      for (int d=0; d<D; d++) {
 
-        for (int i=0; i<nd; i++) {
+        for (int n=offsets[d]; n<offsets[d+1]; n++) {
 
-          int w = fs[i];
-          int topic = z[d][i];
+          int w = tokens[n];
+          int topic = z.getTopic(n);
 
           topicWordScore.incrementCounts(w, topic);
           docTopicScore.incrementCounts(topic, d);
@@ -159,12 +419,28 @@ public class LDA {
       }
     }
 
+    if (sampler.equals("sparse")) {
+      sparseSampler = new SparseTopicSampler(topicWordScore, docTopicScore, W, T);
+      sparseSampler.initialize();
+    }
+    else if (sampler.equals("alias"))
+      aliasSampler = new AliasTopicSampler(topicWordScore, docTopicScore, W, T, 2);
+    else
+      assert sampler.equals("dense");
+
+    this.syncInterval = syncInterval;
+
+    if (numThreads > 1)
+      createWorkers(docs, numThreads);
+
     long start = System.currentTimeMillis();
 
     try {
 
       PrintWriter logProbWriter = new PrintWriter(new FileWriter(logProbFileName, append), true);
 
+      Diagnostics diagnostics = new Diagnostics(logProbWriter);
+
       // count matrices have been populated, every token has been
       // assigned to a single topic, so Gibbs sampling can start
 
@@ -177,27 +453,48 @@ public class LDA {
 
         System.out.flush();
 
-        sampleTopics(docs, false);
+        if (pool != null)
+          sampleTopicsParallel(docs);
+        else if (sparseSampler != null)
+          sparseSampler.sampleTopics(docs, z, 0, D, rng);
+        else
+          sampleTopics(docs, false, 0, D);
 
         if (sample[0])
-          docTopicScore.sampleAlpha(docs, null, z, rng, 5, 1.0);
+          docTopicScore.sampleAlpha(docs, z, rng, 5, 1.0);
 
         if (sample[1])
-          topicWordScore.sampleBeta(docs, null, z, rng, 5, 1.0);
+          topicWordScore.sampleBeta(rng, 5, 1.0);
 
         if (printInterval != 0) {
           if (s % printInterval == 0) {
-            System.out.println();
-            topicWordScore.print(wordDict, 0.0, 10, true, null);
 
-            logProbWriter.println(logProb(docs));
-            logProbWriter.flush();
+            diagnostics.reserve();
+
+            final LDA snapshot = snapshot();
+
+            final int itn = itnOffset + s;
+
+            diagnostics.submit(itn, new Callable<Double>() {
+                public Double call() {
+
+                  synchronized (System.out) {
+                    System.out.println();
+                    System.out.println("Iteration " + itn + ":");
+                    snapshot.topicWordScore.print(wordDict, 0.0, 10, true, null, pool);
+                  }
+
+                  return snapshot.logProb();
+                }
+              });
           }
         }
 
         if ((saveStateInterval != 0) && (s % saveStateInterval == 0)) {
           if (stateFileName != null)
             docs.printFeatures(z, stateFileName + "." + (itnOffset + s));
+          if (checkpointFileName != null)
+            saveCheckpoint(docs, itnOffset + s, checkpointFileName + "." + (itnOffset + s));
           if (alphaFileName != null)
             docTopicScore.printAlpha(alphaFileName + "." + (itnOffset + s));
           if (betaFileName != null)
@@ -205,24 +502,40 @@ public class LDA {
         }
       }
 
+      diagnostics.close();
+
       Timer.printTimingInfo(start, System.currentTimeMillis());
 
       if (saveStateInterval == 0) {
         if (stateFileName != null)
           docs.printFeatures(z, stateFileName);
+        if (checkpointFileName != null)
+          saveCheckpoint(docs, itnOffset + numItns, checkpointFileName);
         if (alphaFileName != null)
           docTopicScore.printAlpha(alphaFileName);
         if (betaFileName != null)
           topicWordScore.printBeta(betaFileName);
       }
 
-      if (documentTopicsFileName != null)
-        docTopicScore.print(docs, documentTopicsFileName);
-      if (topicWordsFileName != null)
-        topicWordScore.print(wordDict, topicWordsFileName);
+      if (documentTopicsFileName != null) {
+        if (sparseOutput)
+          docTopicScore.printSparse(docs, documentTopicsFileName);
+        else
+          docTopicScore.print(docs, documentTopicsFileName, pool);
+      }
+
+      if (topicWordsFileName != null) {
+        if (sparseOutput)
+          topicWordScore.printSparse(wordDict, topicWordsFileName);
+        else
+          topicWordScore.print(wordDict, topicWordsFileName, pool);
+      }
 
       if (topicSummaryFileName != null)
-        topicWordScore.print(wordDict, 0.0, 10, true, topicSummaryFileName);
+        topicWordScore.print(wordDict, 0.0, 10, true, topicSummaryFileName, pool);
+
+      if (pool != null)
+        pool.shutdown();
 
       logProbWriter.close();
     }
@@ -231,6 +544,18 @@ public class LDA {
     }
   }
 
+  // saves the sampler's state after iteration itn
+
+  private void saveCheckpoint(Corpus docs, int itn, String fileName) throws IOException {
+
+    Checkpoint checkpoint = new Checkpoint(itn, docs, z, null, 0, 0, rng);
+
+    checkpoint.setHyperparameter("alpha", docTopicScore.getAlpha());
+    checkpoint.setHyperparameter("beta", topicWordScore.getBeta());
+
+    checkpoint.write(fileName);
+  }
+
   public double[] getAlpha() {
 
     return docTopicScore.getAlpha();
@@ -241,7 +566,7 @@ public class LDA {
     return topicWordScore.getBeta();
   }
 
-  public int[][] getTopics() {
+  public Assignments getAssignments() {
 
     return z;
   }
@@ -0,0 +1,151 @@
+package edu.umass.cs.wallach.cluster;
+
+// log-gamma ratios for scoring groups of tokens in closed form
+
+public class LogGamma {
+
+  // below this many terms the product is cheaper and more accurate
+  // than the difference of two log-gamma evaluations
+
+  private static final int MAX_PRODUCT_TERMS = 8;
+
+  // above this the difference of two log-gamma evaluations loses too
+  // many digits (e.g., for the 1e300 prior used when C = 1), so the
+  // ratio comes from Stirling's series instead
+
+  private static final double MIN_STIRLING_ARGUMENT = 1e6;
+
+  // coefficients for Cody and Hillstrom's rational approximations, as
+  // used by cc.mallet.util.Maths.logGamma, which allocates them on
+  // every call
+
+  private static final double D1 = -0.5772156649015329;
+
+  private static final double[] P1 = { 4.945235359296727, 201.8112620856775, 2290.8383738313464, 11319.672059033808, 28557.246356716354, 38484.962284437934, 26377.487876241954, 7225.813979700288 };
+  private static final double[] Q1 = { 67.48212550303778, 1113.3323938571993, 7738.757056935398, 27639.870744033407, 54993.102062261576, 61611.22180066002, 36351.2759150194, 8785.536302431014 };
+
+  private static final double D2 = 0.42278433509846713;
+
+  private static final double[] P2 = { 4.974607845568932, 542.4138599891071, 15506.93864978365, 184793.29044456323, 1088204.7694688288, 3338152.96798703, 5106661.678927353, 3074109.0548505397 };
+  private static final double[] Q2 = { 183.03283993705926, 7765.049321445006, 133190.38279660742, 1136705.8213219696, 5267964.117437947, 1.3467014543111017E7, 1.7827365303532742E7, 9533095.591844354 };
+
+  private static final double D4 = 1.791759469228055;
+
+  private static final double[] P4 = { 14745.0216605994, 2426813.3694867045, 1.2147555740450932E8, 2.663432449630977E9, 2.940378956634554E10, 1.702665737765399E11, 4.926125793377431E11, 5.606251856223951E11 };
+  private static final double[] Q4 = { 2690.5301758708993, 639388.5654300093, 4.135599930241388E7, 1.120872109616148E9, 1.4886137286788137E10, 1.0168035862724382E11, 3.4174763455073773E11, 4.463158187419713E11 };
+
+  private static final double[] C = { -0.001910444077728, 8.4171387781295E-4, -5.952379913043012E-4, 7.936507935003503E-4, -0.0027777777777776816, 0.08333333333333333, 0.0057083835261 };
+
+  private static final double HALF_LOG_TWO_PI = 0.9189385332046728;
+
+  // log Gamma(x) for x > 0 -- gives the same result as Maths.logGamma
+  // without allocating
+
+  public static double logGamma(double x) {
+
+    double y = x;
+    double res;
+
+    if ((y <= 0.5) || ((y > 0.6796875) && (y <= 1.5))) {
+
+      if (y <= 0.5) {
+
+        res = -Math.log(y);
+
+        if (y + 1.0 == 1.0)
+          return res;
+      }
+      else {
+        res = 0.0;
+        y = (y - 0.5) - 0.5;
+      }
+
+      double xnum = 0.0;
+      double xden = 1.0;
+
+      for (int i=0; i<8; i++) {
+        xnum = xnum * y + P1[i];
+        xden = xden * y + Q1[i];
+      }
+
+      res += y * (D1 + y * (xnum / xden));
+    }
+    else if ((y <= 0.6796875) || ((y > 1.5) && (y <= 4.0))) {
+
+      if (y <= 0.6796875) {
+        res = -Math.log(y);
+        y = (y - 0.5) - 0.5;
+      }
+      else {
+        res = 0.0;
+        y -= 2.0;
+      }
+
+      double xnum = 0.0;
+      double xden = 1.0;
+
+      for (int i=0; i<8; i++) {
+        xnum = xnum * y + P2[i];
+        xden = xden * y + Q2[i];
+      }
+
+      res += y * (D2 + y * (xnum / xden));
+    }
+    else if (y <= 12.0) {
+
+      y -= 4.0;
+
+      double xnum = 0.0;
+      double xden = -1.0;
+
+      for (int i=0; i<8; i++) {
+        xnum = xnum * y + P4[i];
+        xden = xden * y + Q4[i];
+      }
+
+      res = D4 + y * (xnum / xden);
+    }
+    else {
+
+      double corr = Math.log(y);
+
+      res = y * (corr - 1.0) - corr * 0.5 + HALF_LOG_TWO_PI;
+
+      y = 1.0 / y;
+
+      double ysq = y * y;
+
+      corr = C[6];
+
+      for (int i=0; i<6; i++)
+        corr = corr * ysq + C[i];
+
+      res += corr * y;
+    }
+
+    return res;
+  }
+
+  // log (Gamma(a + n) / Gamma(a)) = log (a (a + 1) ... (a + n - 1))
+
+  public static double ratio(double a, int n) {
+
+    if (n == 0)
+      return 0.0;
+    else if (n == 1)
+      return Math.log(a);
+    else if (n <= MAX_PRODUCT_TERMS) {
+
+      double product = a;
+
+      for (int k=1; k<n; k++)
+        product *= a + k;
+
+      return Math.log(product);
+    }
+    else if (a > MIN_STIRLING_ARGUMENT)
+      return (a - 0.5) * Math.log1p(n / a) + n * Math.log(a + n) - n - n / (12.0 * a * (a + n));
+    else
+      return logGamma(a + n) - logGamma(a);
+  }
+}
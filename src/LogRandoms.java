@@ -38,31 +38,45 @@ public class LogRandoms extends Randoms {
 
   public int nextDiscreteLogDist(double[] logDist) {
 
+    return nextDiscreteLogDist(logDist, logDist.length, new SamplingWorkspace());
+  }
+
+  // draws from logDist[0, size) using the workspace's scratch buffer
+
+  public int nextDiscreteLogDist(double[] logDist, int size, SamplingWorkspace workspace) {
+
     double max = Double.NEGATIVE_INFINITY;
 
-    for (int i=0; i<logDist.length; i++)
+    for (int i=0; i<size; i++)
       if (logDist[i] > max)
         max = logDist[i];
 
-    double[] dist = new double[logDist.length];
+    double[] dist = workspace.getExpDist(size);
     double distSum = 0.0;
 
-    for (int i=0; i<logDist.length; i++) {
+    for (int i=0; i<size; i++) {
       dist[i] = Math.exp(logDist[i] - max);
       distSum += dist[i];
     }
 
-    return nextDiscrete(dist, distSum);
+    return nextDiscrete(dist, size, distSum);
   }
 
   public int nextDiscrete(double[] dist, double distSum) {
 
+    return nextDiscrete(dist, dist.length, distSum);
+  }
+
+  // draws from dist[0, size), which need not fill the array
+
+  public int nextDiscrete(double[] dist, int size, double distSum) {
+
     double r = nextUniform() * distSum;
     double acc = 0.0;
 
     int m = -1;
 
-    for (int i=0; i<dist.length; i++) {
+    for (int i=0; i<size; i++) {
       acc += dist[i];
 
       if (acc > r) {
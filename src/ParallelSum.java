@@ -0,0 +1,73 @@
+package edu.umass.cs.wallach.cluster;
+
+import java.util.concurrent.*;
+
+// fork-join sums over a range of indices (e.g., documents or word
+// types). The range is cut into blocks of BLOCK_SIZE indices and the
+// blocks' partial sums are combined in a fixed binary tree, so the
+// result depends only on the range -- it is bit-for-bit the same
+// whatever the number of threads, and with no pool at all
+
+public class ParallelSum {
+
+  private static final int BLOCK_SIZE = 256;
+
+  // the sum of the terms for indices [start, end), computed in order
+
+  public interface Terms {
+
+    public double sum(int start, int end);
+  }
+
+  private static class Task extends RecursiveTask<Double> {
+
+    private static final long serialVersionUID = 1L;
+
+    private Terms terms;
+    private int start, end;
+    private boolean fork;
+
+    public Task(Terms terms, int start, int end, boolean fork) {
+
+      this.terms = terms;
+      this.start = start;
+      this.end = end;
+      this.fork = fork;
+    }
+
+    protected Double compute() {
+
+      if (end - start <= BLOCK_SIZE)
+        return terms.sum(start, end);
+
+      // split on a block boundary so the tree is fixed by the range
+
+      int numBlocks = (end - start + BLOCK_SIZE - 1) / BLOCK_SIZE;
+      int mid = start + (numBlocks / 2) * BLOCK_SIZE;
+
+      Task left = new Task(terms, start, mid, fork);
+      Task right = new Task(terms, mid, end, fork);
+
+      if (fork) {
+
+        left.fork();
+
+        double rightSum = right.compute();
+
+        return left.join() + rightSum;
+      }
+      else
+        return left.compute() + right.compute();
+    }
+  }
+
+  // sums the terms for indices [0, n), using the pool if it isn't null
+
+  public static double sum(ForkJoinPool pool, int n, Terms terms) {
+
+    if (pool == null)
+      return new Task(terms, 0, n, false).compute();
+    else
+      return pool.invoke(new Task(terms, 0, n, true));
+  }
+}
@@ -0,0 +1,50 @@
+package edu.umass.cs.wallach.cluster;
+
+import gnu.trove.*;
+
+import cc.mallet.types.*;
+
+// a word alphabet from which rare words have been pruned (see
+// Corpus.prune) -- each pruned word is no longer an entry of its own
+// but looking it up gives the index of the shared "unseen" type that
+// replaced it, so held-out documents and inference requests are mapped
+// the same way as the training corpus was
+
+public class PrunedAlphabet extends Alphabet {
+
+  private static final long serialVersionUID = 1L;
+
+  private TObjectIntHashMap<Object> pruned; // pruned words to unseen types
+
+  public PrunedAlphabet() {
+
+    pruned = new TObjectIntHashMap<Object>();
+  }
+
+  // maps word to the (existing) unseen type w
+
+  public void prune(String word, int w) {
+
+    assert (w >= 0) && (w < size());
+
+    pruned.put(word, w);
+  }
+
+  public int getNumPruned() {
+
+    return pruned.size();
+  }
+
+  public int lookupIndex(Object entry, boolean addIfNotPresent) {
+
+    if (pruned.containsKey(entry))
+      return pruned.get(entry);
+
+    return super.lookupIndex(entry, addIfNotPresent);
+  }
+
+  public boolean contains(Object entry) {
+
+    return pruned.containsKey(entry) || super.contains(entry);
+  }
+}
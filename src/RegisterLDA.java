@@ -2,6 +2,7 @@ package edu.umass.cs.wallach.cluster;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import gnu.trove.*;
 
@@ -22,79 +23,101 @@ public class RegisterLDA {
 
   private int C = 1;
 
-  private int[][] x, z; // switch and topic assignments
+  private Assignments z; // switch and topic assignments, indexed by corpus position
 
   private LogRandoms rng; // random number generator
 
-  // computes P(w, r, x, z) using the predictive distribution
+  private SamplingWorkspace workspace; // scratch buffers for sampling
 
-  private double logProb(Corpus docs) {
+  // worker threads for parallel sampling
 
-    double logProb = 0;
+  private RegisterLDA[] workers;
+  private int[] shards;
+  private ForkJoinPool pool;
+  private int syncInterval;
 
-    registerScore.resetCounts();
-    switchScore.resetCounts();
-    topicWordScore.resetCounts();
-    registerWordScore.resetCounts();
-    docTopicScore.resetCounts();
+  private AliasTopicSampler aliasSampler;
 
-    for (int d=0; d<D; d++) {
+  // the current document's switched tokens, grouped by word type
 
-      int r = docs.getDocument(d).getRegister();
+  private int[] groupTypes, groupCounts;
 
-      logProb += Math.log(registerScore.getScore(r));
+  // computes P(w, r, x, z) in closed form from the current counts (with the
+  // tables under the minimal path assumption), in parallel if there
+  // are worker threads -- the result doesn't depend on their number
 
-      registerScore.incrementCounts(r);
+  private double logProb() {
 
-      int[] fs = docs.getDocument(d).getTokens();
+    double logProb = registerScore.logProb() + switchScore.logProb();
 
-      int nd = fs.length;
+    logProb += topicWordScore.logProb(pool) + docTopicScore.logProb(pool);
+    logProb += registerWordScore.logProb(pool);
 
-      for (int i=0; i<nd; i++) {
+    return logProb;
+  }
 
-        int w = fs[i];
-        int k = x[d][i];
-        int j = z[d][i];
+  // creates a copy of the model with frozen copies of its counts, for
+  // computing diagnostics while sampling carries on
 
-        logProb += Math.log(switchScore.getScore(k, 0));
+  private RegisterLDA snapshot() {
 
-        switchScore.incrementCounts(k, 0);
+    RegisterLDA snapshot = new RegisterLDA();
 
-        if (k == 0) {
+    snapshot.registerScore = registerScore.snapshot();
+    snapshot.switchScore = switchScore.snapshot();
+    snapshot.topicWordScore = topicWordScore.snapshot();
+    snapshot.registerWordScore = registerWordScore.snapshot();
+    snapshot.docTopicScore = docTopicScore.snapshot();
 
-          assert j != -1;
+    snapshot.pool = pool;
 
-          logProb += Math.log(topicWordScore.getScore(w, j) * docTopicScore.getScore(j, d));
+    return snapshot;
+  }
 
-          topicWordScore.incrementCounts(w, j);
-          docTopicScore.incrementCounts(j, d);
-        }
-        else {
+  // groups the switched tokens of a document (those at positions start
+  // through end-1) by word type (in increasing order of type) and
+  // returns the number of groups
 
-          assert j == -1;
+  private int groupSwitchedTokens(int[] tokens, int start, int end) {
 
-          logProb += Math.log(registerWordScore.getScore(w, r));
+    int nd = end - start;
 
-          registerWordScore.incrementCounts(w, r);
+    if ((groupTypes == null) || (groupTypes.length < nd)) {
+      groupTypes = new int[nd];
+      groupCounts = new int[nd];
+    }
 
-        }
+    int n = 0;
+
+    for (int i=start; i<end; i++)
+      if (z.getSwitch(i) == 1)
+        groupTypes[n++] = tokens[i];
+
+    Arrays.sort(groupTypes, 0, n);
+
+    int numGroups = 0;
+
+    for (int i=0; i<n; i++)
+      if ((numGroups > 0) && (groupTypes[numGroups - 1] == groupTypes[i]))
+        groupCounts[numGroups - 1]++;
+      else {
+        groupTypes[numGroups] = groupTypes[i];
+        groupCounts[numGroups++] = 1;
       }
-    }
 
-    return logProb;
+    return numGroups;
   }
 
-  private void sampleVariables(Corpus docs, boolean init) {
+  private void sampleVariables(Corpus docs, boolean init, int start, int end) {
 
     // resample everything
 
-    for (int d=0; d<D; d++) {
+    int[] offsets = docs.getOffsets();
+    int[] tokens = docs.getTokens();
 
-      int rNew = -1;
-
-      int[] fs = docs.getDocument(d).getTokens();
+    for (int d=start; d<end; d++) {
 
-      int nd = fs.length;
+      int rNew = -1;
 
       if (init) {
 
@@ -113,36 +136,20 @@ public class RegisterLDA {
 
         registerScore.decrementCounts(rOld);
 
-        for (int i=0; i<nd; i++)
-          if (x[d][i] == 1)
-            registerWordScore.decrementCounts(fs[i], rOld);
+        for (int n=offsets[d]; n<offsets[d+1]; n++)
+          if (z.getSwitch(n) == 1)
+            registerWordScore.decrementCounts(tokens[n], rOld);
 
         if (R > 1) {
 
-          double[] logDist = new double[R];
-
-          for (int r=0; r<R; r++) {
-
-            double logScore = Math.log(registerScore.getScore(r));
-
-            for (int i=0; i<nd; i++)
-              if (x[d][i] == 1) {
+          int numGroups = groupSwitchedTokens(tokens, offsets[d], offsets[d+1]);
 
-                int w = fs[i];
+          double[] logDist = workspace.getLogDist(R);
 
-                logScore += Math.log(registerWordScore.getScore(w, r));
+          for (int r=0; r<R; r++)
+            logDist[r] = Math.log(registerScore.getScore(r)) + registerWordScore.getLogScore(groupTypes, groupCounts, numGroups, r);
 
-                registerWordScore.incrementCounts(w, r);
-              }
-
-            logDist[r] = logScore;
-
-            for (int i=0; i<nd; i++)
-              if (x[d][i] == 1)
-                registerWordScore.decrementCounts(fs[i], r);
-          }
-
-          rNew = rng.nextDiscreteLogDist(logDist);
+          rNew = rng.nextDiscreteLogDist(logDist, R, workspace);
         }
         else
           rNew = 0;
@@ -151,21 +158,23 @@ public class RegisterLDA {
 
         registerScore.incrementCounts(rNew);
 
-        for (int i=0; i<nd; i++)
-          if (x[d][i] == 1)
-            registerWordScore.incrementCounts(fs[i], rNew);
+        for (int n=offsets[d]; n<offsets[d+1]; n++)
+          if (z.getSwitch(n) == 1)
+            registerWordScore.incrementCounts(tokens[n], rNew);
       }
 
-      if (init) {
-        x[d] = new int[nd];
-        z[d] = new int[nd];
-      }
+      int numSwitched = 0; // # of the document's switched tokens
+
+      if (!init)
+        for (int n=offsets[d]; n<offsets[d+1]; n++)
+          if (z.getSwitch(n) == 1)
+            numSwitched++;
 
-      for (int i=0; i<nd; i++) {
+      for (int n=offsets[d]; n<offsets[d+1]; n++) {
 
-        int w = fs[i];
-        int kOld = x[d][i];
-        int jOld = z[d][i];
+        int w = tokens[n];
+        int kOld = z.getSwitch(n);
+        int jOld = z.getTopic(n);
 
         if (!init) {
 
@@ -175,32 +184,35 @@ public class RegisterLDA {
             topicWordScore.decrementCounts(w, jOld);
             docTopicScore.decrementCounts(jOld, d);
           }
-          else
+          else {
             registerWordScore.decrementCounts(w, rNew);
+            numSwitched--;
+          }
         }
 
-        double[] dist = new double[T+1];
-        double distSum = 0.0;
+        int jNew;
 
-        for (int j=0; j<T; j++) {
+        if (!init && (aliasSampler != null))
+          jNew = aliasSampler.sample(w, d, z, offsets[d], offsets[d+1], n, (kOld == 1) ? T : jOld, switchScore.getScore(0, 0), switchScore.getScore(1, 0) * registerWordScore.getScore(w, rNew), numSwitched, rng);
+        else {
 
-          double score = switchScore.getScore(0, 0) * topicWordScore.getScore(w, j) * docTopicScore.getScore(j, d);
+          double[] dist = workspace.getDist(T+1);
 
-          dist[j] = score;
-          distSum += score;
-        }
+          docTopicScore.getScores(d, dist);
 
-        double score = switchScore.getScore(1, 0) * registerWordScore.getScore(w, rNew);
+          double distSum = topicWordScore.scoreVector(w, switchScore.getScore(0, 0), dist, dist);
 
-        dist[T] = score;
-        distSum += score;
+          double score = switchScore.getScore(1, 0) * registerWordScore.getScore(w, rNew);
 
-        int jNew = rng.nextDiscrete(dist, distSum);
+          dist[T] = score;
+          distSum += score;
+
+          jNew = rng.nextDiscrete(dist, T+1, distSum);
+        }
 
         if (jNew < T) {
 
-          x[d][i] = 0;
-          z[d][i] = jNew;
+          z.setTopic(n, jNew);
 
           switchScore.incrementCounts(0, 0);
           topicWordScore.incrementCounts(w, jNew);
@@ -208,34 +220,331 @@ public class RegisterLDA {
         }
         else {
 
-          x[d][i] = 1;
-          z[d][i] = -1;
+          z.setTopic(n, -1);
 
           switchScore.incrementCounts(1, 0);
           registerWordScore.incrementCounts(w, rNew);
+
+          numSwitched++;
+        }
+      }
+    }
+  }
+
+  // creates one worker per thread, each with its own copy of the
+  // global counts and a contiguous shard of documents
+
+  private void createWorkers(Corpus docs, int numThreads) {
+
+    pool = new ForkJoinPool(numThreads);
+
+    shards = Shards.split(docs, numThreads);
+
+    workers = new RegisterLDA[numThreads];
+
+    for (int p=0; p<numThreads; p++) {
+
+      RegisterLDA worker = new RegisterLDA();
+
+      worker.registerScore = registerScore.copy();
+      worker.switchScore = switchScore.copy();
+      worker.topicWordScore = topicWordScore.copy();
+      worker.registerWordScore = registerWordScore.copy();
+      worker.docTopicScore = docTopicScore.copy();
+
+      worker.W = W;
+      worker.T = T;
+      worker.D = D;
+      worker.R = R;
+
+      worker.z = z;
+
+      worker.rng = new LogRandoms(rng.nextInt());
+      worker.workspace = new SamplingWorkspace();
+
+      if (aliasSampler != null)
+        worker.aliasSampler = new AliasTopicSampler(worker.topicWordScore, worker.docTopicScore, W, T, 2);
+
+      workers[p] = worker;
+    }
+  }
+
+  // adds every worker's changes to the global counts and resets the
+  // workers' copies to the merged counts
+
+  private void mergeWorkers() {
+
+    int P = workers.length;
+
+    RegisterScore[] registerScores = new RegisterScore[P];
+    SwitchScore[] switchScores = new SwitchScore[P];
+    TopicWordScore[] topicWordScores = new TopicWordScore[P];
+    RegisterWordScore[] registerWordScores = new RegisterWordScore[P];
+    DocTopicScore[] docTopicScores = new DocTopicScore[P];
+
+    for (int p=0; p<P; p++) {
+      registerScores[p] = workers[p].registerScore;
+      switchScores[p] = workers[p].switchScore;
+      topicWordScores[p] = workers[p].topicWordScore;
+      registerWordScores[p] = workers[p].registerWordScore;
+      docTopicScores[p] = workers[p].docTopicScore;
+    }
+
+    registerScore.merge(registerScores);
+    switchScore.merge(switchScores);
+    topicWordScore.merge(topicWordScores);
+    registerWordScore.merge(registerWordScores);
+    docTopicScore.merge(docTopicScores);
+  }
+
+  // approximate distributed Gibbs sampling -- each worker samples its
+  // own shard against its own copy of the counts, and the copies are
+  // merged every syncInterval documents (or once per sweep if
+  // syncInterval is zero)
+
+  private void sampleVariablesParallel(final Corpus docs) {
+
+    int P = workers.length;
+
+    // pick up any changes to the hyperparameters since the last sweep
+
+    for (int p=0; p<P; p++) {
+      workers[p].topicWordScore.updateCoefficients();
+      workers[p].registerWordScore.updateCoefficients();
+      workers[p].docTopicScore.updateCoefficients();
+    }
+
+    int maxShardSize = 0;
+
+    for (int p=0; p<P; p++)
+      maxShardSize = Math.max(maxShardSize, shards[p+1] - shards[p]);
+
+    int blockSize = (syncInterval > 0) ? syncInterval : maxShardSize;
+
+    for (int offset=0; offset<maxShardSize; offset+=blockSize) {
+
+      List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+
+      for (int p=0; p<P; p++) {
+
+        final RegisterLDA worker = workers[p];
+
+        final int start = Math.min(shards[p] + offset, shards[p+1]);
+        final int end = Math.min(start + blockSize, shards[p+1]);
+
+        tasks.add(new Callable<Object>() {
+            public Object call() {
+              worker.sampleVariables(docs, false, start, end);
+              return null;
+            }
+          });
+      }
+
+      Shards.invokeAll(pool, tasks);
+
+      mergeWorkers();
+    }
+  }
+
+  // creates a sampler for test documents that shares the locked
+  // training counts -- it folds in one document at a time, keeping
+  // its own changes to the counts, which are undone by resetCounts().
+  // Each thread needs its own tester.
+
+  public RegisterLDA createTester() {
+
+    topicWordScore.lock();
+    registerWordScore.lock();
+
+    RegisterLDA tester = new RegisterLDA();
+
+    tester.registerScore = registerScore.copy();
+    tester.registerScore.lock(1);
+
+    tester.switchScore = switchScore.copy();
+    tester.switchScore.lock(1);
+
+    tester.topicWordScore = topicWordScore.testCopy();
+    tester.registerWordScore = registerWordScore.testCopy();
+
+    tester.docTopicScore = docTopicScore.copy();
+    tester.docTopicScore.lock(1);
+
+    tester.W = W;
+    tester.T = T;
+    tester.D = 1;
+    tester.R = R;
+
+    tester.workspace = new SamplingWorkspace();
+
+    return tester;
+  }
+
+  // undoes a tester's changes to the counts and adds the tokens to
+  // them as its only document, with initial assignments -- returns
+  // the one-document corpus to sample
+
+  private Corpus beginFoldIn(String source, int[] tokens, int seed) {
+
+    registerScore.resetCounts();
+    switchScore.resetCounts();
+    topicWordScore.resetCounts();
+    registerWordScore.resetCounts();
+    docTopicScore.resetCounts();
+
+    rng = new LogRandoms(seed);
+
+    Corpus docs = new Corpus(null, null);
+    docs.add(source, tokens, null);
+
+    z = new Assignments(tokens.length, T, true);
+
+    sampleVariables(docs, true, 0, 1);
+
+    return docs;
+  }
+
+  // folds in a new document on a tester for numItns sweeps, sets
+  // topicProportions[j] to P(j | document) after the last sweep and
+  // returns the document's register
+
+  public int foldIn(int[] tokens, int numItns, int seed, double[] topicProportions) {
+
+    Corpus docs = beginFoldIn(null, tokens, seed);
+
+    for (int s=1; s<=numItns; s++)
+      sampleVariables(docs, false, 0, 1);
+
+    for (int j=0; j<T; j++)
+      topicProportions[j] = docTopicScore.getScore(j, 0);
+
+    return docs.getDocument(0).getRegister();
+  }
+
+  // log P(second half of doc | first half), estimated by sampling the
+  // register, switches and topics of the first half for numItns
+  // sweeps and averaging the probability of the second half over the
+  // last numSamples of them
+
+  private double completeDocument(Corpus testDocs, int d, int numItns, int numSamples, int seed) {
+
+    Document doc = testDocs.getDocument(d);
+
+    int[] tokens = testDocs.getTokens();
+
+    int start = doc.getStart();
+    int nd = doc.getLength();
+    int m = nd / 2; // # of observed tokens
+
+    Corpus docs = beginFoldIn(doc.getSource(), Arrays.copyOfRange(tokens, start, start + m), seed);
+
+    Document observed = docs.getDocument(0);
+
+    double logProb = Double.NEGATIVE_INFINITY;
+
+    for (int s=1; s<=numItns; s++) {
+
+      sampleVariables(docs, false, 0, 1);
+
+      if (s > numItns - numSamples) {
+
+        // each held-out token's probability given the sample
+
+        int r = observed.getRegister();
+
+        double[] dist = workspace.getDist(T);
+
+        double sampleLogProb = 0.0;
+
+        for (int i=m; i<nd; i++) {
+
+          int w = tokens[start + i];
+
+          docTopicScore.getScores(0, dist);
+
+          double score = topicWordScore.scoreVector(w, switchScore.getScore(0, 0), dist, dist);
+
+          score += switchScore.getScore(1, 0) * registerWordScore.getScore(w, r);
+
+          sampleLogProb += Math.log(score);
         }
+
+        logProb = Maths.sumLogProb(logProb, sampleLogProb);
       }
     }
+
+    return logProb - Math.log(numSamples);
+  }
+
+  // evaluates the trained model on held-out documents by document
+  // completion (Wallach et al., 2009): the first half of each test
+  // document is folded in against the training counts, which are
+  // locked, and the second half is scored. The documents are split
+  // into one contiguous shard per thread, and each document has its
+  // own random seed, so the result doesn't depend on the # of
+  // threads. Writes "<source> <# of held-out tokens> <log prob>" for
+  // each document to outputFileName and returns the total log prob.
+
+  public double documentCompletion(final Corpus testDocs, final int numItns, final int numSamples, int numThreads, String outputFileName) {
+
+    assert (numSamples >= 1) && (numSamples <= numItns);
+
+    int numTestDocs = testDocs.size();
+
+    final double[] logProbs = new double[numTestDocs];
+
+    long start = System.currentTimeMillis();
+
+    ForkJoinPool testPool = new ForkJoinPool(numThreads);
+
+    int[] bounds = Shards.split(testDocs, numThreads);
+
+    List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+
+    for (int p=0; p<numThreads; p++) {
+
+      final RegisterLDA tester = createTester();
+
+      final int shardStart = bounds[p];
+      final int shardEnd = bounds[p+1];
+
+      tasks.add(new Callable<Object>() {
+          public Object call() {
+            for (int d=shardStart; d<shardEnd; d++)
+              logProbs[d] = tester.completeDocument(testDocs, d, numItns, numSamples, d);
+            return null;
+          }
+        });
+    }
+
+    Shards.invokeAll(testPool, tasks);
+
+    testPool.shutdown();
+
+    Timer.printTimingInfo(start, System.currentTimeMillis());
+
+    return HeldOut.print(testDocs, logProbs, outputFileName);
   }
 
   // estimate topics
 
-  public void estimate(Corpus docs, TIntIntHashMap unseenCounts, int[][] xInit, int[][] zInit, int itnOffset, int T, int R, double[] alpha, double[] gamma, double[] beta, double[] delta, double[] sigma, int numItns, int printInterval, int saveStateInterval, boolean[] sample, String documentTopicsFileName, String topicWordsFileName, String registerWordsFileName, String topicSummaryFileName, String registerSummaryFileName, String stateFileName, String alphaFileName, String gammaFileName, String betaFileName, String deltaFileName, String sigmaFileName, String logProbFileName) {
+  public void estimate(Corpus docs, TIntIntHashMap unseenCounts, Assignments zInit, LogRandoms rngInit, int itnOffset, int T, int R, double[] alpha, double[] gamma, double[] beta, double[] delta, double[] sigma, int numItns, int printInterval, int saveStateInterval, boolean[] sample, String sampler, int numThreads, int syncInterval, boolean sparseOutput, String documentTopicsFileName, String topicWordsFileName, String registerWordsFileName, String topicSummaryFileName, String registerSummaryFileName, String stateFileName, String checkpointFileName, String alphaFileName, String gammaFileName, String betaFileName, String deltaFileName, String sigmaFileName, String logProbFileName) {
 
     boolean append = false;
 
-    if ((xInit == null) || (zInit == null))
+    if (zInit == null)
       assert itnOffset == 0;
     else {
       assert itnOffset >= 0;
       append = true;
     }
 
-    Alphabet wordDict = docs.getWordDict();
+    final Alphabet wordDict = docs.getWordDict();
 
     assert (saveStateInterval == 0) || (numItns % saveStateInterval == 0);
 
-    rng = new LogRandoms(1000);
+    rng = (rngInit == null) ? new LogRandoms(1000) : rngInit;
+    workspace = new SamplingWorkspace();
 
     this.T = T;
     this.R = R;
@@ -247,6 +556,7 @@ public class RegisterLDA {
     System.out.println("Num words in vocab: " + W);
     System.out.println("Num topics: " + T);
     System.out.println("Num registers: " + R);
+    System.out.println("Sampler: " + sampler);
 
     registerScore = new RegisterScore(R, sigma);
     switchScore = new SwitchScore(C, gamma, new double[] { 0.5, 0.5 });
@@ -254,33 +564,32 @@ public class RegisterLDA {
     registerWordScore = new RegisterWordScore(W, R, delta, unseenCounts);
     docTopicScore = new DocTopicScore(T, D, alpha, "minimal");
 
-    if ((xInit == null) || (zInit == null)) {
+    if (zInit == null) {
 
-      x = new int[D][];
-      z = new int[D][];
+      z = new Assignments(docs.getNumTokens(), T, true);
 
-      sampleVariables(docs, true); // initialize switch and topic assignments
+      sampleVariables(docs, true, 0, D); // initialize switch and topic assignments
     }
     else {
 
-      x = xInit;
       z = zInit;
 
+      int[] offsets = docs.getOffsets();
+      int[] tokens = docs.getTokens();
+
       for (int d=0; d<D; d++) {
 
         int r = docs.getDocument(d).getRegister();
 
         assert r != -1;
 
-        int[] fs = docs.getDocument(d).getTokens();
-
-        int nd = fs.length;
+        registerScore.incrementCounts(r);
 
-        for (int i=0; i<nd; i++) {
+        for (int n=offsets[d]; n<offsets[d+1]; n++) {
 
-          int w = fs[i];
-          int k = x[d][i];
-          int j = z[d][i];
+          int w = tokens[n];
+          int k = z.getSwitch(n);
+          int j = z.getTopic(n);
 
           switchScore.incrementCounts(k, 0);
 
@@ -294,12 +603,24 @@ public class RegisterLDA {
       }
     }
 
+    if (sampler.equals("alias"))
+      aliasSampler = new AliasTopicSampler(topicWordScore, docTopicScore, W, T, 2);
+    else
+      assert sampler.equals("dense");
+
+    this.syncInterval = syncInterval;
+
+    if (numThreads > 1)
+      createWorkers(docs, numThreads);
+
     long start = System.currentTimeMillis();
 
     try {
 
       PrintWriter logProbWriter = new PrintWriter(new FileWriter(logProbFileName, append), true);
 
+      Diagnostics diagnostics = new Diagnostics(logProbWriter);
+
       // count matrices have been populated, every token has been
       // assigned to a single topic, so Gibbs sampling can start
 
@@ -312,37 +633,56 @@ public class RegisterLDA {
 
         System.out.flush();
 
-        sampleVariables(docs, false);
+        if (pool != null)
+          sampleVariablesParallel(docs);
+        else
+          sampleVariables(docs, false, 0, D);
 
         if (sample[0])
-          docTopicScore.sampleAlpha(docs, x, z, rng, 5, 1.0);
+          docTopicScore.sampleAlpha(docs, z, rng, 5, 1.0);
 
         if (sample[1])
-          switchScore.sampleGamma(docs, x, rng, 5, 1.0);
+          switchScore.sampleGamma(rng, 5, 1.0);
 
         if (sample[2])
-          topicWordScore.sampleBeta(docs, x, z, rng, 5, 1.0);
+          topicWordScore.sampleBeta(rng, 5, 1.0);
 
         if (sample[3])
-          registerWordScore.sampleDelta(docs, x, rng, 5, 1.0);
+          registerWordScore.sampleDelta(rng, 5, 1.0);
 
         if (sample[4])
-          registerScore.sampleSigma(docs, rng, 5, 1.0);
+          registerScore.sampleSigma(rng, 5, 1.0);
 
         if (printInterval != 0) {
           if (s % printInterval == 0) {
-            System.out.println();
-            topicWordScore.print(wordDict, 0.0, 10, true, null);
-            registerWordScore.print(wordDict, 0.0, 10, true, null);
 
-            logProbWriter.println(logProb(docs));
-            logProbWriter.flush();
+            diagnostics.reserve();
+
+            final RegisterLDA snapshot = snapshot();
+
+            final int itn = itnOffset + s;
+
+            diagnostics.submit(itn, new Callable<Double>() {
+                public Double call() {
+
+                  synchronized (System.out) {
+                    System.out.println();
+                    System.out.println("Iteration " + itn + ":");
+                    snapshot.topicWordScore.print(wordDict, 0.0, 10, true, null, pool);
+                    snapshot.registerWordScore.print(wordDict, 0.0, 10, true, null, pool);
+                  }
+
+                  return snapshot.logProb();
+                }
+              });
           }
         }
 
         if ((saveStateInterval != 0) && (s % saveStateInterval == 0)) {
           if (stateFileName != null)
             docs.printFeatures(z, stateFileName + "." + (itnOffset + s));
+          if (checkpointFileName != null)
+            saveCheckpoint(docs, itnOffset + s, checkpointFileName + "." + (itnOffset + s));
           if (alphaFileName != null)
             docTopicScore.printAlpha(alphaFileName + "." + (itnOffset + s));
           if (gammaFileName != null)
@@ -356,11 +696,15 @@ public class RegisterLDA {
         }
       }
 
+      diagnostics.close();
+
       Timer.printTimingInfo(start, System.currentTimeMillis());
 
       if (saveStateInterval == 0) {
         if (stateFileName != null)
           docs.printFeatures(z, stateFileName);
+        if (checkpointFileName != null)
+          saveCheckpoint(docs, itnOffset + numItns, checkpointFileName);
         if (alphaFileName != null)
           docTopicScore.printAlpha(alphaFileName);
         if (gammaFileName != null)
@@ -373,17 +717,29 @@ public class RegisterLDA {
           registerScore.printSigma(sigmaFileName);
       }
 
-      if (documentTopicsFileName != null)
-        docTopicScore.print(docs, documentTopicsFileName);
-      if (topicWordsFileName != null)
-        topicWordScore.print(wordDict, topicWordsFileName);
+      if (documentTopicsFileName != null) {
+        if (sparseOutput)
+          docTopicScore.printSparse(docs, documentTopicsFileName);
+        else
+          docTopicScore.print(docs, documentTopicsFileName, pool);
+      }
+
+      if (topicWordsFileName != null) {
+        if (sparseOutput)
+          topicWordScore.printSparse(wordDict, topicWordsFileName);
+        else
+          topicWordScore.print(wordDict, topicWordsFileName, pool);
+      }
       if (registerWordsFileName != null)
-        registerWordScore.print(wordDict, registerWordsFileName);
+        registerWordScore.print(wordDict, registerWordsFileName, pool);
 
       if (topicSummaryFileName != null)
-        topicWordScore.print(wordDict, 0.0, 10, true, topicSummaryFileName);
+        topicWordScore.print(wordDict, 0.0, 10, true, topicSummaryFileName, pool);
       if (registerSummaryFileName != null)
-        registerWordScore.print(wordDict, 0.0, 10, true, registerSummaryFileName);
+        registerWordScore.print(wordDict, 0.0, 10, true, registerSummaryFileName, pool);
+
+      if (pool != null)
+        pool.shutdown();
 
       logProbWriter.close();
     }
@@ -392,6 +748,31 @@ public class RegisterLDA {
     }
   }
 
+  public int getNumTopics() {
+
+    return T;
+  }
+
+  // saves the sampler's state after iteration itn
+
+  private void saveCheckpoint(Corpus docs, int itn, String fileName) throws IOException {
+
+    int[] registers = new int[D];
+
+    for (int d=0; d<D; d++)
+      registers[d] = docs.getDocument(d).getRegister();
+
+    Checkpoint checkpoint = new Checkpoint(itn, docs, z, registers, R, 0, rng);
+
+    checkpoint.setHyperparameter("alpha", docTopicScore.getAlpha());
+    checkpoint.setHyperparameter("gamma", switchScore.getGamma());
+    checkpoint.setHyperparameter("beta", topicWordScore.getBeta());
+    checkpoint.setHyperparameter("delta", registerWordScore.getDelta());
+    checkpoint.setHyperparameter("sigma", registerScore.getSigma());
+
+    checkpoint.write(fileName);
+  }
+
   public double[] getAlpha() {
 
     return docTopicScore.getAlpha();
@@ -417,12 +798,7 @@ public class RegisterLDA {
     return registerScore.getSigma();
   }
 
-  public int[][] getSwitch() {
-
-    return x;
-  }
-
-  public int[][] getTopics() {
+  public Assignments getAssignments() {
 
     return z;
   }
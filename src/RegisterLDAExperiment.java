@@ -11,8 +11,8 @@ public class RegisterLDAExperiment {
 
   public static void main(String[] args) throws java.io.IOException {
 
-    if (args.length != 8) {
-      System.out.println("Usage: LDAExperiment <instance_list> <num_topics> <num_registers> <num_itns> <print_interval> <save_state_interval> <sample> <output_dir>");
+    if (args.length < 8) {
+      System.out.println("Usage: LDAExperiment <instance_list> <num_topics> <num_registers> <num_itns> <print_interval> <save_state_interval> <sample> <output_dir> [--sampler dense|alias] [--threads <num_threads>] [--sync-interval <num_docs>] [--test <test_instance_list>] [--test-itns <num_itns>] [--test-samples <num_samples>] [--serve] [--serve-itns <num_itns>] [--min-count <count>] [--sparse-output] [--resume <checkpoint>]");
       System.exit(1);
     }
 
@@ -43,6 +43,64 @@ public class RegisterLDAExperiment {
 
     assert index == 8;
 
+    String sampler = "dense"; // topic sampler
+
+    int numThreads = 1; // # of sampling threads
+    int syncInterval = 0; // # of documents between merges (0 = once per sweep)
+
+    String testInstanceListFileName = null; // held-out documents
+    int numTestIterations = 100; // # of sweeps per held-out document
+    int numTestSamples = 10; // # of those sweeps to average over
+
+    boolean serve = false; // answer inference requests on stdin/stdout
+    int numServeIterations = 10; // # of fold-in sweeps per request
+
+    int minCount = 1; // words that occur fewer times are pruned
+
+    boolean sparseOutput = false; // write only the nonzero doc-topic and topic-word counts
+
+    String resumeFileName = null; // checkpoint to resume from
+
+    while (index < args.length) {
+
+      String option = args[index++];
+
+      if (option.equals("--sampler") && (index < args.length))
+        sampler = args[index++];
+      else if (option.equals("--threads") && (index < args.length))
+        numThreads = Integer.parseInt(args[index++]);
+      else if (option.equals("--sync-interval") && (index < args.length))
+        syncInterval = Integer.parseInt(args[index++]);
+      else if (option.equals("--test") && (index < args.length))
+        testInstanceListFileName = args[index++];
+      else if (option.equals("--test-itns") && (index < args.length))
+        numTestIterations = Integer.parseInt(args[index++]);
+      else if (option.equals("--test-samples") && (index < args.length))
+        numTestSamples = Integer.parseInt(args[index++]);
+      else if (option.equals("--serve"))
+        serve = true;
+      else if (option.equals("--serve-itns") && (index < args.length))
+        numServeIterations = Integer.parseInt(args[index++]);
+      else if (option.equals("--min-count") && (index < args.length))
+        minCount = Integer.parseInt(args[index++]);
+      else if (option.equals("--sparse-output"))
+        sparseOutput = true;
+      else if (option.equals("--resume") && (index < args.length))
+        resumeFileName = args[index++];
+      else {
+        System.out.println("Unknown option: " + option);
+        System.exit(1);
+      }
+    }
+
+    // when serving, stdout carries the responses, so everything else
+    // goes to stderr
+
+    PrintStream responseStream = System.out;
+
+    if (serve)
+      System.setOut(System.err);
+
     // load data
 
     Alphabet wordDict = new Alphabet();
@@ -51,6 +109,11 @@ public class RegisterLDAExperiment {
 
     InstanceListLoader.load(instanceListFileName, docs);
 
+    if (minCount > 1) {
+      docs.prune(minCount);
+      wordDict = docs.getWordDict();
+    }
+
     int W = wordDict.size();
 
     double[] alpha = new double[2];
@@ -68,6 +131,29 @@ public class RegisterLDAExperiment {
     double[] sigma = new double[1];
     Arrays.fill(sigma, 1.0 * R);
 
+    // resume from a checkpoint, if there is one
+
+    Assignments zInit = null;
+    LogRandoms rngInit = null;
+    int itnOffset = 0;
+
+    if (resumeFileName != null) {
+
+      Checkpoint checkpoint = Checkpoint.read(resumeFileName, T, R, 0);
+
+      checkpoint.apply(docs);
+
+      zInit = checkpoint.getAssignments();
+      rngInit = checkpoint.getRandoms();
+      itnOffset = checkpoint.getIteration();
+
+      alpha = checkpoint.getHyperparameter("alpha");
+      gamma = checkpoint.getHyperparameter("gamma");
+      beta = checkpoint.getHyperparameter("beta");
+      delta = checkpoint.getHyperparameter("delta");
+      sigma = checkpoint.getHyperparameter("sigma");
+    }
+
     // form output filenames
 
     String optionsFileName = outputDir + "/options.txt";
@@ -78,12 +164,14 @@ public class RegisterLDAExperiment {
     String topicSummaryFileName = outputDir + "/topic_summary.txt.gz";
     String registerSummaryFileName = outputDir + "/register_summary.txt.gz";
     String stateFileName = outputDir + "/state.txt.gz";
+    String checkpointFileName = outputDir + "/checkpoint.bin";
     String alphaFileName = outputDir + "/alpha.txt";
     String gammaFileName = outputDir + "/gamma.txt";
     String betaFileName = outputDir + "/beta.txt";
     String deltaFileName = outputDir + "/delta.txt";
     String sigmaFileName = outputDir + "/sigma.txt";
     String logProbFileName = outputDir + "/log_prob.txt";
+    String heldOutLogProbFileName = outputDir + "/held_out_log_prob.txt";
 
     PrintWriter pw = new PrintWriter(optionsFileName);
 
@@ -105,13 +193,49 @@ public class RegisterLDAExperiment {
     pw.println("Sample beta = " + sample[2]);
     pw.println("Sample delta = " + sample[3]);
     pw.println("Sample sigma = " + sample[4]);
+    pw.println("Sampler = " + sampler);
+    pw.println("# threads = " + numThreads);
+    pw.println("Sync interval = " + syncInterval);
+    pw.println("Min count = " + minCount);
+    pw.println("Sparse output = " + sparseOutput);
+
+    if (testInstanceListFileName != null) {
+      pw.println("Test instance list = " + testInstanceListFileName);
+      pw.println("# test iterations = " + numTestIterations);
+      pw.println("# test samples = " + numTestSamples);
+    }
+
+    if (resumeFileName != null)
+      pw.println("Resume = " + resumeFileName + " (iteration " + itnOffset + ")");
+
     pw.println("Date = " + (new Date()));
 
     pw.close();
 
     RegisterLDA lda = new RegisterLDA();
 
-    lda.estimate(docs, null, null, null, 0, T, R, alpha, gamma, beta, delta, sigma, numIterations, printInterval, saveStateInterval, sample, documentTopicsFileName, topicWordsFileName, registerWordsFileName, topicSummaryFileName, registerSummaryFileName, stateFileName, alphaFileName, gammaFileName, betaFileName, deltaFileName, sigmaFileName, logProbFileName);
+    lda.estimate(docs, docs.getUnseenCounts(), zInit, rngInit, itnOffset, T, R, alpha, gamma, beta, delta, sigma, numIterations, printInterval, saveStateInterval, sample, sampler, numThreads, syncInterval, sparseOutput, documentTopicsFileName, topicWordsFileName, registerWordsFileName, topicSummaryFileName, registerSummaryFileName, stateFileName, checkpointFileName, alphaFileName, gammaFileName, betaFileName, deltaFileName, sigmaFileName, logProbFileName);
+
+    if (testInstanceListFileName != null) {
+
+      // held-out words that weren't seen in training are dropped
+
+      wordDict.stopGrowth();
+
+      Corpus testDocs = new Corpus(wordDict, null);
 
+      InstanceListLoader.load(testInstanceListFileName, testDocs);
+
+      System.out.println("Num test docs: " + testDocs.size());
+
+      lda.documentCompletion(testDocs, numTestIterations, numTestSamples, numThreads, heldOutLogProbFileName);
+    }
+
+    if (serve) {
+
+      RegisterLDAService service = new RegisterLDAService(lda, wordDict, numServeIterations, numThreads);
+
+      service.serve(new BufferedReader(new InputStreamReader(System.in)), responseStream);
+    }
   }
 }
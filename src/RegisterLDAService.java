@@ -0,0 +1,184 @@
+package edu.umass.cs.wallach.cluster;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import gnu.trove.*;
+
+import cc.mallet.types.*;
+
+// answers inference requests for new documents against a trained
+// RegisterLDA model. Each request is a line "<id> <word> <word> ..."
+// and each response is a line "<id> <register> <P(topic 0)> ...
+// <P(topic T-1)>". Words are looked up in the training vocabulary
+// (unseen words are dropped). Requests are processed concurrently by
+// numThreads testers, each of which shares the model's locked training
+// counts and folds a document in with numItns sweeps, so responses may
+// be out of order. When the input ends, the throughput and the
+// percentiles of the latency (from reading a request to writing its
+// response) and of the service time (excluding time spent queued
+// behind other requests) are printed to System.err.
+
+public class RegisterLDAService {
+
+  private RegisterLDA model;
+  private Alphabet wordDict;
+
+  private int numItns, numThreads;
+
+  private TLongArrayList latencies; // nanoseconds from read to response
+  private TLongArrayList serviceTimes; // nanoseconds from start to response
+
+  public RegisterLDAService(RegisterLDA model, Alphabet wordDict, int numItns, int numThreads) {
+
+    this.model = model;
+    this.wordDict = wordDict;
+
+    this.numItns = numItns;
+    this.numThreads = numThreads;
+
+    wordDict.stopGrowth();
+  }
+
+  // maps a request's words through the training vocabulary
+
+  private int[] getTokens(String[] fields) {
+
+    TIntArrayList tokenList = new TIntArrayList();
+
+    for (int i=1; i<fields.length; i++) {
+
+      int w = wordDict.lookupIndex(fields[i].toLowerCase());
+
+      if (w != -1)
+        tokenList.add(w);
+    }
+
+    return tokenList.toNativeArray();
+  }
+
+  public void serve(BufferedReader in, final PrintStream out) throws IOException {
+
+    final int T = model.getNumTopics();
+
+    // one tester per thread, handed from request to request
+
+    final BlockingQueue<RegisterLDA> testers = new ArrayBlockingQueue<RegisterLDA>(numThreads);
+
+    for (int p=0; p<numThreads; p++)
+      testers.add(model.createTester());
+
+    ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+
+    latencies = new TLongArrayList();
+    serviceTimes = new TLongArrayList();
+
+    long start = System.nanoTime();
+
+    int numRequests = 0;
+
+    String line;
+
+    while ((line = in.readLine()) != null) {
+
+      final long received = System.nanoTime();
+
+      final String[] fields = line.trim().split("\\s+");
+
+      if (fields[0].length() == 0)
+        continue;
+
+      final int seed = numRequests++;
+
+      pool.execute(new Runnable() {
+          public void run() {
+
+            RegisterLDA tester = null;
+
+            long started = System.nanoTime();
+
+            try {
+
+              tester = testers.take();
+
+              double[] topicProportions = new double[T];
+
+              int r = tester.foldIn(getTokens(fields), numItns, seed, topicProportions);
+
+              StringBuilder response = new StringBuilder();
+
+              response.append(fields[0]).append(' ').append(r);
+
+              for (int j=0; j<T; j++)
+                response.append(' ').append(topicProportions[j]);
+
+              synchronized (out) {
+                out.println(response);
+                out.flush();
+              }
+            }
+            catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            finally {
+              if (tester != null)
+                testers.add(tester);
+            }
+
+            long finished = System.nanoTime();
+
+            synchronized (latencies) {
+              latencies.add(finished - received);
+              serviceTimes.add(finished - started);
+            }
+          }
+        });
+    }
+
+    pool.shutdown();
+
+    try {
+      while (!pool.awaitTermination(1, TimeUnit.SECONDS));
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+
+    printStats(numRequests, System.nanoTime() - start);
+  }
+
+  private void printStats(int numRequests, long elapsed) {
+
+    if (numRequests == 0)
+      return;
+
+    System.err.println("# requests: " + numRequests);
+    System.err.println("Throughput: " + (numRequests / (elapsed / 1e9)) + " requests/second");
+
+    printPercentiles("Latency", latencies);
+    printPercentiles("Service time", serviceTimes);
+  }
+
+  private static void printPercentiles(String name, TLongArrayList times) {
+
+    long[] sorted = times.toNativeArray();
+
+    if (sorted.length == 0)
+      return;
+
+    Arrays.sort(sorted);
+
+    System.err.println(name + " p50: " + (getPercentile(sorted, 0.50) / 1e6) + " ms");
+    System.err.println(name + " p99: " + (getPercentile(sorted, 0.99) / 1e6) + " ms");
+    System.err.println(name + " max: " + (sorted[sorted.length - 1] / 1e6) + " ms");
+  }
+
+  private static long getPercentile(long[] sorted, double p) {
+
+    int i = (int) Math.ceil(p * sorted.length) - 1;
+
+    return sorted[Math.max(i, 0)];
+  }
+}
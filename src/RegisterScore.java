@@ -77,6 +77,54 @@ public class RegisterScore {
     registerCountsNorm--;
   }
 
+  // creates a copy of the counts for a worker thread -- the
+  // hyperparameters are shared with this score function
+
+  public RegisterScore copy() {
+
+    RegisterScore copy = new RegisterScore(R, sigma);
+
+    System.arraycopy(registerCounts, 0, copy.registerCounts, 0, R);
+    copy.registerCountsNorm = registerCountsNorm;
+
+    return copy;
+  }
+
+  // creates a frozen copy of the counts and the hyperparameters, for
+  // computing diagnostics while sampling carries on with this one
+
+  public RegisterScore snapshot() {
+
+    RegisterScore snapshot = new RegisterScore(R, sigma.clone());
+
+    System.arraycopy(registerCounts, 0, snapshot.registerCounts, 0, R);
+    snapshot.registerCountsNorm = registerCountsNorm;
+
+    return snapshot;
+  }
+
+  // adds the changes made to each copy since the last merge to these
+  // counts and then resets every copy to the merged counts
+
+  public void merge(RegisterScore[] copies) {
+
+    int[] old = registerCounts.clone();
+    int oldNorm = registerCountsNorm;
+
+    for (RegisterScore copy : copies) {
+
+      for (int r=0; r<R; r++)
+        registerCounts[r] += copy.registerCounts[r] - old[r];
+
+      registerCountsNorm += copy.registerCountsNorm - oldNorm;
+    }
+
+    for (RegisterScore copy : copies) {
+      System.arraycopy(registerCounts, 0, copy.registerCounts, 0, R);
+      copy.registerCountsNorm = registerCountsNorm;
+    }
+  }
+
   // this must be called before processing test data
 
   public void lock(int numTestDocs) {
@@ -99,28 +147,6 @@ public class RegisterScore {
     }
   }
 
-  // computes log prob using the predictive distribution
-
-  public double logProb(Corpus docs) {
-
-    double logProb = 0.0;
-
-    resetCounts();
-
-    int D = docs.size();
-
-    for (int d=0; d<D; d++) {
-
-      int r = docs.getDocument(d).getRegister();
-
-      logProb += Math.log(getScore(r));
-
-      incrementCounts(r);
-    }
-
-    return logProb;
-  }
-
   public double[] getSigma() {
 
     return sigma;
@@ -142,22 +168,30 @@ public class RegisterScore {
     }
   }
 
-  private double logProb(Corpus docs, double[] newLogSigma) {
+  // log P(r) as a function of log sigma, up to terms that do not
+  // depend on sigma, computed in closed form from the current counts
 
-    double[] oldSigma = sigma.clone();
+  private double logProb(double[] newLogSigma) {
 
-    for (int i=0; i<sigma.length; i++)
-      sigma[i] = Math.exp(newLogSigma[i]);
+    double s = Math.exp(newLogSigma[0]);
 
-    double logProb = logProb(docs);
+    double logProb = -LogGamma.ratio(s, registerCountsNorm);
 
-    for (int i=0; i<sigma.length; i++)
-      sigma[i] = oldSigma[i];
+    for (int r=0; r<R; r++)
+      logProb += LogGamma.ratio(s / R, registerCounts[r]);
 
     return logProb;
   }
 
-  public void sampleSigma(Corpus docs, LogRandoms rng, int numIterations, double stepSize) {
+  // computes log P(r) in closed form from the current counts (there
+  // are no other terms), without a pass over the corpus
+
+  public double logProb() {
+
+    return logProb(new double[] { Math.log(sigma[0]) });
+  }
+
+  public void sampleSigma(LogRandoms rng, int numIterations, double stepSize) {
 
     int I = sigma.length;
 
@@ -174,7 +208,7 @@ public class RegisterScore {
 
     for (int s=0; s<numIterations; s++) {
 
-      double lp = logProb(docs, rawParam) + rawParamSum;
+      double lp = logProb(rawParam) + rawParamSum;
       double lpNew = Math.log(rng.nextUniform()) + lp;
 
       for (int i=0; i<I; i++) {
@@ -194,7 +228,7 @@ public class RegisterScore {
           rawParamNewSum += rawParamNew[i];
         }
 
-        if (logProb(docs, rawParamNew) + rawParamNewSum > lpNew)
+        if (logProb(rawParamNew) + rawParamNewSum > lpNew)
           break;
         else
           for (int i=0; i<I; i++)
@@ -2,6 +2,7 @@ package edu.umass.cs.wallach.cluster;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.zip.*;
 
 import gnu.trove.*;
@@ -13,22 +14,48 @@ public class RegisterWordScore {
 
   // observed counts
 
-  private int[][] wordRegisterCounts; // N_{w|r}
+  private SparseCountMatrix wordRegisterCounts; // N_{w|r}
   private int[] wordRegisterCountsNorm; // N_{.|r}
 
-  private int[][] wordRegisterCountsTrain;
+  // once locked, wordRegisterCounts is immutable (and may be shared)
+  // and changes to it are kept in an overlay
+
+  private CountOverlay wordRegisterCountsTest;
   private int[] wordRegisterCountsNormTrain;
 
+  // # of cells of N_{w|r} with each count, for sampling delta (not
+  // tracked by copies)
+
+  private CountHistogram countHistogram;
+
   private TIntIntHashMap unseenCounts;
 
   private int W, R; // constants
 
+  // getScore(w, r) = (priorScores[r] + N_{w|r} inverseNorms[r]) *
+  // unseenScales[w] -- the coefficients are updated along with the
+  // counts and recomputed by updateCoefficients()
+
+  private double[] priorScores; // (1 / W) d / (N_{.|r} + d)
+  private double[] inverseNorms; // 1 / (N_{.|r} + d)
+
+  private double[] unseenScales; // 1 / (# of unseen types w stands for)
+
   // hyperparameters
 
   private double[] delta;
 
   private boolean resetToTrain = false;
 
+  // rows changed since the last merge (only tracked for copies)
+
+  private boolean[] dirty;
+  private int[] dirtyRows;
+  private int numDirtyRows;
+
+  private RegisterWordScore() {
+  }
+
   // create a score function with zero counts
 
   public RegisterWordScore(int W, int R, double[] delta, TIntIntHashMap unseenCounts) {
@@ -41,25 +68,56 @@ public class RegisterWordScore {
 
     this.unseenCounts = unseenCounts;
 
-    // allocate space for counts
+    // allocate space for counts (sparse rows, since most word types
+    // only occur in a few registers)
 
-    wordRegisterCounts = new int[W][R];
+    wordRegisterCounts = new SparseCountMatrix(W, R);
     wordRegisterCountsNorm = new int[R];
+
+    priorScores = new double[R];
+    inverseNorms = new double[R];
+
+    if (unseenCounts != null) {
+
+      unseenScales = new double[W];
+
+      for (int w=0; w<W; w++)
+        unseenScales[w] = unseenCounts.containsKey(w) ? 1.0 / unseenCounts.get(w) : 1.0;
+    }
+
+    countHistogram = new CountHistogram();
+
+    updateCoefficients();
   }
 
-  public double getScore(int w, int r) {
+  private void updateCoefficients(int r) {
 
-    double score = 1.0 / W;
+    inverseNorms[r] = 1.0 / (wordRegisterCountsNorm[r] + delta[0]);
+    priorScores[r] = delta[0] / W * inverseNorms[r];
+  }
 
-    int nwr = wordRegisterCounts[w][r];
-    int nr = wordRegisterCountsNorm[r];
+  // this must be called whenever delta changes
+
+  public void updateCoefficients() {
+
+    for (int r=0; r<R; r++)
+      updateCoefficients(r);
+  }
+
+  private int count(int w, int r) {
+
+    if (wordRegisterCountsTest == null)
+      return wordRegisterCounts.get(w, r);
+    else
+      return wordRegisterCounts.get(w, r) + wordRegisterCountsTest.get(w, r);
+  }
 
-    score *= delta[0] / (nr + delta[0]);
-    score += nwr / (nr + delta[0]);
+  public double getScore(int w, int r) {
+
+    double score = priorScores[r] + count(w, r) * inverseNorms[r];
 
-    if (unseenCounts != null)
-      if (unseenCounts.containsKey(w))
-        score /= (double) unseenCounts.get(w);
+    if (unseenScales != null)
+      score *= unseenScales[w];
 
     return score;
   }
@@ -72,93 +130,267 @@ public class RegisterWordScore {
       return 0.0;
     else {
 
-      double score = (double) wordRegisterCounts[w][r] / (double) nr;
+      double score = (double) count(w, r) / (double) nr;
 
-      if (unseenCounts != null)
-        if (unseenCounts.containsKey(w))
-          score /= (double) unseenCounts.get(w);
+      if (unseenScales != null)
+        score *= unseenScales[w];
 
       return score;
     }
   }
 
+  // log of the probability of adding a group of tokens to register r
+  // one at a time, up to the unseen-count factors (which are the same
+  // for every register) -- types must be distinct and counts[i] is
+  // the number of tokens of type types[i]. The counts are not changed,
+  // so different registers can be scored independently.
+
+  public double getLogScore(int[] types, int[] counts, int numTypes, int r) {
+
+    double logScore = 0.0;
+
+    int n = 0;
+
+    for (int i=0; i<numTypes; i++) {
+
+      logScore += LogGamma.ratio(count(types[i], r) + delta[0] / W, counts[i]);
+
+      n += counts[i];
+    }
+
+    logScore -= LogGamma.ratio(wordRegisterCountsNorm[r] + delta[0], n);
+
+    return logScore;
+  }
+
   public void incrementCounts(int w, int r) {
 
-    wordRegisterCounts[w][r]++;
+    int oldCount;
+
+    if (wordRegisterCountsTest == null)
+      oldCount = wordRegisterCounts.increment(w, r);
+    else
+      oldCount = wordRegisterCounts.get(w, r) + wordRegisterCountsTest.add(w, r, 1);
+
     wordRegisterCountsNorm[r]++;
+
+    if (countHistogram != null)
+      countHistogram.move(oldCount, oldCount + 1);
+
+    updateCoefficients(r);
+
+    if ((dirty != null) && !dirty[w]) {
+      dirty[w] = true;
+      dirtyRows[numDirtyRows++] = w;
+    }
   }
 
   public void decrementCounts(int w, int r) {
 
-    wordRegisterCounts[w][r]--;
+    int oldCount;
+
+    if (wordRegisterCountsTest == null)
+      oldCount = wordRegisterCounts.decrement(w, r);
+    else
+      oldCount = wordRegisterCounts.get(w, r) + wordRegisterCountsTest.add(w, r, -1);
+
     wordRegisterCountsNorm[r]--;
+
+    if (countHistogram != null)
+      countHistogram.move(oldCount, oldCount - 1);
+
+    updateCoefficients(r);
+
+    if ((dirty != null) && !dirty[w]) {
+      dirty[w] = true;
+      dirtyRows[numDirtyRows++] = w;
+    }
+  }
+
+  // creates a copy of the counts for a worker thread -- the
+  // hyperparameters are shared with this score function
+
+  public RegisterWordScore copy() {
+
+    RegisterWordScore copy = new RegisterWordScore(W, R, delta, unseenCounts);
+
+    copy.wordRegisterCounts.copyFrom(wordRegisterCounts);
+
+    System.arraycopy(wordRegisterCountsNorm, 0, copy.wordRegisterCountsNorm, 0, R);
+
+    copy.countHistogram = null;
+
+    copy.dirty = new boolean[W];
+    copy.dirtyRows = new int[W];
+
+    return copy;
+  }
+
+  // creates a frozen copy of the counts and the hyperparameters, for
+  // computing diagnostics while sampling carries on with this one
+
+  public RegisterWordScore snapshot() {
+
+    RegisterWordScore snapshot = new RegisterWordScore(W, R, delta.clone(), unseenCounts);
+
+    snapshot.wordRegisterCounts.copyFrom(wordRegisterCounts);
+
+    System.arraycopy(wordRegisterCountsNorm, 0, snapshot.wordRegisterCountsNorm, 0, R);
+
+    snapshot.countHistogram.copyFrom(countHistogram);
+
+    snapshot.updateCoefficients();
+
+    return snapshot;
+  }
+
+  // adds the changes made to each copy since the last merge to these
+  // counts and then resets every copy to the merged counts
+
+  public void merge(RegisterWordScore[] copies) {
+
+    boolean[] changed = new boolean[W];
+
+    TIntArrayList rows = new TIntArrayList();
+
+    for (RegisterWordScore copy : copies)
+      for (int i=0; i<copy.numDirtyRows; i++)
+        if (!changed[copy.dirtyRows[i]]) {
+          changed[copy.dirtyRows[i]] = true;
+          rows.add(copy.dirtyRows[i]);
+        }
+
+    int[] old = new int[R];
+
+    for (int i=0; i<rows.size(); i++) {
+
+      int w = rows.get(i);
+
+      wordRegisterCounts.getRow(w, old);
+
+      for (RegisterWordScore copy : copies)
+        if (copy.dirty[w])
+          for (int r=0; r<R; r++)
+            wordRegisterCounts.add(w, r, copy.wordRegisterCounts.get(w, r) - old[r]);
+
+      for (int r=0; r<R; r++)
+        countHistogram.move(old[r], wordRegisterCounts.get(w, r));
+
+      for (RegisterWordScore copy : copies)
+        copy.wordRegisterCounts.copyRow(w, wordRegisterCounts);
+    }
+
+    System.arraycopy(wordRegisterCountsNorm, 0, old, 0, R);
+
+    for (RegisterWordScore copy : copies)
+      for (int r=0; r<R; r++)
+        wordRegisterCountsNorm[r] += copy.wordRegisterCountsNorm[r] - old[r];
+
+    updateCoefficients();
+
+    for (RegisterWordScore copy : copies) {
+
+      System.arraycopy(wordRegisterCountsNorm, 0, copy.wordRegisterCountsNorm, 0, R);
+
+      copy.updateCoefficients();
+
+      for (int i=0; i<copy.numDirtyRows; i++)
+        copy.dirty[copy.dirtyRows[i]] = false;
+
+      copy.numDirtyRows = 0;
+    }
   }
 
   // this must be called before processing test data
 
   public void lock() {
 
-    wordRegisterCountsTrain = new int[W][];
+    if (resetToTrain)
+      return; // already locked
 
-    for (int w=0; w<W; w++)
-      wordRegisterCountsTrain[w] = wordRegisterCounts[w].clone();
+    wordRegisterCountsTest = new CountOverlay(W, R);
 
     wordRegisterCountsNormTrain = wordRegisterCountsNorm.clone();
 
     resetToTrain = true;
   }
 
-  public void resetCounts() {
+  // creates a score function for test data that shares these locked
+  // counts but keeps its own changes to them, so that several can be
+  // used at once (e.g., one per thread)
 
-    if (resetToTrain) {
+  public RegisterWordScore testCopy() {
 
-      for (int w=0; w<W; w++)
-        wordRegisterCounts[w] = wordRegisterCountsTrain[w].clone();
+    assert resetToTrain;
 
-      wordRegisterCountsNorm = wordRegisterCountsNormTrain.clone();
-    }
-    else {
+    RegisterWordScore copy = new RegisterWordScore();
 
-      for (int w=0; w<W; w++)
-        Arrays.fill(wordRegisterCounts[w], 0);
+    copy.W = W;
+    copy.R = R;
 
-      Arrays.fill(wordRegisterCountsNorm, 0);
-    }
+    copy.delta = delta.clone();
+
+    copy.unseenCounts = unseenCounts;
+    copy.unseenScales = unseenScales;
+
+    copy.wordRegisterCounts = wordRegisterCounts;
+    copy.wordRegisterCountsTest = new CountOverlay(W, R);
+
+    copy.wordRegisterCountsNorm = wordRegisterCountsNormTrain.clone();
+    copy.wordRegisterCountsNormTrain = wordRegisterCountsNormTrain;
+
+    copy.countHistogram = new CountHistogram();
+    copy.countHistogram.copyFrom(countHistogram);
+
+    undoTestChanges(copy.countHistogram);
+
+    copy.priorScores = new double[R];
+    copy.inverseNorms = new double[R];
+
+    copy.resetToTrain = true;
+
+    copy.updateCoefficients();
+
+    return copy;
   }
 
-  // computes log prob using the predictive distribution
+  // moves every cell changed since locking back to its locked count
+  // in the given count-of-counts
 
-  public double logProb(Corpus docs, int[][] x) {
+  private void undoTestChanges(CountHistogram histogram) {
 
-    double logProb = 0.0;
+    for (int k=0; k<wordRegisterCountsTest.getNumTouchedRows(); k++) {
 
-    resetCounts();
+      int w = wordRegisterCountsTest.getTouchedRow(k);
 
-    int D = docs.size();
+      int[] changes = wordRegisterCountsTest.getRow(w);
 
-    for (int d=0; d<D; d++) {
+      for (int r=0; r<R; r++)
+        if (changes[r] != 0)
+          histogram.move(wordRegisterCounts.get(w, r) + changes[r], wordRegisterCounts.get(w, r));
+    }
+  }
 
-      int r = docs.getDocument(d).getRegister();
+  public void resetCounts() {
 
-      int[] fs = docs.getDocument(d).getTokens();
+    if (resetToTrain) {
 
-      int nd = fs.length;
+      undoTestChanges(countHistogram);
 
-      for (int i=0; i<nd; i++) {
+      wordRegisterCountsTest.clear();
 
-        int w = fs[i];
-        int k = x[d][i];
+      System.arraycopy(wordRegisterCountsNormTrain, 0, wordRegisterCountsNorm, 0, R);
+    }
+    else {
 
-        if (k == 1) {
+      wordRegisterCounts.clear();
 
-          logProb += Math.log(getScore(w, r));
+      Arrays.fill(wordRegisterCountsNorm, 0);
 
-          incrementCounts(w, r);
-        }
-      }
+      countHistogram.clear();
     }
 
-    return logProb;
+    updateCoefficients();
   }
 
   public double[] getDelta() {
@@ -182,22 +414,49 @@ public class RegisterWordScore {
     }
   }
 
-  private double logProb(Corpus docs, int[][] x, double[] newLogDelta) {
+  // log P(w | x, r) as a function of log delta, up to terms that do
+  // not depend on delta, computed in closed form from the current
+  // counts and their count-of-counts
 
-    double[] oldDelta = delta.clone();
+  private double logProb(double[] newLogDelta) {
 
-    for (int i=0; i<delta.length; i++)
-      delta[i] = Math.exp(newLogDelta[i]);
+    double d = Math.exp(newLogDelta[0]);
 
-    double logProb = logProb(docs, x);
+    double logProb = countHistogram.logGammaRatioSum(d / W);
 
-    for (int i=0; i<delta.length; i++)
-      delta[i] = oldDelta[i];
+    for (int r=0; r<R; r++)
+      logProb -= LogGamma.ratio(d, wordRegisterCountsNorm[r]);
 
     return logProb;
   }
 
-  public void sampleDelta(Corpus docs, int[][] x, LogRandoms rng, int numIterations, double stepSize) {
+  // computes log P(w | x, r) in closed form from the current counts
+  // (the terms above plus the unseen types' scales), so it equals the
+  // predictive distribution's log prob without a pass over the corpus
+
+  public double logProb(ForkJoinPool pool) {
+
+    double logProb = logProb(new double[] { Math.log(delta[0]) });
+
+    if (unseenScales != null)
+      logProb += ParallelSum.sum(pool, W, new ParallelSum.Terms() {
+          public double sum(int start, int end) {
+
+            double sum = 0.0;
+
+            for (int w=start; w<end; w++)
+              if (unseenScales[w] != 1.0)
+                for (int r=0; r<R; r++)
+                  sum += count(w, r) * Math.log(unseenScales[w]);
+
+            return sum;
+          }
+        });
+
+    return logProb;
+  }
+
+  public void sampleDelta(LogRandoms rng, int numIterations, double stepSize) {
 
     int I = delta.length;
 
@@ -214,7 +473,7 @@ public class RegisterWordScore {
 
     for (int s=0; s<numIterations; s++) {
 
-      double lp = logProb(docs, x, rawParam) + rawParamSum;
+      double lp = logProb(rawParam) + rawParamSum;
       double lpNew = Math.log(rng.nextUniform()) + lp;
 
       for (int i=0; i<I; i++) {
@@ -234,7 +493,7 @@ public class RegisterWordScore {
           rawParamNewSum += rawParamNew[i];
         }
 
-        if (logProb(docs, x, rawParamNew) + rawParamNewSum > lpNew)
+        if (logProb(rawParamNew) + rawParamNewSum > lpNew)
           break;
         else
           for (int i=0; i<I; i++)
@@ -250,14 +509,20 @@ public class RegisterWordScore {
 
     for (int i=0; i<I; i++)
       delta[i] = Math.exp(rawParam[i]);
+
+    updateCoefficients();
   }
 
-  public void print(Alphabet dict, String fileName) {
+  public void print(Alphabet dict, String fileName, ForkJoinPool pool) {
 
-    print(dict, 0.0, -1, false, fileName);
+    print(dict, 0.0, -1, false, fileName, pool);
   }
 
-  public void print(Alphabet dict, double threshold, int numWords, boolean summary, String fileName) {
+  // prints the numWords most probable words (all of them, if numWords
+  // is negative) of each register, selecting them for a block of registers
+  // at a time, in parallel if pool isn't null
+
+  public void print(Alphabet dict, double threshold, int numWords, boolean summary, String fileName, ForkJoinPool pool) {
 
     assert dict.size() == W;
 
@@ -275,44 +540,56 @@ public class RegisterWordScore {
           pw.println("#register typeindex type proportion");
       }
 
-      Probability[] probs = new Probability[W];
+      if ((numWords > W) || (numWords < 0))
+        numWords = W;
 
-      for (int r=0; r<R; r++) {
-        for (int w=0; w<W; w++)
-          probs[w] = new Probability(w, getScore(w, r));
+      int blockSize = Math.min(R, TopK.getBlockSize(numWords));
 
-        Arrays.sort(probs);
+      TopK[] selected = new TopK[blockSize];
 
-        if ((numWords > W) || (numWords < 0))
-          numWords = W;
+      for (int i=0; i<blockSize; i++)
+        selected[i] = new TopK(numWords, threshold);
 
-        StringBuffer line = new StringBuffer();
+      TopK.Rows rows = new TopK.Rows() {
+          public double getScore(int r, int w) {
+            return RegisterWordScore.this.getScore(w, r);
+          }
+        };
 
-        for (int i=0; i<numWords; i++) {
+      for (int start=0; start<R; start+=blockSize) {
 
-          // break if there are no more words whose proportion is
-          // greater than zero or threshold...
+        int end = Math.min(start + blockSize, R);
 
-          if ((probs[i].prob == 0) || (probs[i].prob < threshold))
-            break;
+        TopK.select(pool, rows, W, start, end, true, selected);
 
-          if ((fileName == null) || summary){
-            line.append(dict.lookupObject(probs[i].index));
-            line.append(" ");
-          }
-          else {
-            pw.print(r); pw.print(" ");
-            pw.print(probs[i].index); pw.print(" ");
-            pw.print(dict.lookupObject(probs[i].index)); pw.print(" ");
-            pw.print(probs[i].prob); pw.println();
+        for (int r=start; r<end; r++) {
+
+          TopK topK = selected[r - start];
+
+          StringBuffer line = new StringBuffer();
+
+          for (int i=0; i<topK.size(); i++) {
+
+            int w = topK.getIndex(i);
+
+            if ((fileName == null) || summary){
+              line.append(dict.lookupObject(w));
+              line.append(" ");
+            }
+            else {
+              pw.print(r); pw.print(" ");
+              pw.print(w); pw.print(" ");
+              pw.print(dict.lookupObject(w)); pw.print(" ");
+              pw.print(topK.getScore(i)); pw.println();
+            }
           }
-        }
 
-        String string = line.toString();
+          String string = line.toString();
 
-        if ((fileName == null) || summary)
-          if (!string.equals(""))
-            pw.println("Register " + r + ": " + string);
+          if ((fileName == null) || summary)
+            if (!string.equals(""))
+              pw.println("Register " + r + ": " + string);
+        }
       }
 
       if (fileName != null)
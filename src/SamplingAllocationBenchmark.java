@@ -0,0 +1,157 @@
+package edu.umass.cs.wallach.cluster;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+
+import cc.mallet.types.*;
+
+// measures the number of bytes each sampler allocates per token in a
+// steady-state sweep, using the current thread's allocation counter.
+// Each model is run for one sweep and then for 1 + num_sweeps sweeps
+// (single-threaded, without hyperparameter sampling or printing), so
+// the difference between the two runs is the cost of num_sweeps
+// sweeps. Exits with status 1 if any sampler allocates more than
+// MAX_BYTES_PER_TOKEN bytes per token.
+
+public class SamplingAllocationBenchmark {
+
+  private static final double MAX_BYTES_PER_TOKEN = 1.0;
+
+  private static long getAllocatedBytes() {
+
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+    return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static double[] fill(int size, double value) {
+
+    double[] param = new double[size];
+    Arrays.fill(param, value);
+
+    return param;
+  }
+
+  // runs a model for numItns sweeps and returns the # of bytes allocated
+
+  private static long run(String model, Corpus docs, int T, int R, int C, int numItns, String logProbFileName) {
+
+    int W = docs.getWordDict().size();
+
+    long start = getAllocatedBytes();
+
+    if (model.startsWith("LDA")) {
+
+      String sampler = model.substring(model.indexOf(' ') + 1);
+
+      boolean[] sample = new boolean[2];
+
+      new LDA().estimate(docs, null, null, null, 0, T, fill(2, 0.1 * T), fill(1, 0.01 * W), numItns, 0, 0, sample, sampler, 1, 0, false, null, null, null, null, null, null, null, logProbFileName);
+    }
+    else if (model.startsWith("BackgroundLDA")) {
+
+      String sampler = model.substring(model.indexOf(' ') + 1);
+
+      boolean[] sample = new boolean[4];
+
+      // a single background register, as in BackgroundLDAExperiment
+
+      for (int d=0; d<docs.size(); d++)
+        docs.getDocument(d).setRegister(0);
+
+      new BackgroundLDA().estimate(docs, null, null, null, 0, T, 1, fill(2, 0.1 * T), fill(1, 1.0), fill(1, 0.01 * W), fill(1, 0.01 * W), numItns, 0, 0, sample, sampler, 1, 0, false, null, null, null, null, null, null, null, null, null, null, null, logProbFileName);
+    }
+    else if (model.startsWith("RegisterLDA")) {
+
+      String sampler = model.substring(model.indexOf(' ') + 1);
+
+      boolean[] sample = new boolean[5];
+
+      new RegisterLDA().estimate(docs, null, null, null, 0, T, R, fill(2, 0.1 * T), fill(1, 1.0), fill(1, 0.01 * W), fill(1, 0.01 * W), fill(1, 1.0 * R), numItns, 0, 0, sample, sampler, 1, 0, false, null, null, null, null, null, null, null, null, null, null, null, null, logProbFileName);
+    }
+    else {
+
+      assert model.equals("ChunkRegisterLDA");
+
+      boolean[] sample = new boolean[5];
+
+      new ChunkRegisterLDA().estimate(docs, null, null, null, 0, T, R, C, fill(2, 0.1 * T), fill(1, 1.0), fill(1, 0.01 * W), fill(2, 0.01 * W), fill(1, 1.0 * R), numItns, 0, 0, sample, 1, 0, false, null, null, null, null, null, null, null, null, null, null, null, null, logProbFileName);
+    }
+
+    return getAllocatedBytes() - start;
+  }
+
+  public static void main(String[] args) throws IOException {
+
+    if (args.length != 4) {
+      System.out.println("Usage: SamplingAllocationBenchmark <instance_list> <num_topics> <num_registers> <num_sweeps>");
+      System.exit(1);
+    }
+
+    String instanceListFileName = args[0];
+
+    int T = Integer.parseInt(args[1]); // # of topics
+    int R = Integer.parseInt(args[2]); // # of registers
+    int numSweeps = Integer.parseInt(args[3]);
+
+    Alphabet wordDict = new Alphabet();
+
+    Corpus docs = new Corpus(wordDict, null);
+
+    InstanceListLoader.load(instanceListFileName, docs);
+
+    long numTokens = docs.getNumTokens();
+
+    int C = 0; // # of chunks
+
+    int[] chunks = docs.getChunks();
+
+    for (int n=0; n<numTokens; n++)
+      C = Math.max(C, chunks[n] + 1);
+
+    List<String> models = new ArrayList<String>();
+
+    for (String sampler : new String[] { "dense", "sparse", "alias" })
+      models.add("LDA " + sampler);
+
+    for (String sampler : new String[] { "dense", "alias" }) {
+      models.add("BackgroundLDA " + sampler);
+      models.add("RegisterLDA " + sampler);
+    }
+
+    if (C > 0)
+      models.add("ChunkRegisterLDA");
+
+    File logProbFile = File.createTempFile("log_prob", ".txt");
+    logProbFile.deleteOnExit();
+
+    String logProbFileName = logProbFile.getPath();
+
+    boolean failed = false;
+
+    List<String> results = new ArrayList<String>();
+
+    for (String model : models) {
+
+      // the one-sweep run also lets the JIT compile the sampling code
+
+      long bytes = -run(model, docs, T, R, C, 1, logProbFileName);
+      bytes += run(model, docs, T, R, C, 1 + numSweeps, logProbFileName);
+
+      double bytesPerToken = Math.max(bytes, 0) / ((double) numSweeps * numTokens);
+
+      failed |= (bytesPerToken > MAX_BYTES_PER_TOKEN);
+
+      results.add(model + ": " + bytesPerToken + " bytes/token");
+    }
+
+    System.out.println();
+
+    for (String result : results)
+      System.out.println(result);
+
+    if (failed)
+      System.exit(1);
+  }
+}
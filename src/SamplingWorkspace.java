@@ -0,0 +1,51 @@
+package edu.umass.cs.wallach.cluster;
+
+// scratch buffers for building and drawing from discrete
+// distributions, so that a steady-state sweep allocates nothing per
+// token. Each thread owns one workspace (every model and every worker
+// has its own). Buffers grow on demand and are never shrunk, so the
+// number of outcomes must be passed along with a buffer rather than
+// taken from its length.
+
+public class SamplingWorkspace {
+
+  private double[] dist = new double[0]; // scores over outcomes
+  private double[] logDist = new double[0]; // log scores over outcomes
+  private double[] expDist = new double[0]; // exponentiated log scores
+  private int[] counts = new int[0];
+
+  public double[] getDist(int size) {
+
+    if (dist.length < size)
+      dist = new double[size];
+
+    return dist;
+  }
+
+  public double[] getLogDist(int size) {
+
+    if (logDist.length < size)
+      logDist = new double[size];
+
+    return logDist;
+  }
+
+  // used by LogRandoms.nextDiscreteLogDist, so it never aliases the
+  // other buffers
+
+  public double[] getExpDist(int size) {
+
+    if (expDist.length < size)
+      expDist = new double[size];
+
+    return expDist;
+  }
+
+  public int[] getCounts(int size) {
+
+    if (counts.length < size)
+      counts = new int[size];
+
+    return counts;
+  }
+}
@@ -0,0 +1,60 @@
+package edu.umass.cs.wallach.cluster;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+// helpers for approximate distributed Gibbs sampling (AD-LDA; Newman
+// et al., 2009), where each worker thread samples a contiguous shard
+// of documents against its own copy of the global counts
+
+public class Shards {
+
+  // splits the documents into numShards contiguous shards with
+  // roughly equal numbers of tokens -- shard p is [bounds[p], bounds[p+1])
+
+  public static int[] split(Corpus docs, int numShards) {
+
+    int D = docs.size();
+
+    long numTokens = 0;
+
+    for (int d=0; d<D; d++)
+      numTokens += docs.getDocument(d).getLength();
+
+    int[] bounds = new int[numShards + 1];
+
+    long acc = 0;
+    int p = 1;
+
+    for (int d=0; (d<D) && (p<numShards); d++) {
+
+      acc += docs.getDocument(d).getLength();
+
+      while ((p < numShards) && (acc * numShards >= numTokens * p))
+        bounds[p++] = d + 1;
+    }
+
+    while (p <= numShards)
+      bounds[p++] = D;
+
+    return bounds;
+  }
+
+  // runs the tasks and waits for all of them to finish, rethrowing
+  // the first failure
+
+  public static void invokeAll(ExecutorService pool, List<Callable<Object>> tasks) {
+
+    try {
+      for (Future<Object> future : pool.invokeAll(tasks))
+        future.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+    catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+  }
+}
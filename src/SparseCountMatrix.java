@@ -0,0 +1,287 @@
+package edu.umass.cs.wallach.cluster;
+
+import java.util.*;
+
+// a numRows x numColumns matrix of counts in which each row stores
+// only its nonzero columns, as sorted (column, count) pairs, so memory
+// grows with the number of nonzero counts rather than numRows x
+// numColumns. A row with more than numColumns / DENSE_FRACTION nonzero
+// columns is promoted to a dense array, which costs little more than
+// the pairs and makes lookups O(1); its sorted nonzero columns are
+// still kept for iteration.
+
+public class SparseCountMatrix {
+
+  private static final int DENSE_FRACTION = 4;
+
+  private static final int INITIAL_CAPACITY = 2;
+
+  private int numRows, numColumns;
+
+  private int denseThreshold;
+
+  private int[][] columns; // sorted nonzero columns of each row
+  private int[][] counts; // counts for each sparse row's columns
+  private int[] sizes; // # of nonzero columns in each row
+
+  private int[][] denseRows; // non-null for dense rows
+
+  public SparseCountMatrix(int numRows, int numColumns) {
+
+    this.numRows = numRows;
+    this.numColumns = numColumns;
+
+    denseThreshold = numColumns / DENSE_FRACTION;
+
+    columns = new int[numRows][];
+    counts = new int[numRows][];
+    sizes = new int[numRows];
+
+    denseRows = new int[numRows][];
+  }
+
+  public int getNumRows() {
+
+    return numRows;
+  }
+
+  public int getNumColumns() {
+
+    return numColumns;
+  }
+
+  private int find(int row, int column) {
+
+    if (columns[row] == null)
+      return -1;
+    else
+      return Arrays.binarySearch(columns[row], 0, sizes[row], column);
+  }
+
+  public int get(int row, int column) {
+
+    int[] dense = denseRows[row];
+
+    if (dense != null)
+      return dense[column];
+
+    int k = find(row, column);
+
+    return (k >= 0) ? counts[row][k] : 0;
+  }
+
+  // # of nonzero columns in a row
+
+  public int getNumNonZero(int row) {
+
+    return sizes[row];
+  }
+
+  // kth nonzero column of a row, in increasing order of column
+
+  public int getNonZeroColumn(int row, int k) {
+
+    return columns[row][k];
+  }
+
+  // count for the kth nonzero column of a row
+
+  public int getNonZeroCount(int row, int k) {
+
+    int[] dense = denseRows[row];
+
+    if (dense != null)
+      return dense[columns[row][k]];
+    else
+      return counts[row][k];
+  }
+
+  // inserts column into a row's sorted nonzero columns at position k
+
+  private void insert(int row, int k, int column, int count) {
+
+    int size = sizes[row];
+
+    if (columns[row] == null) {
+
+      columns[row] = new int[INITIAL_CAPACITY];
+
+      if (denseRows[row] == null)
+        counts[row] = new int[INITIAL_CAPACITY];
+    }
+    else if (size == columns[row].length) {
+
+      int capacity = Math.min(2 * size, numColumns);
+
+      columns[row] = Arrays.copyOf(columns[row], capacity);
+
+      if (denseRows[row] == null)
+        counts[row] = Arrays.copyOf(counts[row], capacity);
+    }
+
+    System.arraycopy(columns[row], k, columns[row], k + 1, size - k);
+    columns[row][k] = column;
+
+    if (denseRows[row] == null) {
+      System.arraycopy(counts[row], k, counts[row], k + 1, size - k);
+      counts[row][k] = count;
+    }
+
+    sizes[row]++;
+  }
+
+  // removes position k from a row's sorted nonzero columns
+
+  private void remove(int row, int k) {
+
+    int size = sizes[row];
+
+    System.arraycopy(columns[row], k + 1, columns[row], k, size - k - 1);
+
+    if (denseRows[row] == null)
+      System.arraycopy(counts[row], k + 1, counts[row], k, size - k - 1);
+
+    sizes[row]--;
+  }
+
+  private void promote(int row) {
+
+    int[] dense = new int[numColumns];
+
+    for (int k=0; k<sizes[row]; k++)
+      dense[columns[row][k]] = counts[row][k];
+
+    denseRows[row] = dense;
+    counts[row] = null;
+  }
+
+  // adds value to the count and returns the old count
+
+  public int add(int row, int column, int value) {
+
+    int[] dense = denseRows[row];
+
+    if (dense != null) {
+
+      int oldValue = dense[column];
+      int newValue = oldValue + value;
+
+      assert newValue >= 0;
+
+      dense[column] = newValue;
+
+      if ((oldValue == 0) && (newValue != 0)) {
+
+        int k = find(row, column);
+
+        insert(row, -(k + 1), column, newValue);
+      }
+      else if ((oldValue != 0) && (newValue == 0))
+        remove(row, find(row, column));
+
+      return oldValue;
+    }
+
+    int k = find(row, column);
+
+    if (k >= 0) {
+
+      int oldValue = counts[row][k];
+      int newValue = oldValue + value;
+
+      assert newValue >= 0;
+
+      if (newValue == 0)
+        remove(row, k);
+      else
+        counts[row][k] = newValue;
+
+      return oldValue;
+    }
+    else {
+
+      assert value >= 0;
+
+      if (value != 0) {
+
+        insert(row, -(k + 1), column, value);
+
+        if (sizes[row] > denseThreshold)
+          promote(row);
+      }
+
+      return 0;
+    }
+  }
+
+  public int increment(int row, int column) {
+
+    return add(row, column, 1);
+  }
+
+  public int decrement(int row, int column) {
+
+    return add(row, column, -1);
+  }
+
+  public void set(int row, int column, int value) {
+
+    add(row, column, value - get(row, column));
+  }
+
+  // copies a row into dest[0, numColumns)
+
+  public void getRow(int row, int[] dest) {
+
+    Arrays.fill(dest, 0, numColumns, 0);
+
+    for (int k=0; k<sizes[row]; k++)
+      dest[columns[row][k]] = getNonZeroCount(row, k);
+  }
+
+  // copies a row of another matrix with the same shape
+
+  public void copyRow(int row, SparseCountMatrix src) {
+
+    assert (src.numRows == numRows) && (src.numColumns == numColumns);
+
+    sizes[row] = src.sizes[row];
+
+    columns[row] = (src.columns[row] == null) ? null : src.columns[row].clone();
+    counts[row] = (src.counts[row] == null) ? null : src.counts[row].clone();
+    denseRows[row] = (src.denseRows[row] == null) ? null : src.denseRows[row].clone();
+  }
+
+  // copies every count of another matrix with the same shape
+
+  public void copyFrom(SparseCountMatrix src) {
+
+    for (int row=0; row<numRows; row++)
+      copyRow(row, src);
+  }
+
+  public SparseCountMatrix copy() {
+
+    SparseCountMatrix copy = new SparseCountMatrix(numRows, numColumns);
+
+    copy.copyFrom(this);
+
+    return copy;
+  }
+
+  // zeroes every count but keeps the space allocated for each row
+
+  public void clear() {
+
+    for (int row=0; row<numRows; row++) {
+
+      int[] dense = denseRows[row];
+
+      if (dense != null)
+        for (int k=0; k<sizes[row]; k++)
+          dense[columns[row][k]] = 0;
+
+      sizes[row] = 0;
+    }
+  }
+}
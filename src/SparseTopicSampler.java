@@ -0,0 +1,280 @@
+package edu.umass.cs.wallach.cluster;
+
+import java.util.*;
+
+// SparseLDA-style topic sampler (Yao, Mimno & McCallum, 2009) for the
+// two-level alpha prior used by DocTopicScore. Dropping the factors
+// that are constant across topics, the conditional for a token of
+// type w in document d is proportional to
+//
+//   (a1 m_j + N_{j|d}) (b / W + N_{w|j}) / (N_{.|j} + b)
+//
+// where m_j = (a0 / T + N_{j}) / (N_{.} + a0). This is split into a
+// smoothing-only bucket s (sum over all topics, cached), a
+// document-topic bucket r (sum over the document's nonzero topics,
+// cached per document) and a topic-word bucket q (sum over the word's
+// nonzero topics, computed per token), so the posterior is identical
+// to that of LDA.sampleTopics.
+
+public class SparseTopicSampler {
+
+  private TopicWordScore topicWordScore;
+  private DocTopicScore docTopicScore;
+
+  private int W, T; // constants
+
+  private double[] alpha, beta;
+
+  // cached bucket terms
+
+  private double[] smoothingTerms; // (a0 / T + N_{j}) / (N_{.|j} + b)
+  private double smoothingSum;
+
+  private double docSum; // sum_j N_{j|d} / (N_{.|j} + b)
+
+  // nonzero topics for every word type (the current document's
+  // nonzero topics come from docTopicScore)
+
+  private int[][] wordTopics;
+  private int[] wordTopicsSize;
+
+  private double[] wordTerms;
+
+  private int[] docCounts; // N_{j|d} for the current document, dense
+
+  public SparseTopicSampler(TopicWordScore topicWordScore, DocTopicScore docTopicScore, int W, int T) {
+
+    this.topicWordScore = topicWordScore;
+    this.docTopicScore = docTopicScore;
+
+    this.W = W;
+    this.T = T;
+
+    alpha = docTopicScore.getAlpha();
+    beta = topicWordScore.getBeta();
+
+    smoothingTerms = new double[T];
+
+    wordTopics = new int[W][];
+    wordTopicsSize = new int[W];
+
+    wordTerms = new double[T];
+
+    docCounts = new int[T];
+  }
+
+  // builds the nonzero topic lists from the current counts -- this
+  // must be called once the count matrices have been populated
+
+  public void initialize() {
+
+    for (int w=0; w<W; w++)
+      initialize(w);
+  }
+
+  // rebuilds the nonzero topic list for word type w
+
+  public void initialize(int w) {
+
+    int size = 0;
+
+    for (int j=0; j<T; j++)
+      if (topicWordScore.getCount(w, j) > 0)
+        size++;
+
+    wordTopics[w] = new int[Math.max(size, 1)];
+    wordTopicsSize[w] = 0;
+
+    for (int j=0; j<T; j++)
+      if (topicWordScore.getCount(w, j) > 0)
+        wordTopics[w][wordTopicsSize[w]++] = j;
+  }
+
+  private double getSmoothingTerm(int j) {
+
+    return (alpha[0] / T + docTopicScore.getTopicCount(j)) / (topicWordScore.getCountNorm(j) + beta[0]);
+  }
+
+  // recomputes the smoothing bucket from scratch -- this also picks
+  // up any changes to the hyperparameters
+
+  private void resetSmoothingSum() {
+
+    smoothingSum = 0.0;
+
+    for (int j=0; j<T; j++) {
+      smoothingTerms[j] = getSmoothingTerm(j);
+      smoothingSum += smoothingTerms[j];
+    }
+  }
+
+  private void addWordTopic(int w, int j) {
+
+    if (wordTopicsSize[w] == wordTopics[w].length)
+      wordTopics[w] = Arrays.copyOf(wordTopics[w], Math.min(2 * wordTopics[w].length, T));
+
+    wordTopics[w][wordTopicsSize[w]++] = j;
+  }
+
+  private void removeWordTopic(int w, int j) {
+
+    int[] topics = wordTopics[w];
+    int size = wordTopicsSize[w];
+
+    for (int i=0; i<size; i++)
+      if (topics[i] == j) {
+        topics[i] = topics[size - 1];
+        wordTopicsSize[w]--;
+        return;
+      }
+
+    assert false;
+  }
+
+  // updates the counts and the cached bucket terms for topic j
+
+  private void updateCounts(int w, int j, int d, boolean increment) {
+
+    double oldDocTerm = docCounts[j] / (topicWordScore.getCountNorm(j) + beta[0]);
+
+    if (increment) {
+      topicWordScore.incrementCounts(w, j);
+      docTopicScore.incrementCounts(j, d);
+    }
+    else {
+      topicWordScore.decrementCounts(w, j);
+      docTopicScore.decrementCounts(j, d);
+    }
+
+    smoothingSum -= smoothingTerms[j];
+    smoothingTerms[j] = getSmoothingTerm(j);
+    smoothingSum += smoothingTerms[j];
+
+    int njd = docCounts[j] += (increment ? 1 : -1);
+
+    docSum += njd / (topicWordScore.getCountNorm(j) + beta[0]) - oldDocTerm;
+
+    int nwj = topicWordScore.getCount(w, j);
+
+    if (increment) {
+      if (nwj == 1)
+        addWordTopic(w, j);
+    }
+    else {
+      if (nwj == 0)
+        removeWordTopic(w, j);
+    }
+  }
+
+  public void sampleTopics(Corpus docs, Assignments z, int start, int end, LogRandoms rng) {
+
+    resetSmoothingSum();
+
+    int[] offsets = docs.getOffsets();
+    int[] tokens = docs.getTokens();
+
+    for (int d=start; d<end; d++) {
+
+      // copy the document's counts and compute its bucket
+
+      docSum = 0.0;
+
+      for (int k=0; k<docTopicScore.getNumNonZeroTopics(d); k++) {
+
+        int j = docTopicScore.getNonZeroTopic(d, k);
+
+        docCounts[j] = docTopicScore.getNonZeroCount(d, k);
+        docSum += docCounts[j] / (topicWordScore.getCountNorm(j) + beta[0]);
+      }
+
+      for (int n=offsets[d]; n<offsets[d+1]; n++) {
+
+        int w = tokens[n];
+
+        updateCounts(w, z.getTopic(n), d, false);
+
+        double baseNorm = alpha[1] / (docTopicScore.getTopicCountNorm() + alpha[0]);
+
+        double s = baseNorm * beta[0] / W * smoothingSum;
+        double r = beta[0] / W * docSum;
+        double q = 0.0;
+
+        int[] topics = wordTopics[w];
+        int size = wordTopicsSize[w];
+
+        for (int k=0; k<size; k++) {
+
+          int j = topics[k];
+
+          double score = (baseNorm * (alpha[0] / T + docTopicScore.getTopicCount(j)) + docCounts[j]) * topicWordScore.getCount(w, j) / (topicWordScore.getCountNorm(j) + beta[0]);
+
+          wordTerms[k] = score;
+          q += score;
+        }
+
+        double u = rng.nextUniform() * (s + r + q);
+
+        int newTopic = -1;
+
+        if (u < q) {
+
+          for (int k=0; k<size; k++) {
+            u -= wordTerms[k];
+
+            if (u <= 0.0) {
+              newTopic = topics[k];
+              break;
+            }
+          }
+
+          if (newTopic == -1) // rounding error
+            newTopic = topics[size - 1];
+        }
+        else if (u < q + r) {
+
+          u = (u - q) / (beta[0] / W);
+
+          int numTopics = docTopicScore.getNumNonZeroTopics(d);
+
+          for (int k=0; k<numTopics; k++) {
+
+            int j = docTopicScore.getNonZeroTopic(d, k);
+
+            u -= docCounts[j] / (topicWordScore.getCountNorm(j) + beta[0]);
+
+            if (u <= 0.0) {
+              newTopic = j;
+              break;
+            }
+          }
+
+          if (newTopic == -1) // rounding error
+            newTopic = docTopicScore.getNonZeroTopic(d, numTopics - 1);
+        }
+        else {
+
+          u = (u - q - r) / (baseNorm * beta[0] / W);
+
+          for (int j=0; j<T; j++) {
+            u -= smoothingTerms[j];
+
+            if (u <= 0.0) {
+              newTopic = j;
+              break;
+            }
+          }
+
+          if (newTopic == -1) // rounding error
+            newTopic = T - 1;
+        }
+
+        z.setTopic(n, newTopic);
+
+        updateCounts(w, newTopic, d, true);
+      }
+
+      for (int k=0; k<docTopicScore.getNumNonZeroTopics(d); k++)
+        docCounts[docTopicScore.getNonZeroTopic(d, k)] = 0;
+    }
+  }
+}
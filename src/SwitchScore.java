@@ -81,73 +81,95 @@ public class SwitchScore {
     switchCountsNorm[c]--;
   }
 
-  // this must be called before processing test data
+  // creates a copy of the counts for a worker thread -- the
+  // hyperparameters are shared with this score function
 
-  public void lock(int numTestDocs) {
+  public SwitchScore copy() {
 
-    switchCountsTrain = new int[2][];
+    SwitchScore copy = new SwitchScore(C, gamma, triangle);
 
     for (int k=0; k<2; k++)
-      switchCountsTrain[k] = switchCounts[k].clone();
+      System.arraycopy(switchCounts[k], 0, copy.switchCounts[k], 0, C);
 
-    switchCountsNormTrain = switchCountsNorm.clone();
+    System.arraycopy(switchCountsNorm, 0, copy.switchCountsNorm, 0, C);
 
-    resetToTrain = true;
+    return copy;
   }
 
-  public void resetCounts() {
+  // creates a frozen copy of the counts and the hyperparameters, for
+  // computing diagnostics while sampling carries on with this one
 
-    if (resetToTrain) {
+  public SwitchScore snapshot() {
 
-      for (int k=0; k<2; k++)
-        switchCounts[k] = switchCountsTrain[k].clone();
+    SwitchScore snapshot = new SwitchScore(C, gamma.clone(), triangle.clone());
 
-      switchCountsNorm = switchCountsNormTrain.clone();
-    }
-    else {
+    for (int k=0; k<2; k++)
+      System.arraycopy(switchCounts[k], 0, snapshot.switchCounts[k], 0, C);
 
-      for (int k=0; k<2; k++)
-        Arrays.fill(switchCounts[k], 0);
+    System.arraycopy(switchCountsNorm, 0, snapshot.switchCountsNorm, 0, C);
 
-      Arrays.fill(switchCountsNorm, 0);
-    }
+    return snapshot;
   }
 
-  // computes log prob using the predictive distribution
+  // adds the changes made to each copy since the last merge to these
+  // counts and then resets every copy to the merged counts
 
-  public double logProb(Corpus docs, int[][] x) {
+  public void merge(SwitchScore[] copies) {
 
-    double logProb = 0.0;
+    for (int k=0; k<2; k++) {
 
-    resetCounts();
+      int[] old = switchCounts[k].clone();
 
-    int D = docs.size();
+      for (SwitchScore copy : copies)
+        for (int c=0; c<C; c++)
+          switchCounts[k][c] += copy.switchCounts[k][c] - old[c];
+    }
 
-    assert x.length == D;
+    int[] old = switchCountsNorm.clone();
 
-    for (int d=0; d<D; d++) {
+    for (SwitchScore copy : copies)
+      for (int c=0; c<C; c++)
+        switchCountsNorm[c] += copy.switchCountsNorm[c] - old[c];
 
-      int[] fs = docs.getDocument(d).getTokens();
+    for (SwitchScore copy : copies) {
 
-      int nd = fs.length;
+      for (int k=0; k<2; k++)
+        System.arraycopy(switchCounts[k], 0, copy.switchCounts[k], 0, C);
 
-      int[] cs = docs.getDocument(d).getChunks();
+      System.arraycopy(switchCountsNorm, 0, copy.switchCountsNorm, 0, C);
+    }
+  }
 
-      if (cs != null)
-        assert cs.length == nd;
+  // this must be called before processing test data
 
-      for (int i=0; i<nd; i++) {
+  public void lock(int numTestDocs) {
 
-        int k = x[d][i];
-        int c = (cs != null) ? cs[i] : 0;
+    switchCountsTrain = new int[2][];
 
-        logProb += Math.log(getScore(k, c));
+    for (int k=0; k<2; k++)
+      switchCountsTrain[k] = switchCounts[k].clone();
 
-        incrementCounts(k, c);
-      }
+    switchCountsNormTrain = switchCountsNorm.clone();
+
+    resetToTrain = true;
+  }
+
+  public void resetCounts() {
+
+    if (resetToTrain) {
+
+      for (int k=0; k<2; k++)
+        switchCounts[k] = switchCountsTrain[k].clone();
+
+      switchCountsNorm = switchCountsNormTrain.clone();
     }
+    else {
 
-    return logProb;
+      for (int k=0; k<2; k++)
+        Arrays.fill(switchCounts[k], 0);
+
+      Arrays.fill(switchCountsNorm, 0);
+    }
   }
 
   public double[] getGamma() {
@@ -171,22 +193,36 @@ public class SwitchScore {
     }
   }
 
-  private double logProb(Corpus docs, int[][] x, double[] newLogGamma) {
+  // log P(x) as a function of log gamma, up to terms that do not
+  // depend on gamma, computed in closed form from the current counts
+  // (a Dirichlet-multinomial per chunk)
+
+  private double logProb(double[] newLogGamma) {
+
+    double g = Math.exp(newLogGamma[0]);
 
-    double[] oldGamma = gamma.clone();
+    double logProb = 0.0;
 
-    for (int i=0; i<gamma.length; i++)
-      gamma[i] = Math.exp(newLogGamma[i]);
+    for (int c=0; c<C; c++) {
 
-    double logProb = logProb(docs, x);
+      for (int k=0; k<2; k++)
+        logProb += LogGamma.ratio(g * triangle[k], switchCounts[k][c]);
 
-    for (int i=0; i<gamma.length; i++)
-      gamma[i] = oldGamma[i];
+      logProb -= LogGamma.ratio(g, switchCountsNorm[c]);
+    }
 
     return logProb;
   }
 
-  public void sampleGamma(Corpus docs, int[][] x, LogRandoms rng, int numIterations, double stepSize) {
+  // computes log P(x) in closed form from the current counts (there
+  // are no other terms), without a pass over the corpus
+
+  public double logProb() {
+
+    return logProb(new double[] { Math.log(gamma[0]) });
+  }
+
+  public void sampleGamma(LogRandoms rng, int numIterations, double stepSize) {
 
     int I = gamma.length;
 
@@ -203,7 +239,7 @@ public class SwitchScore {
 
     for (int s=0; s<numIterations; s++) {
 
-      double lp = logProb(docs, x, rawParam) + rawParamSum;
+      double lp = logProb(rawParam) + rawParamSum;
       double lpNew = Math.log(rng.nextUniform()) + lp;
 
       for (int i=0; i<I; i++) {
@@ -223,7 +259,7 @@ public class SwitchScore {
           rawParamNewSum += rawParamNew[i];
         }
 
-        if (logProb(docs, x, rawParamNew) + rawParamNewSum > lpNew)
+        if (logProb(rawParamNew) + rawParamNewSum > lpNew)
           break;
         else
           for (int i=0; i<I; i++)
@@ -0,0 +1,221 @@
+package edu.umass.cs.wallach.cluster;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+// selects the k highest-scoring of a stream of (index, score) pairs in
+// O(n log k) time, using a bounded min-heap kept in parallel index and
+// score arrays, so no object is created per entry. The root of the
+// heap is the worst entry selected so far and each new entry need only
+// beat it. Ties go to the lower index, as they would with a stable
+// sort of the entries in index order. Zero scores and scores below the
+// threshold are never selected.
+
+public class TopK {
+
+  private static final int MAX_ENTRIES = 1 << 22; // entries held at once by select()
+
+  private int k;
+  private double threshold;
+
+  private int size;
+
+  private int[] indices;
+  private double[] scores;
+
+  public TopK(int k, double threshold) {
+
+    this.k = k;
+    this.threshold = threshold;
+
+    size = 0;
+
+    indices = new int[k];
+    scores = new double[k];
+  }
+
+  public void clear() {
+
+    size = 0;
+  }
+
+  // is entry (i, si) worse than entry (j, sj)?
+
+  private static boolean isWorse(int i, double si, int j, double sj) {
+
+    return (si < sj) || ((si == sj) && (i > j));
+  }
+
+  private boolean isWorse(int a, int b) {
+
+    return isWorse(indices[a], scores[a], indices[b], scores[b]);
+  }
+
+  private void swap(int a, int b) {
+
+    int index = indices[a];
+    indices[a] = indices[b];
+    indices[b] = index;
+
+    double score = scores[a];
+    scores[a] = scores[b];
+    scores[b] = score;
+  }
+
+  private void siftUp(int a) {
+
+    while (a > 0) {
+
+      int parent = (a - 1) / 2;
+
+      if (!isWorse(a, parent))
+        return;
+
+      swap(a, parent);
+      a = parent;
+    }
+  }
+
+  // restores the heap below a, considering only its first n entries
+
+  private void siftDown(int a, int n) {
+
+    while (true) {
+
+      int worst = a;
+
+      int left = 2 * a + 1;
+      int right = left + 1;
+
+      if ((left < n) && isWorse(left, worst))
+        worst = left;
+
+      if ((right < n) && isWorse(right, worst))
+        worst = right;
+
+      if (worst == a)
+        return;
+
+      swap(a, worst);
+      a = worst;
+    }
+  }
+
+  public void add(int index, double score) {
+
+    if ((score == 0) || (score < threshold))
+      return;
+
+    if (size < k) {
+      indices[size] = index;
+      scores[size] = score;
+      siftUp(size++);
+    }
+    else if ((k > 0) && isWorse(indices[0], scores[0], index, score)) {
+      indices[0] = index;
+      scores[0] = score;
+      siftDown(0, size);
+    }
+  }
+
+  // sorts the selected entries from best to worst -- this must be
+  // called after the last add() and before getIndex() or getScore()
+
+  public void sort() {
+
+    for (int n=size-1; n>0; n--) {
+      swap(0, n);
+      siftDown(0, n);
+    }
+  }
+
+  // # of entries selected
+
+  public int size() {
+
+    return size;
+  }
+
+  public int getIndex(int i) {
+
+    return indices[i];
+  }
+
+  public double getScore(int i) {
+
+    return scores[i];
+  }
+
+  // the scores of a set of rows, each over the indices [0, n)
+
+  public interface Rows {
+
+    public double getScore(int row, int i);
+  }
+
+  // the # of rows to pass to select() at a time when selecting k of
+  // each, so that at most MAX_ENTRIES are held at once
+
+  public static int getBlockSize(int k) {
+
+    return Math.max(1, MAX_ENTRIES / Math.max(k, 1));
+  }
+
+  // selects the top entries of rows [start, end) into selected[0]
+  // through selected[end - start - 1], which are cleared first, and
+  // sorts them. If byEntry is true the entries are the outer loop and
+  // the rows the inner one, which suits scores stored entry by entry
+  // (e.g., word-major counts, when the rows are topics) -- otherwise
+  // each row is scanned in turn. The rows are split among the pool's
+  // threads if pool isn't null.
+
+  public static void select(ForkJoinPool pool, final Rows rows, final int n, final int start, int end, final boolean byEntry, final TopK[] selected) {
+
+    if (pool == null) {
+      select(rows, n, start, start, end, byEntry, selected);
+      return;
+    }
+
+    int numRows = end - start;
+    int numTasks = Math.min(numRows, pool.getParallelism());
+
+    List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+
+    for (int t=0; t<numTasks; t++) {
+
+      final int taskStart = start + (int) ((long) numRows * t / numTasks);
+      final int taskEnd = start + (int) ((long) numRows * (t + 1) / numTasks);
+
+      tasks.add(new Callable<Object>() {
+          public Object call() {
+
+            select(rows, n, start, taskStart, taskEnd, byEntry, selected);
+
+            return null;
+          }
+        });
+    }
+
+    Shards.invokeAll(pool, tasks);
+  }
+
+  private static void select(Rows rows, int n, int offset, int start, int end, boolean byEntry, TopK[] selected) {
+
+    for (int row=start; row<end; row++)
+      selected[row - offset].clear();
+
+    if (byEntry) {
+      for (int i=0; i<n; i++)
+        for (int row=start; row<end; row++)
+          selected[row - offset].add(i, rows.getScore(row, i));
+    }
+    else {
+      for (int row=start; row<end; row++)
+        for (int i=0; i<n; i++)
+          selected[row - offset].add(i, rows.getScore(row, i));
+    }
+
+    for (int row=start; row<end; row++)
+      selected[row - offset].sort();
+  }
+}
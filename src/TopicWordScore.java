@@ -2,6 +2,7 @@ package edu.umass.cs.wallach.cluster;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.zip.*;
 
 import gnu.trove.*;
@@ -13,22 +14,50 @@ public class TopicWordScore {
 
   // observed counts
 
-  private int[][] wordTopicCounts; // N_{w|j}
+  private CountMatrix wordTopicCounts; // N_{w|j}
   private int[] wordTopicCountsNorm; // N_{.|j}
 
-  private int[][] wordTopicCountsTrain;
+  // once locked, wordTopicCounts is immutable (and may be shared) and
+  // changes to it are kept in an overlay
+
+  private CountOverlay wordTopicCountsTest;
   private int[] wordTopicCountsNormTrain;
 
+  // # of cells of N_{w|j} with each count, for sampling beta (not
+  // tracked by copies)
+
+  private CountHistogram countHistogram;
+
   private TIntIntHashMap unseenCounts;
 
   private int W, T; // constants
 
+  // getScore(w, j) = (priorScores[j] + N_{w|j} inverseNorms[j]) *
+  // unseenScales[w] -- the coefficients are updated along with the
+  // counts and recomputed by updateCoefficients()
+
+  private double[] priorScores; // (1 / W) b / (N_{.|j} + b)
+  private double[] inverseNorms; // 1 / (N_{.|j} + b)
+
+  private double[] unseenScales; // 1 / (# of unseen types w stands for)
+
+  private int[] row;
+
   // hyperparameters
 
   private double[] beta;
 
   private boolean resetToTrain = false;
 
+  // rows changed since the last merge (only tracked for copies)
+
+  private boolean[] dirty;
+  private int[] dirtyRows;
+  private int numDirtyRows;
+
+  private TopicWordScore() {
+  }
+
   // create a score function with zero counts
 
   public TopicWordScore(int W, int T, double[] beta, TIntIntHashMap unseenCounts) {
@@ -43,27 +72,86 @@ public class TopicWordScore {
 
     // allocate space for counts
 
-    wordTopicCounts = new int[W][T];
+    wordTopicCounts = new CountMatrix(W, T);
     wordTopicCountsNorm = new int[T];
+
+    priorScores = new double[T];
+    inverseNorms = new double[T];
+
+    if (unseenCounts != null) {
+
+      unseenScales = new double[W];
+
+      for (int w=0; w<W; w++)
+        unseenScales[w] = 1.0 / getUnseenCount(w);
+    }
+
+    row = new int[T];
+
+    countHistogram = new CountHistogram();
+
+    updateCoefficients();
   }
 
-  public double getScore(int w, int j) {
+  private void updateCoefficients(int j) {
 
-    double score = 1.0 / W;
+    inverseNorms[j] = 1.0 / (wordTopicCountsNorm[j] + beta[0]);
+    priorScores[j] = beta[0] / W * inverseNorms[j];
+  }
 
-    int nwj = wordTopicCounts[w][j];
-    int nj = wordTopicCountsNorm[j];
+  // this must be called whenever beta changes
+
+  public void updateCoefficients() {
+
+    for (int j=0; j<T; j++)
+      updateCoefficients(j);
+  }
+
+  private int count(int w, int j) {
 
-    score *= beta[0] / (nj + beta[0]);
-    score += nwj / (nj + beta[0]);
+    if (wordTopicCountsTest == null)
+      return wordTopicCounts.get(w, j);
+    else
+      return wordTopicCounts.get(w, j) + wordTopicCountsTest.get(w, j);
+  }
+
+  public double getScore(int w, int j) {
+
+    double score = priorScores[j] + count(w, j) * inverseNorms[j];
 
-    if (unseenCounts != null)
-      if (unseenCounts.containsKey(w))
-        score /= (double) unseenCounts.get(w);
+    if (unseenScales != null)
+      score *= unseenScales[w];
 
     return score;
   }
 
+  // sets scores[j] = scale * getScore(w, j) * weights[j] for every
+  // topic j (scores and weights may be the same array) and returns
+  // their sum
+
+  public double scoreVector(int w, double scale, double[] weights, double[] scores) {
+
+    wordTopicCounts.getRow(w, row);
+
+    if (wordTopicCountsTest != null)
+      wordTopicCountsTest.addRow(w, row);
+
+    if (unseenScales != null)
+      scale *= unseenScales[w];
+
+    double sum = 0.0;
+
+    for (int j=0; j<T; j++) {
+
+      double score = (priorScores[j] + row[j] * inverseNorms[j]) * scale * weights[j];
+
+      scores[j] = score;
+      sum += score;
+    }
+
+    return sum;
+  }
+
   public double getScoreNoPrior(int w, int j) {
 
     int nj = wordTopicCountsNorm[j];
@@ -72,97 +160,278 @@ public class TopicWordScore {
       return 0.0;
     else {
 
-      double score = (double) wordTopicCounts[w][j] / (double) nj;
+      double score = (double) count(w, j) / (double) nj;
 
-      if (unseenCounts != null)
-        if (unseenCounts.containsKey(w))
-          score /= (double) unseenCounts.get(w);
+      if (unseenScales != null)
+        score *= unseenScales[w];
 
       return score;
     }
   }
 
+  public int getCount(int w, int j) {
+
+    return count(w, j);
+  }
+
+  // copies every topic's count of word w into counts[0, T)
+
+  private void getCounts(int w, int[] counts) {
+
+    wordTopicCounts.getRow(w, counts);
+
+    if (wordTopicCountsTest != null)
+      wordTopicCountsTest.addRow(w, counts);
+  }
+
+  public int getCountNorm(int j) {
+
+    return wordTopicCountsNorm[j];
+  }
+
+  public int getUnseenCount(int w) {
+
+    if ((unseenCounts != null) && unseenCounts.containsKey(w))
+      return unseenCounts.get(w);
+    else
+      return 1;
+  }
+
   public void incrementCounts(int w, int j) {
 
-    wordTopicCounts[w][j]++;
+    int oldCount;
+
+    if (wordTopicCountsTest == null)
+      oldCount = wordTopicCounts.increment(w, j);
+    else
+      oldCount = wordTopicCounts.get(w, j) + wordTopicCountsTest.add(w, j, 1);
+
     wordTopicCountsNorm[j]++;
+
+    if (countHistogram != null)
+      countHistogram.move(oldCount, oldCount + 1);
+
+    updateCoefficients(j);
+
+    if ((dirty != null) && !dirty[w]) {
+      dirty[w] = true;
+      dirtyRows[numDirtyRows++] = w;
+    }
   }
 
   public void decrementCounts(int w, int j) {
 
-    wordTopicCounts[w][j]--;
+    int oldCount;
+
+    if (wordTopicCountsTest == null)
+      oldCount = wordTopicCounts.decrement(w, j);
+    else
+      oldCount = wordTopicCounts.get(w, j) + wordTopicCountsTest.add(w, j, -1);
+
     wordTopicCountsNorm[j]--;
+
+    if (countHistogram != null)
+      countHistogram.move(oldCount, oldCount - 1);
+
+    updateCoefficients(j);
+
+    if ((dirty != null) && !dirty[w]) {
+      dirty[w] = true;
+      dirtyRows[numDirtyRows++] = w;
+    }
   }
 
-  // this must be called before processing test data
+  // creates a copy of the counts for a worker thread -- the
+  // hyperparameters are shared with this score function
 
-  public void lock() {
+  public TopicWordScore copy() {
 
-    wordTopicCountsTrain = new int[W][];
+    TopicWordScore copy = new TopicWordScore(W, T, beta, unseenCounts);
 
-    for (int w=0; w<W; w++)
-      wordTopicCountsTrain[w] = wordTopicCounts[w].clone();
+    copy.wordTopicCounts.copyFrom(wordTopicCounts);
 
-    wordTopicCountsNormTrain = wordTopicCountsNorm.clone();
+    System.arraycopy(wordTopicCountsNorm, 0, copy.wordTopicCountsNorm, 0, T);
 
-    resetToTrain = true;
+    copy.countHistogram = null;
+
+    copy.dirty = new boolean[W];
+    copy.dirtyRows = new int[W];
+
+    return copy;
   }
 
-  public void resetCounts() {
+  // creates a frozen copy of the counts and the hyperparameters, for
+  // computing diagnostics while sampling carries on with this one
 
-    if (resetToTrain) {
+  public TopicWordScore snapshot() {
 
-      for (int w=0; w<W; w++)
-        wordTopicCounts[w] = wordTopicCountsTrain[w].clone();
+    TopicWordScore snapshot = new TopicWordScore(W, T, beta.clone(), unseenCounts);
+
+    snapshot.wordTopicCounts.copyFrom(wordTopicCounts);
+
+    System.arraycopy(wordTopicCountsNorm, 0, snapshot.wordTopicCountsNorm, 0, T);
+
+    snapshot.countHistogram.copyFrom(countHistogram);
+
+    snapshot.updateCoefficients();
 
-      wordTopicCountsNorm = wordTopicCountsNormTrain.clone();
+    return snapshot;
+  }
+
+  // adds the changes made to each copy since the last merge to these
+  // counts and then resets every copy to the merged counts -- returns
+  // the rows that changed
+
+  public int[] merge(TopicWordScore[] copies) {
+
+    boolean[] changed = new boolean[W];
+
+    TIntArrayList rows = new TIntArrayList();
+
+    for (TopicWordScore copy : copies)
+      for (int i=0; i<copy.numDirtyRows; i++)
+        if (!changed[copy.dirtyRows[i]]) {
+          changed[copy.dirtyRows[i]] = true;
+          rows.add(copy.dirtyRows[i]);
+        }
+
+    int[] old = new int[T];
+
+    for (int i=0; i<rows.size(); i++) {
+
+      int w = rows.get(i);
+
+      wordTopicCounts.getRow(w, old);
+
+      for (TopicWordScore copy : copies)
+        if (copy.dirty[w])
+          for (int j=0; j<T; j++)
+            wordTopicCounts.add(w, j, copy.wordTopicCounts.get(w, j) - old[j]);
+
+      for (int j=0; j<T; j++)
+        countHistogram.move(old[j], wordTopicCounts.get(w, j));
+
+      for (TopicWordScore copy : copies)
+        copy.wordTopicCounts.copyRow(w, wordTopicCounts);
     }
-    else {
 
-      for (int w=0; w<W; w++)
-        Arrays.fill(wordTopicCounts[w], 0);
+    System.arraycopy(wordTopicCountsNorm, 0, old, 0, T);
 
-      Arrays.fill(wordTopicCountsNorm, 0);
+    for (TopicWordScore copy : copies)
+      for (int j=0; j<T; j++)
+        wordTopicCountsNorm[j] += copy.wordTopicCountsNorm[j] - old[j];
+
+    updateCoefficients();
+
+    for (TopicWordScore copy : copies) {
+
+      System.arraycopy(wordTopicCountsNorm, 0, copy.wordTopicCountsNorm, 0, T);
+
+      copy.updateCoefficients();
+
+      for (int i=0; i<copy.numDirtyRows; i++)
+        copy.dirty[copy.dirtyRows[i]] = false;
+
+      copy.numDirtyRows = 0;
     }
+
+    return rows.toNativeArray();
   }
 
-  // computes log prob using the predictive distribution
+  // this must be called before processing test data -- the current
+  // counts are frozen and later changes go to an overlay, so that
+  // resetCounts() only has to undo the rows that were touched
 
-  public double logProb(Corpus docs, int[][] x, int[][] z) {
+  public void lock() {
 
-    double logProb = 0.0;
+    if (resetToTrain)
+      return; // already locked
 
-    resetCounts();
+    wordTopicCountsTest = new CountOverlay(W, T);
 
-    int D = docs.size();
+    wordTopicCountsNormTrain = wordTopicCountsNorm.clone();
 
-    if (x != null)
-      assert x.length == D;
+    resetToTrain = true;
+  }
 
-    assert z.length == D;
+  // creates a score function for test data that shares these locked
+  // counts but keeps its own changes to them, so that several can be
+  // used at once (e.g., one per thread)
 
-    for (int d=0; d<D; d++) {
+  public TopicWordScore testCopy() {
 
-      int[] fs = docs.getDocument(d).getTokens();
+    assert resetToTrain;
 
-      int nd = fs.length;
+    TopicWordScore copy = new TopicWordScore();
 
-      for (int i=0; i<nd; i++) {
+    copy.W = W;
+    copy.T = T;
 
-        int w = fs[i];
-        int k = (x != null) ? x[d][i] : -1;
-        int j = z[d][i];
+    copy.beta = beta.clone();
 
-        if ((k == 0) || (k == -1)) {
+    copy.unseenCounts = unseenCounts;
+    copy.unseenScales = unseenScales;
 
-          logProb += Math.log(getScore(w, j));
+    copy.wordTopicCounts = wordTopicCounts;
+    copy.wordTopicCountsTest = new CountOverlay(W, T);
 
-          incrementCounts(w, j);
-        }
-      }
+    copy.wordTopicCountsNorm = wordTopicCountsNormTrain.clone();
+    copy.wordTopicCountsNormTrain = wordTopicCountsNormTrain;
+
+    copy.countHistogram = new CountHistogram();
+    copy.countHistogram.copyFrom(countHistogram);
+
+    undoTestChanges(copy.countHistogram);
+
+    copy.priorScores = new double[T];
+    copy.inverseNorms = new double[T];
+
+    copy.row = new int[T];
+
+    copy.resetToTrain = true;
+
+    copy.updateCoefficients();
+
+    return copy;
+  }
+
+  // moves every cell changed since locking back to its locked count
+  // in the given count-of-counts
+
+  private void undoTestChanges(CountHistogram histogram) {
+
+    for (int k=0; k<wordTopicCountsTest.getNumTouchedRows(); k++) {
+
+      int w = wordTopicCountsTest.getTouchedRow(k);
+
+      int[] changes = wordTopicCountsTest.getRow(w);
+
+      for (int j=0; j<T; j++)
+        if (changes[j] != 0)
+          histogram.move(wordTopicCounts.get(w, j) + changes[j], wordTopicCounts.get(w, j));
     }
+  }
 
-    return logProb;
+  public void resetCounts() {
+
+    if (resetToTrain) {
+
+      undoTestChanges(countHistogram);
+
+      wordTopicCountsTest.clear();
+
+      System.arraycopy(wordTopicCountsNormTrain, 0, wordTopicCountsNorm, 0, T);
+    }
+    else {
+
+      wordTopicCounts.clear();
+
+      Arrays.fill(wordTopicCountsNorm, 0);
+
+      countHistogram.clear();
+    }
+
+    updateCoefficients();
   }
 
   public double[] getBeta() {
@@ -186,22 +455,50 @@ public class TopicWordScore {
     }
   }
 
-  private double logProb(Corpus docs, int[][] x, int[][] z, double[] newLogBeta) {
+  // log P(w | z) as a function of log beta, up to terms that do not
+  // depend on beta, computed in closed form from the current counts
+  // and their count-of-counts, so it costs O(T + max N_{w|j}) rather
+  // than a pass over the corpus and leaves the counts untouched
+
+  private double logProb(double[] newLogBeta) {
+
+    double b = Math.exp(newLogBeta[0]);
+
+    double logProb = countHistogram.logGammaRatioSum(b / W);
+
+    for (int j=0; j<T; j++)
+      logProb -= LogGamma.ratio(b, wordTopicCountsNorm[j]);
+
+    return logProb;
+  }
+
+  // computes log P(w | z) in closed form from the current counts (the
+  // terms above plus the unseen types' scales), so it equals the
+  // predictive distribution's log prob without a pass over the corpus
 
-    double[] oldBeta = beta.clone();
+  public double logProb(ForkJoinPool pool) {
 
-    for (int i=0; i<beta.length; i++)
-      beta[i] = Math.exp(newLogBeta[i]);
+    double logProb = logProb(new double[] { Math.log(beta[0]) });
 
-    double logProb = logProb(docs, x, z);
+    if (unseenScales != null)
+      logProb += ParallelSum.sum(pool, W, new ParallelSum.Terms() {
+          public double sum(int start, int end) {
 
-    for (int i=0; i<beta.length; i++)
-      beta[i] = oldBeta[i];
+            double sum = 0.0;
+
+            for (int w=start; w<end; w++)
+              if (unseenScales[w] != 1.0)
+                for (int j=0; j<T; j++)
+                  sum += count(w, j) * Math.log(unseenScales[w]);
+
+            return sum;
+          }
+        });
 
     return logProb;
   }
 
-  public void sampleBeta(Corpus docs, int[][] x, int[][] z, LogRandoms rng, int numIterations, double stepSize) {
+  public void sampleBeta(LogRandoms rng, int numIterations, double stepSize) {
 
     int I = beta.length;
 
@@ -218,7 +515,7 @@ public class TopicWordScore {
 
     for (int s=0; s<numIterations; s++) {
 
-      double lp = logProb(docs, x, z, rawParam) + rawParamSum;
+      double lp = logProb(rawParam) + rawParamSum;
       double lpNew = Math.log(rng.nextUniform()) + lp;
 
       for (int i=0; i<I; i++) {
@@ -238,7 +535,7 @@ public class TopicWordScore {
           rawParamNewSum += rawParamNew[i];
         }
 
-        if (logProb(docs, x, z, rawParamNew) + rawParamNewSum > lpNew)
+        if (logProb(rawParamNew) + rawParamNewSum > lpNew)
           break;
         else
           for (int i=0; i<I; i++)
@@ -254,14 +551,20 @@ public class TopicWordScore {
 
     for (int i=0; i<I; i++)
       beta[i] = Math.exp(rawParam[i]);
+
+    updateCoefficients();
   }
 
-  public void print(Alphabet dict, String fileName) {
+  public void print(Alphabet dict, String fileName, ForkJoinPool pool) {
 
-    print(dict, 0.0, -1, false, fileName);
+    print(dict, 0.0, -1, false, fileName, pool);
   }
 
-  public void print(Alphabet dict, double threshold, int numWords, boolean summary, String fileName) {
+  // prints the numWords most probable words (all of them, if numWords
+  // is negative) of each topic, selecting them for a block of topics
+  // at a time, in parallel if pool isn't null
+
+  public void print(Alphabet dict, double threshold, int numWords, boolean summary, String fileName, ForkJoinPool pool) {
 
     assert dict.size() == W;
 
@@ -279,44 +582,56 @@ public class TopicWordScore {
           pw.println("#topic typeindex type proportion");
       }
 
-      Probability[] probs = new Probability[W];
+      if ((numWords > W) || (numWords < 0))
+        numWords = W;
 
-      for (int j=0; j<T; j++) {
-        for (int w=0; w<W; w++)
-          probs[w] = new Probability(w, getScore(w, j));
+      int blockSize = Math.min(T, TopK.getBlockSize(numWords));
+
+      TopK[] selected = new TopK[blockSize];
 
-        Arrays.sort(probs);
+      for (int i=0; i<blockSize; i++)
+        selected[i] = new TopK(numWords, threshold);
 
-        if ((numWords > W) || (numWords < 0))
-          numWords = W;
+      TopK.Rows rows = new TopK.Rows() {
+          public double getScore(int j, int w) {
+            return TopicWordScore.this.getScore(w, j);
+          }
+        };
 
-        StringBuffer line = new StringBuffer();
+      for (int start=0; start<T; start+=blockSize) {
 
-        for (int i=0; i<numWords; i++) {
+        int end = Math.min(start + blockSize, T);
 
-          // break if there are no more words whose proportion is
-          // greater than zero or threshold...
+        TopK.select(pool, rows, W, start, end, true, selected);
 
-          if ((probs[i].prob == 0) || (probs[i].prob < threshold))
-            break;
+        for (int j=start; j<end; j++) {
 
-          if ((fileName == null) || summary){
-            line.append(dict.lookupObject(probs[i].index));
-            line.append(" ");
-          }
-          else {
-            pw.print(j); pw.print(" ");
-            pw.print(probs[i].index); pw.print(" ");
-            pw.print(dict.lookupObject(probs[i].index)); pw.print(" ");
-            pw.print(probs[i].prob); pw.println();
+          TopK topK = selected[j - start];
+
+          StringBuffer line = new StringBuffer();
+
+          for (int i=0; i<topK.size(); i++) {
+
+            int w = topK.getIndex(i);
+
+            if ((fileName == null) || summary){
+              line.append(dict.lookupObject(w));
+              line.append(" ");
+            }
+            else {
+              pw.print(j); pw.print(" ");
+              pw.print(w); pw.print(" ");
+              pw.print(dict.lookupObject(w)); pw.print(" ");
+              pw.print(topK.getScore(i)); pw.println();
+            }
           }
-        }
 
-        String string = line.toString();
+          String string = line.toString();
 
-        if ((fileName == null) || summary)
-          if (!string.equals(""))
-            pw.println("Topic " + j + ": " + string);
+          if ((fileName == null) || summary)
+            if (!string.equals(""))
+              pw.println("Topic " + j + ": " + string);
+        }
       }
 
       if (fileName != null)
@@ -326,4 +641,101 @@ public class TopicWordScore {
       System.out.println(e);
     }
   }
+
+  // prints only each topic's nonzero word counts, with the parameters
+  // needed to smooth them written once in the header -- getScore(w, j)
+  // = (beta / W + N_{w|j}) / (N_{j} + beta) / unseen_w, where unseen_w
+  // is 1 unless w stands for several pruned types -- so the file grows
+  // with the # of nonzero counts rather than W x T
+
+  public void printSparse(Alphabet dict, String fileName) {
+
+    assert dict.size() == W;
+
+    try {
+
+      PrintStream pw = new PrintStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(new File(fileName)))));
+
+      pw.println("#phi_{w|j} = (beta / W + count) / (norm_j + beta) / unseen_w");
+
+      pw.print("#beta "); pw.print(beta[0]); pw.println();
+      pw.print("#W "); pw.print(W); pw.println();
+
+      pw.print("#norm");
+
+      for (int j=0; j<T; j++) {
+        pw.print(" "); pw.print(wordTopicCountsNorm[j]);
+      }
+
+      pw.println();
+
+      if (unseenCounts != null) {
+
+        pw.print("#unseen");
+
+        for (int w=0; w<W; w++)
+          if (getUnseenCount(w) != 1) {
+            pw.print(" "); pw.print(w);
+            pw.print(" "); pw.print(getUnseenCount(w));
+          }
+
+        pw.println();
+      }
+
+      pw.println("#topic typeindex type count");
+
+      // the counts are stored word by word, so gather each topic's
+      // nonzero counts in one pass over the words (after a first pass
+      // to size them) rather than reading the matrix topic by topic
+
+      int[] counts = new int[T];
+
+      int[] offsets = new int[T + 1]; // topic j's counts are [offsets[j], offsets[j+1])
+
+      for (int w=0; w<W; w++) {
+
+        getCounts(w, counts);
+
+        for (int j=0; j<T; j++)
+          if (counts[j] != 0)
+            offsets[j+1]++;
+      }
+
+      for (int j=0; j<T; j++)
+        offsets[j+1] += offsets[j];
+
+      int[] words = new int[offsets[T]];
+      int[] wordCounts = new int[offsets[T]];
+
+      int[] next = Arrays.copyOf(offsets, T);
+
+      for (int w=0; w<W; w++) {
+
+        getCounts(w, counts);
+
+        for (int j=0; j<T; j++)
+          if (counts[j] != 0) {
+            words[next[j]] = w;
+            wordCounts[next[j]] = counts[j];
+            next[j]++;
+          }
+      }
+
+      for (int j=0; j<T; j++)
+        for (int i=offsets[j]; i<offsets[j+1]; i++) {
+
+          int w = words[i];
+
+          pw.print(j); pw.print(" ");
+          pw.print(w); pw.print(" ");
+          pw.print(dict.lookupObject(w)); pw.print(" ");
+          pw.print(wordCounts[i]); pw.println();
+        }
+
+      pw.close();
+    }
+    catch (IOException e) {
+      System.out.println(e);
+    }
+  }
 }